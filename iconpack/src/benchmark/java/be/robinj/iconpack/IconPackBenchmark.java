@@ -0,0 +1,241 @@
+package be.robinj.iconpack;
+
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import be.robinj.iconpack.benchmark.BenchmarkRunner;
+import be.robinj.iconpack.benchmark.SyntheticIconPack;
+import be.robinj.iconpack.utils.ResourceIdResolver;
+import be.robinj.iconpack.utils.XmlScanner;
+
+/**
+ * Parse, load and lookup benchmarks over synthetic icon packs of 1k, 10k and 50k entries, with
+ * and without masking directives, and masking throughput of {@link PixelCompositor}. Runs on
+ * the JVM; only compiled and run with -Pbenchmark:
+ * <pre>
+ * ./gradlew :iconpack:testDebugUnitTest -Pbenchmark --tests be.robinj.iconpack.IconPackBenchmark
+ * </pre>
+ * Lookups go through the same steps as {@link IconPack#getDefaultIconForPackage}, up to the
+ * point where a drawable would be decoded: the appfilter lookup, the derived drawable name for
+ * misses and the resource ID lookup.
+ */
+public class IconPackBenchmark {
+	private static final int[] SIZES = {1000, 10000, 50000};
+	private static final String[] RULES = {"app_,", "icon_,app_"};
+	private static final int MASKED_ICON_COUNT = 300;
+	private static final int LAYER_SIZE = 192;
+
+	private final BenchmarkRunner runner = new BenchmarkRunner(System.out, 5, 10);
+
+	@Test
+	public void run() throws Exception {
+		for (final int size : SIZES) {
+			this.run(new SyntheticIconPack(size, false));
+			this.run(new SyntheticIconPack(size, true));
+		}
+
+		this.masking();
+	}
+
+	/**
+	 * Masks {@link #MASKED_ICON_COUNT} icons with {@link PixelCompositor}, on one thread and on
+	 * one thread per core.
+	 */
+	private void masking() throws Exception {
+		final PixelCompositor compositor = new PixelCompositor(
+				Arrays.asList(layer(LAYER_SIZE, 1, false), layer(LAYER_SIZE, 2, false)),
+				layer(LAYER_SIZE, 3, true), layer(LAYER_SIZE, 4, true), 0.8f);
+		final PixelBuffer[] sources = new PixelBuffer[MASKED_ICON_COUNT];
+		final int[] backIndexes = new int[MASKED_ICON_COUNT];
+
+		for (int i = 0; i < MASKED_ICON_COUNT; i++) {
+			// a mix of icons that fit and icons that get scaled down
+			sources[i] = layer(i % 2 == 0 ? LAYER_SIZE : LAYER_SIZE * 2, 10 + i, false);
+			backIndexes[i] = i % compositor.getBackgroundCount();
+		}
+
+		final Executor direct = new Executor() {
+			@Override
+			public void execute(final Runnable command) {
+				command.run();
+			}
+		};
+		final int cores = Runtime.getRuntime().availableProcessors();
+		final ExecutorService pool = Executors.newFixedThreadPool(cores);
+
+		try {
+			this.runner.run("masking " + MASKED_ICON_COUNT + " icons, 1 thread", MASKED_ICON_COUNT,
+					new BenchmarkRunner.Iteration() {
+						@Override
+						public void run() throws Exception {
+							BenchmarkRunner.consume(compositor.composeAll(sources, backIndexes, direct));
+						}
+					});
+
+			this.runner.run("masking " + MASKED_ICON_COUNT + " icons, " + cores + " threads",
+					MASKED_ICON_COUNT, new BenchmarkRunner.Iteration() {
+						@Override
+						public void run() throws Exception {
+							BenchmarkRunner.consume(compositor.composeAll(sources, backIndexes, pool));
+						}
+					});
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * @param round - transparent outside a centred circle, like a mask or a round icon
+	 */
+	private static PixelBuffer layer(final int size, final long seed, final boolean round) {
+		final Random random = new Random(seed);
+		final int[] argb = new int[size * size];
+		final float radius = size / 2f;
+
+		for (int y = 0; y < size; y++) {
+			for (int x = 0; x < size; x++) {
+				final float dx = x + 0.5f - radius;
+				final float dy = y + 0.5f - radius;
+				final boolean inside = ! round || dx * dx + dy * dy <= radius * radius;
+
+				argb[y * size + x] = inside ? random.nextInt() | 0x80000000 : 0;
+			}
+		}
+
+		return PixelBuffer.fromArgb(size, size, argb);
+	}
+
+	private void run(final SyntheticIconPack pack) throws Exception {
+		final String prefix = pack + ": ";
+		final ResourceIdResolver resolver = ResourceIdResolver.fromTable(pack.getDrawableTable());
+		final TitleGenerator titleGenerator = new TitleGenerator(RULES);
+
+		this.runner.run(prefix + "appfilter parse", 1, new BenchmarkRunner.Iteration() {
+			@Override
+			public void run() throws Exception {
+				BenchmarkRunner.consume(AppFilterIndex.parse(parser(pack.getAppFilterXml())));
+			}
+		});
+
+		final byte[] appFilterBytes = pack.getAppFilterXml().getBytes("UTF-8");
+
+		this.runner.run(prefix + "appfilter scan", 1, new BenchmarkRunner.Iteration() {
+			@Override
+			public void run() throws Exception {
+				BenchmarkRunner.consume(AppFilterIndex.scan(new XmlScanner(appFilterBytes)));
+			}
+		});
+
+		final AppFilterIndex index = AppFilterIndex.parse(parser(pack.getAppFilterXml()));
+		final AppFilterIndex.Key key = new AppFilterIndex.Key("com.synthetic", 1, 0);
+		final File indexFile = File.createTempFile("appfilter", ".idx");
+		indexFile.deleteOnExit();
+		index.write(indexFile, key);
+
+		this.runner.run(prefix + "appfilter index read", 1, new BenchmarkRunner.Iteration() {
+			@Override
+			public void run() throws Exception {
+				BenchmarkRunner.consume(AppFilterIndex.read(indexFile, key));
+			}
+		});
+
+		this.runner.run(prefix + "appfilter snapshot", 1, new BenchmarkRunner.Iteration() {
+			@Override
+			public void run() {
+				BenchmarkRunner.consume(new AppFilter(index.components, null, null, false));
+			}
+		});
+
+		this.runner.run(prefix + "drawable map load", 1, new BenchmarkRunner.Iteration() {
+			@Override
+			public void run() throws Exception {
+				final Map<String, List<IconDrawable>> drawableMap = new LinkedHashMap<>();
+				IconPack.onLoadDrawableMap(parser(pack.getDrawableXml()), drawableMap,
+						resolver, titleGenerator);
+				BenchmarkRunner.consume(drawableMap);
+			}
+		});
+
+		final byte[] drawableBytes = pack.getDrawableXml().getBytes("UTF-8");
+
+		this.runner.run(prefix + "drawable map scan", 1, new BenchmarkRunner.Iteration() {
+			@Override
+			public void run() throws Exception {
+				final Map<String, List<IconDrawable>> drawableMap = new LinkedHashMap<>();
+				IconPack.onLoadDrawableMap(new XmlScanner(drawableBytes), drawableMap,
+						resolver, titleGenerator);
+				BenchmarkRunner.consume(drawableMap);
+			}
+		});
+
+		final Map<String, List<IconDrawable>> drawableMap = new LinkedHashMap<>();
+		IconPack.onLoadDrawableMap(parser(pack.getDrawableXml()), drawableMap, resolver, titleGenerator);
+
+		this.runner.run(prefix + "drawable search index build", 1, new BenchmarkRunner.Iteration() {
+			@Override
+			public void run() {
+				final DrawableSearchIndex.Builder builder = new DrawableSearchIndex.Builder();
+
+				for (final List<IconDrawable> category : drawableMap.values()) {
+					for (final IconDrawable icon : category) {
+						// fresh icons, so titles are generated every iteration
+						builder.add(new IconDrawable(icon.getDrawableName(), icon.getResId(),
+								titleGenerator));
+					}
+				}
+
+				BenchmarkRunner.consume(builder.build());
+			}
+		});
+
+		final AppFilter appFilter = new AppFilter(index.components, null, null, false);
+
+		this.lookups(prefix + "lookup hit", appFilter, resolver, pack.getHits());
+		this.lookups(prefix + "lookup fallback", appFilter, resolver, pack.getFallbacks());
+		this.lookups(prefix + "lookup miss", appFilter, resolver, pack.getMisses());
+	}
+
+	private void lookups(final String name, final AppFilter appFilter,
+						 final ResourceIdResolver resolver, final List<String[]> activities)
+			throws Exception {
+		this.runner.run(name, activities.size(), new BenchmarkRunner.Iteration() {
+			@Override
+			public void run() {
+				int found = 0;
+
+				for (final String[] activity : activities) {
+					String drawableName = appFilter.getDrawableNameForActivity(activity[0], activity[1]);
+
+					if (drawableName == null) {
+						drawableName = IconPack.getDerivedDrawableName(activity[0], activity[1]);
+					}
+
+					if (resolver.getResourceId(drawableName) > 0) {
+						found++;
+					}
+				}
+
+				BenchmarkRunner.consume(found);
+			}
+		});
+	}
+
+	private static XmlPullParser parser(final String xml) throws Exception {
+		final KXmlParser parser = new KXmlParser();
+		parser.setInput(new StringReader(xml));
+
+		return parser;
+	}
+}
@@ -0,0 +1,111 @@
+package be.robinj.iconpack.benchmark;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Minimal benchmark harness: warms an operation up, times a number of iterations of it and
+ * reports the median time and the bytes allocated per operation.
+ * <p>
+ * Allocations are read from the HotSpot thread MX bean; they're reported as -1 on JVMs that
+ * don't have it.
+ */
+public class BenchmarkRunner {
+	private static volatile int sink;
+
+	private final PrintStream out;
+	private final int warmupIterations;
+	private final int measuredIterations;
+	private final com.sun.management.ThreadMXBean threads = getThreadMXBean();
+
+	public BenchmarkRunner(final PrintStream out, final int warmupIterations,
+						   final int measuredIterations) {
+		this.out = out;
+		this.warmupIterations = warmupIterations;
+		this.measuredIterations = measuredIterations;
+	}
+
+	private static com.sun.management.ThreadMXBean getThreadMXBean() {
+		try {
+			final com.sun.management.ThreadMXBean threads =
+					(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+			threads.setThreadAllocatedMemoryEnabled(true);
+
+			return threads;
+		} catch (final RuntimeException | LinkageError ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Keeps the JIT from optimising away work whose result is otherwise unused.
+	 */
+	public static void consume(final Object result) {
+		sink += result != null ? result.hashCode() : 0;
+	}
+
+	/**
+	 * @param operations - number of operations one iteration performs, e.g. the number of lookups
+	 */
+	public Result run(final String name, final int operations, final Iteration iteration)
+			throws Exception {
+		for (int i = 0; i < this.warmupIterations; i++) {
+			iteration.run();
+		}
+
+		final long[] times = new long[this.measuredIterations];
+		long allocated = 0;
+
+		for (int i = 0; i < this.measuredIterations; i++) {
+			final long allocatedBefore = this.getAllocatedBytes();
+			final long start = System.nanoTime();
+
+			iteration.run();
+
+			times[i] = System.nanoTime() - start;
+			allocated += this.getAllocatedBytes() - allocatedBefore;
+		}
+
+		Arrays.sort(times);
+
+		final long totalOperations = (long) operations * this.measuredIterations;
+		final Result result = new Result(name, (double) times[times.length / 2] / operations,
+				this.threads != null ? (double) allocated / totalOperations : -1);
+
+		this.out.println(result);
+
+		return result;
+	}
+
+	private long getAllocatedBytes() {
+		if (this.threads == null) {
+			return 0;
+		}
+
+		return this.threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	public interface Iteration {
+		void run() throws Exception;
+	}
+
+	public static class Result {
+		public final String name;
+		public final double nanosPerOperation;
+		public final double bytesPerOperation;
+
+		Result(final String name, final double nanosPerOperation, final double bytesPerOperation) {
+			this.name = name;
+			this.nanosPerOperation = nanosPerOperation;
+			this.bytesPerOperation = bytesPerOperation;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%-50s %14.1f ns/op %14.1f B/op",
+					this.name, this.nanosPerOperation, this.bytesPerOperation);
+		}
+	}
+}
@@ -0,0 +1,152 @@
+package be.robinj.iconpack.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import be.robinj.iconpack.utils.StringIntMap;
+
+/**
+ * Generates an icon pack's appfilter.xml and drawable.xml with a given number of entries,
+ * shaped like the ones real icon packs ship: mostly full components, some shorthand class
+ * names and package-only entries, drawables shared between components, and categories in
+ * the drawable.xml.
+ */
+public class SyntheticIconPack {
+	private static final int FIRST_DRAWABLE_ID = 0x7f020000;
+	private static final int CATEGORY_SIZE = 100;
+	private static final int QUERY_COUNT = 10000;
+
+	public final int size;
+	public final boolean masking;
+
+	private final String appFilterXml;
+	private final String drawableXml;
+	private final StringIntMap drawableTable;
+	private final List<String[]> hits = new ArrayList<>();
+	private final List<String[]> fallbacks = new ArrayList<>();
+	private final List<String[]> misses = new ArrayList<>();
+
+	public SyntheticIconPack(final int size, final boolean masking) {
+		this.size = size;
+		this.masking = masking;
+
+		final Random random = new Random(size);
+		final StringBuilder appFilter = new StringBuilder(size * 120);
+		final StringBuilder drawables = new StringBuilder(size * 50);
+		final List<String> drawableNames = new ArrayList<>(size);
+
+		appFilter.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<resources>\n");
+		drawables.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<resources>\n");
+
+		if (masking) {
+			appFilter.append("<iconback img1=\"iconback_1\" img2=\"iconback_2\" img3=\"iconback_3\" />\n")
+					.append("<iconmask img1=\"iconmask\" />\n")
+					.append("<iconupon img1=\"iconupon\" />\n")
+					.append("<scale factor=\"0.8\" />\n");
+		}
+
+		for (int i = 0; i < size; i++) {
+			final String packageName = "com.synthetic" + (i % 37) + ".app" + i;
+			final String className = packageName + ".MainActivity";
+			// one in ten components reuses the drawable of the one before it
+			final String drawableName = i % 10 == 9 ? drawableNames.get(i - 1) : "app_synthetic_icon_" + i;
+			final String component;
+
+			if (i % 20 == 0) {
+				component = packageName;
+			} else if (i % 7 == 0) {
+				component = packageName + "/.MainActivity";
+			} else {
+				component = packageName + "/" + className;
+			}
+
+			appFilter.append("<item component=\"ComponentInfo{").append(component)
+					.append("}\" drawable=\"").append(drawableName).append("\" />\n");
+			drawableNames.add(drawableName);
+
+			if (i % CATEGORY_SIZE == 0) {
+				drawables.append("<category title=\"Category ").append(i / CATEGORY_SIZE)
+						.append("\" />\n");
+			}
+
+			if (i % 10 != 9) {
+				drawables.append("<item drawable=\"").append(drawableName).append("\" />\n");
+			}
+		}
+
+		appFilter.append("</resources>\n");
+		drawables.append("</resources>\n");
+
+		this.appFilterXml = appFilter.toString();
+		this.drawableXml = drawables.toString();
+		this.drawableTable = new StringIntMap(size);
+
+		for (final String drawableName : drawableNames) {
+			if (! this.drawableTable.containsKey(drawableName)) {
+				this.drawableTable.put(drawableName, FIRST_DRAWABLE_ID + this.drawableTable.size());
+			}
+		}
+
+		for (int i = 0; i < QUERY_COUNT; i++) {
+			final int entry = random.nextInt(size);
+			final String packageName = "com.synthetic" + (entry % 37) + ".app" + entry;
+
+			this.hits.add(new String[]{packageName, packageName + ".MainActivity"});
+			this.fallbacks.add(new String[]{packageName, packageName + ".SettingsActivity"});
+			this.misses.add(new String[]{"org.unlisted.app" + entry, "org.unlisted.app" + entry + ".Main"});
+		}
+
+		// some packs have drawables for unlisted apps under the derived name
+		for (int i = 0; i < this.misses.size(); i += 2) {
+			final String[] miss = this.misses.get(i);
+			final String derived = (miss[0] + "_" + miss[1]).toLowerCase(Locale.ROOT).replace(".", "_");
+
+			if (! this.drawableTable.containsKey(derived)) {
+				this.drawableTable.put(derived, FIRST_DRAWABLE_ID + this.drawableTable.size());
+			}
+		}
+	}
+
+	public String getAppFilterXml() {
+		return this.appFilterXml;
+	}
+
+	public String getDrawableXml() {
+		return this.drawableXml;
+	}
+
+	/**
+	 * @return drawable name to resource ID, the way the pack's resource table would have it
+	 */
+	public StringIntMap getDrawableTable() {
+		return this.drawableTable;
+	}
+
+	/**
+	 * @return {package, class} of activities the appfilter lists
+	 */
+	public List<String[]> getHits() {
+		return this.hits;
+	}
+
+	/**
+	 * @return {package, class} of unlisted activities of listed packages
+	 */
+	public List<String[]> getFallbacks() {
+		return this.fallbacks;
+	}
+
+	/**
+	 * @return {package, class} of activities of packages the appfilter doesn't list
+	 */
+	public List<String[]> getMisses() {
+		return this.misses;
+	}
+
+	@Override
+	public String toString() {
+		return this.size + (this.masking ? " entries, masking" : " entries");
+	}
+}
@@ -0,0 +1,210 @@
+package be.robinj.iconpack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of a loaded appfilter.
+ * <p>
+ * {@link IconPack} publishes a new snapshot in one volatile write once loading has finished, so
+ * lookups can read it from any thread without locking and never see a half-built map.
+ * <p>
+ * Entries are indexed by package. Each package maps to the (usually one or two) entries for its
+ * activities, so looking up a component, a package or "any activity of this package" is a single
+ * hash probe followed by a scan over a tiny array. Package, class and drawable names are
+ * interned, since the same ones are repeated all over big appfilters.
+ * <p>
+ * The only mutable part is the miss cache, which remembers components that neither the
+ * appfilter nor a derived drawable name matched. It lives exactly as long as the snapshot, so
+ * a reload or {@link IconPack#refresh()} starts over with an empty one.
+ */
+class AppFilter {
+	private static final Entry[] NO_ENTRIES = new Entry[0];
+
+	private final Map<String, Entry[]> byPackage;
+	private final int size;
+	// null if the masking wasn't loaded or the icon pack doesn't have any
+	final IconMasking masking;
+	// made from the masking's layers the first time an icon is masked, and dropped again when
+	// the layers are downsampled or released; guarded by masking
+	volatile MaskCompositor compositor;
+	// same masking on pixel buffers, made the first time bulk masking needs it
+	volatile PixelCompositor pixelCompositor;
+	// identifies the masking directives, for use in cache keys
+	final String maskingIdentity;
+	final boolean maskingLoaded;
+	// package to classes of components that don't have an icon in the icon pack
+	private final ComponentSet misses = new ComponentSet();
+
+	/**
+	 * @param components normalised components, see {@link AppFilterIndex#normalizeComponent(String)}
+	 */
+	AppFilter(final Map<String, String> components, final IconMasking masking,
+			  final String maskingIdentity, final boolean maskingLoaded) {
+		this.byPackage = index(components);
+		this.size = components.size();
+		this.masking = masking;
+		this.maskingIdentity = maskingIdentity;
+		this.maskingLoaded = maskingLoaded;
+	}
+
+	private static Map<String, Entry[]> index(final Map<String, String> components) {
+		final HashMap<String, String> strings = new HashMap<>();
+		final LinkedHashMap<String, List<Entry>> lists = new LinkedHashMap<>();
+
+		for (final Map.Entry<String, String> component : components.entrySet()) {
+			final String key = component.getKey();
+			final int separator = key.indexOf('/');
+			final String packageName = intern(strings,
+					separator < 0 ? key : key.substring(0, separator));
+			final String className = separator < 0 ? null
+					: intern(strings, key.substring(separator + 1));
+
+			List<Entry> entries = lists.get(packageName);
+			if (entries == null) {
+				entries = new ArrayList<>(2);
+				lists.put(packageName, entries);
+			}
+
+			entries.add(new Entry(packageName, className, intern(strings, component.getValue())));
+		}
+
+		final HashMap<String, Entry[]> byPackage = new HashMap<>((int) (lists.size() / 0.75f) + 1);
+		for (final Map.Entry<String, List<Entry>> entries : lists.entrySet()) {
+			byPackage.put(entries.getKey(), entries.getValue().toArray(NO_ENTRIES));
+		}
+
+		return byPackage;
+	}
+
+	private static String intern(final HashMap<String, String> strings, final String string) {
+		final String interned = strings.get(string);
+
+		if (interned != null) {
+			return interned;
+		}
+
+		strings.put(string, string);
+
+		return string;
+	}
+
+	/**
+	 * @return drawable for exactly this activity, or null if the appfilter doesn't list it
+	 */
+	String getDrawableName(final String packageName, final String className) {
+		final Entry[] entries = this.byPackage.get(packageName);
+
+		if (entries != null) {
+			for (final Entry entry : entries) {
+				if (className.equals(entry.className)) {
+					return entry.drawableName;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return drawable for the package's first entry in the appfilter, or null if the appfilter
+	 * doesn't list the package at all
+	 */
+	String getDrawableNameForPackage(final String packageName) {
+		final Entry[] entries = this.byPackage.get(packageName);
+
+		return entries != null && entries.length > 0 ? entries[0].drawableName : null;
+	}
+
+	/**
+	 * @return drawable for the activity if it's listed, otherwise for any activity of the same
+	 * package (e.g. when the activity is an alias), otherwise null
+	 */
+	String getDrawableNameForActivity(final String packageName, final String className) {
+		final Entry[] entries = this.byPackage.get(packageName);
+
+		if (entries == null || entries.length == 0) {
+			return null;
+		}
+
+		for (final Entry entry : entries) {
+			if (className.equals(entry.className)) {
+				return entry.drawableName;
+			}
+		}
+
+		return entries[0].drawableName;
+	}
+
+	/**
+	 * @return whether {@link #addMiss(String, String)} was called for this component
+	 */
+	boolean isMiss(final String packageName, final String className) {
+		return this.misses.contains(packageName, className);
+	}
+
+	/**
+	 * Remembers that the icon pack has no icon for this component, neither through the
+	 * appfilter nor through a derived drawable name.
+	 */
+	void addMiss(final String packageName, final String className) {
+		this.misses.add(packageName, className);
+	}
+
+	/**
+	 * @return every package the appfilter has entries for
+	 */
+	Set<String> getPackageNames() {
+		return Collections.unmodifiableSet(this.byPackage.keySet());
+	}
+
+	/**
+	 * @return entries for the package, in appfilter order; empty if there are none
+	 */
+	Entry[] getEntries(final String packageName) {
+		final Entry[] entries = this.byPackage.get(packageName);
+
+		return entries != null ? entries.clone() : NO_ENTRIES;
+	}
+
+	/**
+	 * @return all entries as normalised component to drawable name
+	 */
+	Map<String, String> getComponents() {
+		final Map<String, String> components = new LinkedHashMap<>((int) (this.size / 0.75f) + 1);
+
+		for (final Entry[] entries : this.byPackage.values()) {
+			for (final Entry entry : entries) {
+				components.put(entry.getComponent(), entry.drawableName);
+			}
+		}
+
+		return Collections.unmodifiableMap(components);
+	}
+
+	int size() {
+		return this.size;
+	}
+
+	static class Entry {
+		final String packageName;
+		// null for entries that cover a whole package
+		final String className;
+		final String drawableName;
+
+		Entry(final String packageName, final String className, final String drawableName) {
+			this.packageName = packageName;
+			this.className = className;
+			this.drawableName = drawableName;
+		}
+
+		String getComponent() {
+			return this.className != null ? this.packageName + "/" + this.className : this.packageName;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package be.robinj.iconpack;
+
+import android.content.ComponentName;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What changed in an icon pack's appfilter between two versions, see {@link IconPack#refresh()}.
+ * <p>
+ * Components are in the same format as {@link ComponentName#flattenToString()}; entries that
+ * cover a whole package are just the package name.
+ */
+public class AppFilterDiff {
+	private final Set<String> added;
+	private final Set<String> removed;
+	private final Set<String> remapped;
+	private final Set<String> packages = new HashSet<>();
+	// packages the new appfilter has entries for
+	private final Set<String> listedPackages;
+	private final boolean maskingChanged;
+
+	AppFilterDiff(final Set<String> added, final Set<String> removed, final Set<String> remapped,
+				  final Set<String> listedPackages, final boolean maskingChanged) {
+		this.added = Collections.unmodifiableSet(added);
+		this.removed = Collections.unmodifiableSet(removed);
+		this.remapped = Collections.unmodifiableSet(remapped);
+		this.listedPackages = listedPackages;
+		this.maskingChanged = maskingChanged;
+
+		addPackages(this.packages, added);
+		addPackages(this.packages, removed);
+		addPackages(this.packages, remapped);
+	}
+
+	private static void addPackages(final Set<String> packages, final Set<String> components) {
+		for (final String component : components) {
+			final int separator = component.indexOf('/');
+
+			packages.add(separator < 0 ? component : component.substring(0, separator));
+		}
+	}
+
+	static AppFilterDiff compute(final Map<String, String> previous, final Map<String, String> current,
+								 final boolean maskingChanged) {
+		final Set<String> added = new LinkedHashSet<>();
+		final Set<String> removed = new LinkedHashSet<>();
+		final Set<String> remapped = new LinkedHashSet<>();
+		final Set<String> listedPackages = new HashSet<>();
+
+		addPackages(listedPackages, current.keySet());
+
+		for (final Map.Entry<String, String> entry : current.entrySet()) {
+			final String drawableName = previous.get(entry.getKey());
+
+			if (drawableName == null) {
+				added.add(entry.getKey());
+			} else if (! drawableName.equals(entry.getValue())) {
+				remapped.add(entry.getKey());
+			}
+		}
+
+		for (final String component : previous.keySet()) {
+			if (! current.containsKey(component)) {
+				removed.add(component);
+			}
+		}
+
+		return new AppFilterDiff(added, removed, remapped, listedPackages, maskingChanged);
+	}
+
+	static AppFilterDiff empty() {
+		return new AppFilterDiff(new HashSet<String>(), new HashSet<String>(),
+				new HashSet<String>(), new HashSet<String>(), false);
+	}
+
+	/**
+	 * @return components the appfilter didn't list before
+	 */
+	public Set<String> getAdded() {
+		return this.added;
+	}
+
+	/**
+	 * @return components the appfilter no longer lists
+	 */
+	public Set<String> getRemoved() {
+		return this.removed;
+	}
+
+	/**
+	 * @return components that now have a different drawable
+	 */
+	public Set<String> getRemapped() {
+		return this.remapped;
+	}
+
+	/**
+	 * @return whether the iconback, iconmask, iconupon or scale changed, which changes the icon of
+	 * every app that gets a masked icon
+	 */
+	public boolean isMaskingChanged() {
+		return this.maskingChanged;
+	}
+
+	public boolean isEmpty() {
+		return this.added.isEmpty() && this.removed.isEmpty() && this.remapped.isEmpty()
+				&& ! this.maskingChanged;
+	}
+
+	/**
+	 * Activities the appfilter doesn't list get the icon of another activity of their package,
+	 * so a change to any entry of a package may change the icons of all of its activities.
+	 * When the masking changed, so did the icon of every app the appfilter doesn't list.
+	 *
+	 * @return whether the icon for this activity may have changed
+	 */
+	public boolean affects(final ComponentName componentName) {
+		final String packageName = componentName.getPackageName();
+
+		return this.packages.contains(packageName)
+				|| (this.maskingChanged && ! this.listedPackages.contains(packageName));
+	}
+
+	@Override
+	public String toString() {
+		return this.added.size() + " added, " + this.removed.size() + " removed, "
+				+ this.remapped.size() + " remapped" + (this.maskingChanged ? ", masking changed" : "");
+	}
+}
@@ -0,0 +1,434 @@
+package be.robinj.iconpack;
+
+import be.robinj.iconpack.utils.XmlScanner;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Everything parsed from an icon pack's appfilter.xml: the component to drawable map and the
+ * masking directives (iconback, iconmask, iconupon and scale).
+ * <p>
+ * The index can be written to a compact binary file and read back in one go, so the XML only
+ * has to be parsed again when the icon pack gets updated.
+ */
+class AppFilterIndex {
+	private static final int MAGIC = 0x49504146; // "IPAF"
+	private static final int FORMAT_VERSION = 2;
+	private static final String COMPONENT_PREFIX = "ComponentInfo{";
+	private static final char COMPONENT_SUFFIX = '}';
+	private static final char COMPONENT_SEPARATOR = '/';
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final String EXT_TMP = ".tmp";
+
+	private static final byte[] ITEM = XmlScanner.name(Constants.ITEM);
+	private static final byte[] COMPONENT = XmlScanner.name(Constants.COMPONENT);
+	private static final byte[] DRAWABLE = XmlScanner.name(Constants.DRAWABLE);
+	private static final byte[] BACKGROUND = XmlScanner.name(Constants.BACKGROUND);
+	private static final byte[] BACKGROUND_IMG = XmlScanner.name(Constants.BACKGROUND_IMG);
+	private static final byte[] MASK = XmlScanner.name(Constants.MASK);
+	private static final byte[] FRONT = XmlScanner.name(Constants.FRONT);
+	private static final byte[] SCALE = XmlScanner.name(Constants.SCALE);
+	private static final byte[] FACTOR = XmlScanner.name(Constants.FACTOR);
+	private static final byte[] IMG_1_VALUE = XmlScanner.name(Constants.IMG_1_VALUE);
+
+	// normalised component ("package/class" or just "package") to drawable name, in appfilter order
+	final LinkedHashMap<String, String> components;
+	final List<String> backImages = new ArrayList<>();
+	String maskImage;
+	String frontImage;
+	Float factor;
+
+	AppFilterIndex() {
+		this(new LinkedHashMap<String, String>());
+	}
+
+	private AppFilterIndex(final LinkedHashMap<String, String> components) {
+		this.components = components;
+	}
+
+	/**
+	 * Parses an appfilter.xml.
+	 */
+	static AppFilterIndex parse(final XmlPullParser parser)
+			throws XmlPullParserException, IOException {
+		final AppFilterIndex index = new AppFilterIndex();
+
+		if (parser != null) {
+			int eventType = parser.getEventType();
+
+			while (eventType != XmlPullParser.END_DOCUMENT) {
+				if (eventType == XmlPullParser.START_TAG) {
+					if (Constants.ITEM.equals(parser.getName())) {
+						index.parseItem(parser);
+					} else {
+						index.parseMaskDirective(parser);
+					}
+				}
+
+				eventType = parser.next();
+			}
+		}
+
+		return index;
+	}
+
+	/**
+	 * Scans a plain text appfilter.xml, with the same result as {@link #parse(XmlPullParser)}.
+	 *
+	 * @throws XmlPullParserException if the scanner can't handle the file; parse it instead
+	 */
+	static AppFilterIndex scan(final XmlScanner scanner) throws XmlPullParserException {
+		final AppFilterIndex index = new AppFilterIndex();
+
+		while (scanner.nextElement()) {
+			if (scanner.isElement(ITEM)) {
+				index.addComponent(scanner.getAttributeValue(COMPONENT),
+						scanner.getAttributeValue(DRAWABLE));
+			} else {
+				index.scanMaskDirective(scanner);
+			}
+		}
+
+		return index;
+	}
+
+	private void parseItem(final XmlPullParser parser) {
+		String componentName = null;
+		String drawableName = null;
+
+		for (int i = 0; i < parser.getAttributeCount(); i++) {
+			if (parser.getAttributeName(i).equals(Constants.COMPONENT)) {
+				componentName = parser.getAttributeValue(i);
+			} else if (parser.getAttributeName(i).equals(Constants.DRAWABLE)) {
+				drawableName = parser.getAttributeValue(i);
+			}
+		}
+
+		this.addComponent(componentName, drawableName);
+	}
+
+	private void parseMaskDirective(final XmlPullParser parser) {
+		if (Constants.BACKGROUND.equals(parser.getName())) {
+			for (int i = 0; i < parser.getAttributeCount(); i++) {
+				if (parser.getAttributeName(i).startsWith(Constants.BACKGROUND_IMG)) {
+					this.backImages.add(parser.getAttributeValue(i));
+				}
+			}
+		} else if (Constants.MASK.equals(parser.getName())) {
+			if (parser.getAttributeCount() > 0
+					&& Constants.IMG_1_VALUE.equals(parser.getAttributeName(0))) {
+				this.maskImage = parser.getAttributeValue(0);
+			}
+		} else if (Constants.FRONT.equals(parser.getName())) {
+			if (parser.getAttributeCount() > 0
+					&& Constants.IMG_1_VALUE.equals(parser.getAttributeName(0))) {
+				this.frontImage = parser.getAttributeValue(0);
+			}
+		} else if (Constants.SCALE.equals(parser.getName())) {
+			// mFactor
+			if (parser.getAttributeCount() > 0
+					&& Constants.FACTOR.equals(parser.getAttributeName(0))) {
+				float factor = IconMasking.DEFAULT_FACTOR;
+
+				try {
+					factor = Float.parseFloat(parser.getAttributeValue(0));
+				} catch (final NumberFormatException ex) {
+					ex.printStackTrace();
+				}
+
+				this.factor = factor;
+			}
+		}
+	}
+
+	private void scanMaskDirective(final XmlScanner scanner) throws XmlPullParserException {
+		if (scanner.isElement(BACKGROUND)) {
+			for (int i = 0; i < scanner.getAttributeCount(); i++) {
+				if (scanner.attributeStartsWith(i, BACKGROUND_IMG)) {
+					this.backImages.add(scanner.getAttributeValue(i));
+				}
+			}
+		} else if (scanner.isElement(MASK)) {
+			if (scanner.isAttribute(0, IMG_1_VALUE)) {
+				this.maskImage = scanner.getAttributeValue(0);
+			}
+		} else if (scanner.isElement(FRONT)) {
+			if (scanner.isAttribute(0, IMG_1_VALUE)) {
+				this.frontImage = scanner.getAttributeValue(0);
+			}
+		} else if (scanner.isElement(SCALE)) {
+			if (scanner.isAttribute(0, FACTOR)) {
+				float factor = IconMasking.DEFAULT_FACTOR;
+
+				try {
+					factor = Float.parseFloat(scanner.getAttributeValue(0));
+				} catch (final NumberFormatException ex) {
+					ex.printStackTrace();
+				}
+
+				this.factor = factor;
+			}
+		}
+	}
+
+	/**
+	 * @param componentName as it appears in the appfilter, e.g. "ComponentInfo{package/class}"
+	 */
+	void addComponent(final String componentName, final String drawableName) {
+		final String key = normalizeComponent(componentName);
+
+		// Entries we can't make sense of could never be looked up anyway
+		if (key != null && drawableName != null && ! this.components.containsKey(key)) {
+			this.components.put(key, drawableName);
+		}
+	}
+
+	/**
+	 * Turns "ComponentInfo{package/class}" into "package/class", the same format as
+	 * {@link android.content.ComponentName#flattenToString()}. Shorthand class names
+	 * (".MainActivity") are expanded, entries without a class become just "package".
+	 *
+	 * @return normalised component, or null if it isn't a component
+	 */
+	static String normalizeComponent(final String componentName) {
+		if (componentName == null) {
+			return null;
+		}
+
+		int start = 0;
+		int end = componentName.length();
+
+		if (componentName.startsWith(COMPONENT_PREFIX)) {
+			start = COMPONENT_PREFIX.length();
+
+			final int suffix = componentName.indexOf(COMPONENT_SUFFIX, start);
+			if (suffix >= 0) {
+				end = suffix;
+			}
+		}
+
+		final String component = componentName.substring(start, end).trim();
+		final int separator = component.indexOf(COMPONENT_SEPARATOR);
+
+		if (separator < 0) {
+			return isPackageName(component) ? component : null;
+		}
+
+		final String packageName = component.substring(0, separator);
+		final String className = component.substring(separator + 1);
+
+		if (! isPackageName(packageName) || className.length() == 0) {
+			return null;
+		} else if (className.charAt(0) == '.') {
+			return packageName + COMPONENT_SEPARATOR + packageName + className;
+		}
+
+		return component;
+	}
+
+	private static boolean isPackageName(final String packageName) {
+		// Also rules out special entries some packs use, like ":BROWSER"
+		return packageName.length() > 0 && packageName.indexOf(':') < 0;
+	}
+
+	/**
+	 * @return whether the appfilter contained any masking directive
+	 */
+	boolean hasMasking() {
+		return this.backImages.size() > 0 || this.maskImage != null
+				|| this.frontImage != null || this.factor != null;
+	}
+
+	/**
+	 * Writes the index to a temporary file first and then moves it in place, so a reader never
+	 * sees a half-written index.
+	 */
+	void write(final File file, final Key key) throws IOException {
+		final File directory = file.getAbsoluteFile().getParentFile();
+		if (! directory.isDirectory() && ! directory.mkdirs()) {
+			throw new IOException("Unable to create " + directory);
+		}
+
+		// Unique per writer; every process of the launcher may parse the appfilter at cold start
+		final File temporaryFile = File.createTempFile(file.getName(), EXT_TMP, directory);
+
+		try {
+			this.writeTo(temporaryFile, key);
+		} catch (final IOException | RuntimeException ex) {
+			temporaryFile.delete();
+
+			throw ex;
+		}
+
+		if (! temporaryFile.renameTo(file)) {
+			temporaryFile.delete();
+
+			throw new IOException("Unable to move " + temporaryFile + " to " + file);
+		}
+	}
+
+	private void writeTo(final File file, final Key key) throws IOException {
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)));
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			writeString(out, key.packageName);
+			out.writeInt(key.versionCode);
+			out.writeLong(key.lastUpdateTime);
+
+			out.writeBoolean(this.factor != null);
+			out.writeFloat(this.factor != null ? this.factor : IconMasking.DEFAULT_FACTOR);
+			writeString(out, this.maskImage);
+			writeString(out, this.frontImage);
+			out.writeInt(this.backImages.size());
+			for (final String backImage : this.backImages) {
+				writeString(out, backImage);
+			}
+
+			out.writeInt(this.components.size());
+			for (final Map.Entry<String, String> entry : this.components.entrySet()) {
+				writeString(out, entry.getKey());
+				writeString(out, entry.getValue());
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Memory-maps a previously written index.
+	 *
+	 * @return the index, or null if there is none or if it was written for another version of
+	 * the icon pack
+	 * @throws IOException if the index is truncated or corrupt; treat it like a stale one
+	 */
+	static AppFilterIndex read(final File file, final Key key) throws IOException {
+		if (! file.isFile()) {
+			return null;
+		}
+
+		final FileInputStream in = new FileInputStream(file);
+
+		try {
+			final FileChannel channel = in.getChannel();
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+				return null;
+			}
+
+			if (! key.packageName.equals(readString(buffer))
+					|| buffer.getInt() != key.versionCode
+					|| buffer.getLong() != key.lastUpdateTime) {
+				return null;
+			}
+
+			final boolean hasFactor = buffer.get() != 0;
+			final float factor = buffer.getFloat();
+			final String maskImage = readString(buffer);
+			final String frontImage = readString(buffer);
+			final int backImageCount = readCount(buffer, 4);
+			final List<String> backImages = new ArrayList<>(backImageCount);
+			for (int i = 0; i < backImageCount; i++) {
+				backImages.add(readString(buffer));
+			}
+
+			final int componentCount = readCount(buffer, 8);
+			// Sized so the map never has to rehash while it is being filled
+			final LinkedHashMap<String, String> components = new LinkedHashMap<>((int) (componentCount / 0.75f) + 1);
+			for (int i = 0; i < componentCount; i++) {
+				final String componentName = readString(buffer);
+				components.put(componentName, readString(buffer));
+			}
+
+			final AppFilterIndex index = new AppFilterIndex(components);
+			index.backImages.addAll(backImages);
+			index.maskImage = maskImage;
+			index.frontImage = frontImage;
+			index.factor = hasFactor ? factor : null;
+
+			return index;
+		} catch (final RuntimeException ex) {
+			// Truncated or otherwise corrupt index (BufferUnderflowException and friends)
+			throw new IOException("Corrupt appfilter index " + file, ex);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeString(final DataOutputStream out, final String value)
+			throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+
+			return;
+		}
+
+		final byte[] bytes = value.getBytes(UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads the number of items that follow, each taking at least minSize bytes, so a corrupt
+	 * count can't make the caller allocate more than the file could ever hold.
+	 */
+	private static int readCount(final ByteBuffer buffer, final int minSize) {
+		final int count = buffer.getInt();
+
+		if (count < 0 || count > buffer.remaining() / minSize) {
+			throw new BufferUnderflowException();
+		}
+
+		return count;
+	}
+
+	private static String readString(final ByteBuffer buffer) {
+		final int length = buffer.getInt();
+
+		if (length < 0) {
+			return null;
+		} else if (length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+
+		final byte[] bytes = new byte[length];
+		buffer.get(bytes);
+
+		return new String(bytes, UTF_8);
+	}
+
+	/**
+	 * Identifies the exact build of an icon pack an index was created from.
+	 */
+	static class Key {
+		final String packageName;
+		final int versionCode;
+		final long lastUpdateTime;
+
+		Key(final String packageName, final int versionCode, final long lastUpdateTime) {
+			this.packageName = packageName;
+			this.versionCode = versionCode;
+			this.lastUpdateTime = lastUpdateTime;
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package be.robinj.iconpack;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread-safe set of components, kept as class names per package. Used to remember the
+ * components an icon pack (or a chain of them) has no icon for, so their lookups can be
+ * skipped the next time.
+ */
+class ComponentSet {
+	private final ConcurrentHashMap<String, Set<String>> classNamesByPackage = new ConcurrentHashMap<>();
+
+	boolean contains(final String packageName, final String className) {
+		final Set<String> classNames = this.classNamesByPackage.get(packageName);
+
+		return classNames != null && classNames.contains(className);
+	}
+
+	void add(final String packageName, final String className) {
+		Set<String> classNames = this.classNamesByPackage.get(packageName);
+
+		if (classNames == null) {
+			final Set<String> newClassNames = Collections.newSetFromMap(
+					new ConcurrentHashMap<String, Boolean>(4));
+
+			classNames = this.classNamesByPackage.putIfAbsent(packageName, newClassNames);
+			if (classNames == null) {
+				classNames = newClassNames;
+			}
+		}
+
+		classNames.add(className);
+	}
+}
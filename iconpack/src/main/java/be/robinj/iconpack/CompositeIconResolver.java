@@ -0,0 +1,265 @@
+package be.robinj.iconpack;
+
+import android.content.ComponentName;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.WorkerThread;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Resolves icons through an ordered chain of icon packs, e.g. "pack A, then pack B, then mask
+ * with pack C". Get one from
+ * {@link IconPackManager#getCompositeIconResolver(android.content.Context, List, String)}.
+ * <p>
+ * The packs' appfilters are merged into one index when the resolver is created, so finding the
+ * first pack that lists an app is a single lookup however many packs are chained. The packs
+ * before it are only asked for a drawable under the conventional derived name, which is what
+ * asking the packs one after the other would come down to: each pack's appfilter first, then
+ * its derived name, then the next pack. Only apps that none of the packs has an icon for get
+ * the masking of the designated masking pack.
+ * <p>
+ * The resolver works on the appfilters as they were when it was created; create a new one
+ * when {@link #isStale()} says one of them was reloaded or refreshed.
+ */
+public class CompositeIconResolver {
+	private final IconPack[] iconPacks;
+	private final AppFilter[] appFilters;
+	private final IconPack maskingIconPack;
+	private final AppFilter maskingAppFilter;
+	private final PackageManager packageManager;
+	// package name to entries of the one pack that claims it, in that pack's appfilter order
+	private final Map<String, Entry[]> byPackage;
+	// components that no pack has an icon for
+	private final ComponentSet misses = new ComponentSet();
+
+	/**
+	 * @param iconPacks       - in order of preference; their appfilters must be loaded
+	 * @param maskingIconPack - its appfilter must be loaded with masking; may be null
+	 */
+	CompositeIconResolver(final List<IconPack> iconPacks, final IconPack maskingIconPack,
+						  final PackageManager packageManager) {
+		this.iconPacks = iconPacks.toArray(new IconPack[iconPacks.size()]);
+		this.appFilters = new AppFilter[this.iconPacks.length];
+		this.maskingIconPack = maskingIconPack;
+		this.maskingAppFilter = maskingIconPack != null ? maskingIconPack.requireAppFilter() : null;
+		this.packageManager = packageManager;
+
+		final Map<String, Entry[]> byPackage = new HashMap<>();
+
+		for (int i = 0; i < this.iconPacks.length; i++) {
+			final AppFilter appFilter = this.iconPacks[i].requireAppFilter();
+			this.appFilters[i] = appFilter;
+
+			for (final String packageName : appFilter.getPackageNames()) {
+				if (byPackage.containsKey(packageName)) {
+					continue;
+				}
+
+				final AppFilter.Entry[] entries = appFilter.getEntries(packageName);
+				final Entry[] merged = new Entry[entries.length];
+
+				for (int j = 0; j < entries.length; j++) {
+					merged[j] = new Entry(i, entries[j].className, entries[j].drawableName);
+				}
+
+				byPackage.put(packageName, merged);
+			}
+		}
+
+		this.byPackage = byPackage;
+	}
+
+	public List<IconPack> getIconPacks() {
+		return Collections.unmodifiableList(Arrays.asList(this.iconPacks));
+	}
+
+	/**
+	 * @return the pack whose masking is applied to apps none of the packs has an icon for;
+	 * may be null
+	 */
+	public IconPack getMaskingIconPack() {
+		return this.maskingIconPack;
+	}
+
+	/**
+	 * @return whether any of the packs loaded or refreshed its appfilter since this resolver was
+	 * created
+	 */
+	public boolean isStale() {
+		for (int i = 0; i < this.iconPacks.length; i++) {
+			if (this.iconPacks[i].getAppFilterSnapshot() != this.appFilters[i]) {
+				return true;
+			}
+		}
+
+		return this.maskingIconPack != null
+				&& this.maskingIconPack.getAppFilterSnapshot() != this.maskingAppFilter;
+	}
+
+	/**
+	 * @return the pack that provides the icon for this activity, through its appfilter or a
+	 * derived drawable name, or null if none of them has one
+	 */
+	public IconPack getIconPackFor(final ComponentName componentName) {
+		final Entry entry = this.resolve(componentName.getPackageName(), componentName.getClassName());
+
+		return entry != null ? this.iconPacks[entry.iconPack] : null;
+	}
+
+	/**
+	 * @return name of the drawable the chain maps this activity to, or null
+	 */
+	public String getDrawableName(final ComponentName componentName) {
+		final Entry entry = this.resolve(componentName.getPackageName(), componentName.getClassName());
+
+		return entry != null ? entry.drawableName : null;
+	}
+
+	/**
+	 * Like {@link IconPack#getDefaultIconForPackage(ResolveInfo, boolean)}, across the chain.
+	 *
+	 * @param maskFallback - mask the app's own icon with the masking pack if none of the packs
+	 *                     has an icon for it
+	 */
+	@WorkerThread
+	public Drawable getIcon(final ResolveInfo info, final boolean maskFallback) {
+		return this.resolveIcon(info, maskFallback, null);
+	}
+
+	/**
+	 * Resolves many activities at once. Drawables that several activities map to are only
+	 * loaded once.
+	 *
+	 * @return icon for every activity, in the order they were passed in
+	 */
+	@WorkerThread
+	public Map<ResolveInfo, Drawable> getIcons(final Collection<ResolveInfo> infos,
+											   final boolean maskFallback) {
+		final Map<ResolveInfo, Drawable> icons = new LinkedHashMap<>(infos.size() * 2);
+		final List<Map<String, Bitmap>> sharedBitmaps = new ArrayList<>(this.iconPacks.length);
+
+		for (int i = 0; i < this.iconPacks.length; i++) {
+			sharedBitmaps.add(new HashMap<String, Bitmap>());
+		}
+
+		for (final ResolveInfo info : infos) {
+			Drawable icon = null;
+
+			try {
+				icon = this.resolveIcon(info, maskFallback, sharedBitmaps);
+			} catch (final RuntimeException ex) {
+				ex.printStackTrace();
+			}
+
+			icons.put(info, icon);
+		}
+
+		return icons;
+	}
+
+	/**
+	 * @param sharedBitmaps - per pack, bitmaps already loaded for other activities; may be null
+	 */
+	private Drawable resolveIcon(final ResolveInfo info, final boolean maskFallback,
+								 final List<Map<String, Bitmap>> sharedBitmaps) {
+		final ActivityInfo activityInfo = info.activityInfo;
+		final Entry entry = this.resolve(activityInfo.packageName, activityInfo.name);
+
+		if (entry != null) {
+			final Drawable icon = this.iconPacks[entry.iconPack].loadIcon(entry.drawableName,
+					sharedBitmaps != null ? sharedBitmaps.get(entry.iconPack) : null);
+
+			// The pack claims the app, so its missing drawable doesn't fall through to the next
+			if (icon != null) {
+				return icon;
+			}
+		}
+
+		return this.getFallbackIcon(info, maskFallback);
+	}
+
+	/**
+	 * @return entry of the first pack that has an icon for the activity, either in its appfilter
+	 * or under the derived drawable name, or null if none of them has one
+	 */
+	private Entry resolve(final String packageName, final String className) {
+		if (this.misses.contains(packageName, className)) {
+			return null;
+		}
+
+		final Entry listed = this.find(packageName, className);
+		final int listedBy = listed != null ? listed.iconPack : this.iconPacks.length;
+
+		// Packs before the one that lists the app don't list it, but may have a derived drawable
+		if (listedBy > 0) {
+			final String drawableName = IconPack.getDerivedDrawableName(packageName, className);
+
+			for (int i = 0; i < listedBy; i++) {
+				if (this.iconPacks[i].getDrawableResourceId(drawableName) > 0) {
+					return new Entry(i, className, drawableName);
+				}
+			}
+		}
+
+		if (listed == null) {
+			this.misses.add(packageName, className);
+		}
+
+		return listed;
+	}
+
+	private Drawable getFallbackIcon(final ResolveInfo info, final boolean maskFallback) {
+		final Drawable defaultIcon = info.loadIcon(this.packageManager);
+
+		if (maskFallback && this.maskingAppFilter != null && this.maskingAppFilter.masking != null) {
+			return this.maskingIconPack.generateMaskedIcon(this.maskingAppFilter, defaultIcon, info);
+		}
+
+		return defaultIcon;
+	}
+
+	/**
+	 * @return entry for the activity if its pack lists it, otherwise the first entry of the
+	 * pack that claims its package, otherwise null
+	 */
+	private Entry find(final String packageName, final String className) {
+		final Entry[] entries = this.byPackage.get(packageName);
+
+		if (entries == null || entries.length == 0) {
+			return null;
+		}
+
+		for (final Entry entry : entries) {
+			if (className.equals(entry.className)) {
+				return entry;
+			}
+		}
+
+		return entries[0];
+	}
+
+	private static class Entry {
+		// index into iconPacks
+		final int iconPack;
+		// null for entries that cover a whole package
+		final String className;
+		final String drawableName;
+
+		Entry(final int iconPack, final String className, final String drawableName) {
+			this.iconPack = iconPack;
+			this.className = className;
+			this.drawableName = drawableName;
+		}
+	}
+}
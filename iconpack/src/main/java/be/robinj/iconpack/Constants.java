@@ -9,6 +9,18 @@ public class Constants {
 	static final String FILE_APPFILTER = "appfilter";
 	static final String FILE_DRAWABLE = "drawable";
 
+	static final String RES_TYPE_DRAWABLE = "drawable";
+
+	static final String INDEX_DIRECTORY = "iconpack";
+	static final String EXT_APPFILTER_INDEX = ".appfilter.idx";
+	static final String EXT_SHARED_INDEX = ".shared.idx";
+	static final String ICON_CACHE_DIRECTORY = "icons";
+	static final String ATLAS_DIRECTORY = "atlas";
+	static final String CACHE_KEY_SIZE_SEPARATOR = "@";
+	static final String CACHE_KEY_SEPARATOR = "#";
+	static final String CACHE_KEY_MASKED = "masked:";
+	static final String CACHE_KEY_RASTERIZED = "rasterized:";
+
 	static final String COMPONENT = "component";
 	static final String DRAWABLE = "drawable";
 	static final String BACKGROUND = "iconback";
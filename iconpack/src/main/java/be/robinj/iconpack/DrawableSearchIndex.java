@@ -0,0 +1,285 @@
+package be.robinj.iconpack;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Search index over the drawables listed in an icon pack's drawable.xml, for icon pickers.
+ * <p>
+ * Every drawable's name and title are normalised (lower case, underscores become spaces) and
+ * broken up into trigrams. A query of three characters or more only has to look at the
+ * drawables that contain its rarest trigram, instead of at every drawable in the pack.
+ * <p>
+ * Matches are ranked: drawables whose name or title starts with the query come first, then
+ * drawables with a word starting with the query, then any other match. Ties go to the shortest
+ * name. Use {@link #newSearch()} when the query is being typed; every keystroke that extends the
+ * previous query only has to filter the previous matches.
+ */
+public class DrawableSearchIndex {
+	private static final int GRAM = 3;
+	private static final char FIELD_SEPARATOR = '\u0000';
+	private static final int[] NO_MATCHES = new int[0];
+
+	private static final int RANK_PREFIX = 0;
+	private static final int RANK_WORD_PREFIX = 1;
+	private static final int RANK_SUBSTRING = 2;
+
+	private final IconDrawable[] icons;
+	private final String[] texts;
+	private final Map<Long, int[]> postings;
+
+	private DrawableSearchIndex(final IconDrawable[] icons, final String[] texts,
+								final Map<Long, int[]> postings) {
+		this.icons = icons;
+		this.texts = texts;
+		this.postings = postings;
+	}
+
+	/**
+	 * @param query - matched case-insensitively against drawable names and titles
+	 * @param limit - maximum number of results
+	 * @return best matches first
+	 */
+	public List<IconDrawable> search(final String query, final int limit) {
+		final String normalized = normalize(query);
+
+		return this.rank(normalized, this.match(normalized, null), limit);
+	}
+
+	/**
+	 * Starts an incremental search, for searching while the user is typing.
+	 */
+	public Search newSearch() {
+		return new Search();
+	}
+
+	public int size() {
+		return this.icons.length;
+	}
+
+	/**
+	 * @param candidates - only look at these drawables; null to look at all of them
+	 * @return indexes of all drawables matching the (normalised) query, in index order
+	 */
+	private int[] match(final String query, final int[] candidates) {
+		if (query.length() == 0) {
+			return NO_MATCHES;
+		}
+
+		int[] pool = candidates;
+
+		if (query.length() >= GRAM) {
+			// Only drawables that contain every trigram of the query can match; the rarest one
+			// is the smallest set to check
+			int[] rarest = null;
+
+			for (int i = 0; i + GRAM <= query.length(); i++) {
+				final int[] posting = this.postings.get(gram(query, i));
+
+				if (posting == null) {
+					return NO_MATCHES;
+				} else if (rarest == null || posting.length < rarest.length) {
+					rarest = posting;
+				}
+			}
+
+			if (pool == null || rarest.length < pool.length) {
+				pool = rarest;
+			}
+		}
+
+		final int count = pool != null ? pool.length : this.texts.length;
+		final int[] matches = new int[count];
+		int matchCount = 0;
+
+		for (int i = 0; i < count; i++) {
+			final int index = pool != null ? pool[i] : i;
+
+			if (this.texts[index].indexOf(query) >= 0) {
+				matches[matchCount++] = index;
+			}
+		}
+
+		return Arrays.copyOf(matches, matchCount);
+	}
+
+	private List<IconDrawable> rank(final String query, final int[] matches, final int limit) {
+		// rank, name length and index packed into one long, so sorting needs no comparator
+		final long[] keys = new long[matches.length];
+
+		for (int i = 0; i < matches.length; i++) {
+			final int index = matches[i];
+			final long rank = this.getRank(this.texts[index], query);
+			final long length = Math.min(this.icons[index].getDrawableName().length(), 0xffff);
+
+			keys[i] = (rank << 40) | (length << 24) | index;
+		}
+
+		Arrays.sort(keys);
+
+		final int count = Math.min(limit, keys.length);
+		final List<IconDrawable> results = new ArrayList<>(count);
+
+		for (int i = 0; i < count; i++) {
+			results.add(this.icons[(int) (keys[i] & 0xffffff)]);
+		}
+
+		return results;
+	}
+
+	private int getRank(final String text, final String query) {
+		int rank = RANK_SUBSTRING;
+		int position = text.indexOf(query);
+
+		while (position >= 0) {
+			if (position == 0 || text.charAt(position - 1) == FIELD_SEPARATOR) {
+				return RANK_PREFIX;
+			} else if (text.charAt(position - 1) == ' ') {
+				rank = RANK_WORD_PREFIX;
+			}
+
+			position = text.indexOf(query, position + 1);
+		}
+
+		return rank;
+	}
+
+	private static long gram(final String text, final int start) {
+		long gram = 0;
+
+		for (int i = start; i < start + GRAM; i++) {
+			gram = (gram << 16) | text.charAt(i);
+		}
+
+		return gram;
+	}
+
+	/**
+	 * Lower case, underscores and runs of white space become a single space.
+	 */
+	static String normalize(final String text) {
+		if (text == null) {
+			return "";
+		}
+
+		final StringBuilder normalized = new StringBuilder(text.length());
+		boolean space = true; // drops leading white space
+
+		for (int i = 0; i < text.length(); i++) {
+			final char c = text.charAt(i);
+
+			if (c == '_' || Character.isWhitespace(c)) {
+				if (! space) {
+					normalized.append(' ');
+					space = true;
+				}
+			} else {
+				normalized.append(Character.toLowerCase(c));
+				space = false;
+			}
+		}
+
+		if (space && normalized.length() > 0) {
+			normalized.setLength(normalized.length() - 1);
+		}
+
+		return normalized.toString();
+	}
+
+	/**
+	 * Incremental search. When a query contains the previous query (which is what happens
+	 * while typing), only the previous matches are checked again.
+	 */
+	public class Search {
+		private String query = "";
+		private int[] matches;
+
+		/**
+		 * @param query - the full query as it is now
+		 * @param limit - maximum number of results
+		 * @return best matches first
+		 */
+		public List<IconDrawable> update(final String query, final int limit) {
+			final String normalized = normalize(query);
+			final int[] candidates = this.matches != null && this.query.length() > 0
+					&& normalized.contains(this.query) ? this.matches : null;
+
+			this.matches = match(normalized, candidates);
+			this.query = normalized;
+
+			return rank(normalized, this.matches, limit);
+		}
+	}
+
+	static class Builder {
+		private final Map<String, Boolean> seen = new HashMap<>();
+		private final List<IconDrawable> icons = new ArrayList<>();
+		private final List<String> texts = new ArrayList<>();
+
+		/**
+		 * Drawables listed more than once (e.g. in several categories) are only indexed once.
+		 */
+		void add(final IconDrawable icon) {
+			if (this.seen.put(icon.getDrawableName(), Boolean.TRUE) != null) {
+				return;
+			}
+
+			this.icons.add(icon);
+			this.texts.add(normalize(icon.getDrawableName()) + FIELD_SEPARATOR
+					+ normalize(icon.getTitle()));
+		}
+
+		DrawableSearchIndex build() {
+			final HashMap<Long, GrowableIntArray> lists = new HashMap<>();
+
+			for (int index = 0; index < this.texts.size(); index++) {
+				final String text = this.texts.get(index);
+
+				for (int i = 0; i + GRAM <= text.length(); i++) {
+					final Long gram = gram(text, i);
+					GrowableIntArray list = lists.get(gram);
+
+					if (list == null) {
+						list = new GrowableIntArray();
+						lists.put(gram, list);
+					}
+
+					// the same trigram can occur more than once in a text
+					list.addIfNotLast(index);
+				}
+			}
+
+			final HashMap<Long, int[]> postings = new HashMap<>((int) (lists.size() / 0.75f) + 1);
+			for (final Map.Entry<Long, GrowableIntArray> entry : lists.entrySet()) {
+				postings.put(entry.getKey(), entry.getValue().toArray());
+			}
+
+			return new DrawableSearchIndex(this.icons.toArray(new IconDrawable[this.icons.size()]),
+					this.texts.toArray(new String[this.texts.size()]), postings);
+		}
+	}
+
+	private static class GrowableIntArray {
+		private int[] values = new int[4];
+		private int size;
+
+		void addIfNotLast(final int value) {
+			if (this.size > 0 && this.values[this.size - 1] == value) {
+				return;
+			}
+
+			if (this.size == this.values.length) {
+				this.values = Arrays.copyOf(this.values, this.size * 2);
+			}
+
+			this.values[this.size++] = value;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(this.values, this.size);
+		}
+	}
+}
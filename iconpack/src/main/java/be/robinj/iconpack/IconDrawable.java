@@ -3,8 +3,6 @@ package be.robinj.iconpack;
 import android.content.Context;
 import android.support.annotation.NonNull;
 
-import com.robinj.iconpack.R;
-
 /**
  * Created by nadavfima on 14/05/2017.
  */
@@ -13,38 +11,53 @@ public class IconDrawable {
 
     private final int resId;
     private final String drawableName;
+    private final TitleGenerator titleGenerator;
     private String title;
 
     public IconDrawable(final String drawableName, final int resId) {
+        this(drawableName, resId, null);
+    }
+
+    /**
+     * @param titleGenerator - generates the title from the drawable name the first time
+     *                       {@link #getTitle()} is called
+     */
+    public IconDrawable(final String drawableName, final int resId,
+                        final TitleGenerator titleGenerator) {
         this.drawableName = drawableName;
         this.resId = resId;
+        this.titleGenerator = titleGenerator;
     }
 
+    /**
+     * @see TitleGenerator
+     */
     public static String replaceName(@NonNull final Context context, final boolean iconReplacer,
-                                     String name) {
-        if (iconReplacer) {
-            final String[] replacer = context.getResources()
-                    .getStringArray(R.array.icon_name_replacer);
-            for (final String replace : replacer) {
-                final String[] strings = replace.split(",");
-                if (strings.length > 0) {
-                    name = name.replace(strings[0], strings.length > 1 ? strings[1] : "");
-                }
-            }
-        }
-
-        name = name.replaceAll("_", " ");
-        name = name.trim().replaceAll("\\s+", " ");
-
-        char character = Character.toUpperCase(name.charAt(0));
+                                     final String name) {
+        final TitleGenerator generator = iconReplacer
+                ? TitleGenerator.getDefault(context.getResources())
+                : TitleGenerator.withoutRules();
 
-        return character + name.substring(1);
+        return generator.generate(name);
     }
 
     public String getDrawableName() {
         return drawableName;
     }
 
+    public int getResId() {
+        return resId;
+    }
+
+    public String getTitle() {
+        // Racing threads generate the same title, so there's no need to lock
+        if (title == null && titleGenerator != null && drawableName != null) {
+            title = titleGenerator.generate(drawableName);
+        }
+
+        return title;
+    }
+
     public void setTitle(String title) {
         this.title = title;
     }
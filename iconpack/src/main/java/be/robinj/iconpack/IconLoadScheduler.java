@@ -0,0 +1,515 @@
+package be.robinj.iconpack;
+
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
+import android.graphics.drawable.Drawable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import be.robinj.iconpack.metrics.IconPackMetrics;
+
+/**
+ * Queues {@link IconPack#getDefaultIconForPackage(ResolveInfo, boolean)} calls for views that
+ * are being bound, e.g. while the app drawer scrolls, so the icons that are on screen are
+ * resolved first instead of behind the ones that already scrolled off.
+ * <p>
+ * Requests go into one of three lanes: {@link #PRIORITY_VISIBLE},
+ * {@link #PRIORITY_NEAR_VISIBLE} and {@link #PRIORITY_PREFETCH}. A lane is only worked on when
+ * the lanes before it are empty. Within the first two lanes, the newest request goes first,
+ * since the views bound last are the ones on screen now; prefetches go in the order they were
+ * asked for.
+ * <p>
+ * Requests for the same activity share one load, which runs in the best lane any of them is
+ * in. Giving a request a tag (usually the view it's for) cancels the tag's previous request,
+ * so a view that gets rebound stops waiting for the icon it no longer shows. A load that
+ * nobody waits for any more is dropped if it hasn't started yet.
+ * <p>
+ * Loads run on the worker executor, never more than a fixed number at once, and icons are
+ * delivered on the delivery executor (usually the main thread). All methods can be called from
+ * any thread.
+ */
+public class IconLoadScheduler {
+	public static final int PRIORITY_VISIBLE = 0;
+	public static final int PRIORITY_NEAR_VISIBLE = 1;
+	public static final int PRIORITY_PREFETCH = 2;
+	private static final int PRIORITY_COUNT = 3;
+
+	private static final int STATE_QUEUED = 0;
+	private static final int STATE_RUNNING = 1;
+	private static final int STATE_DONE = 2;
+
+	private final IconPack iconPack;
+	private final boolean maskFallback;
+	private final Executor workerExecutor;
+	private final Executor deliveryExecutor;
+	private final int maxWorkers;
+
+	// All of the below are guarded by this
+	// per priority; jobs that moved to another lane or were dropped are skipped when polled
+	private final List<ArrayDeque<Job>> lanes = new ArrayList<>(PRIORITY_COUNT);
+	// queued and running jobs, by component
+	private final Map<String, Job> jobs = new HashMap<>();
+	private final Map<Object, Request> requestsByTag = new HashMap<>();
+	private int queuedCount;
+	private int activeWorkers;
+
+	private final Runnable worker = new Runnable() {
+		@Override
+		public void run() {
+			work();
+		}
+	};
+
+	/**
+	 * Runs up to {@link #getDefaultWorkerCount()} loads at once.
+	 *
+	 * @see #IconLoadScheduler(IconPack, boolean, Executor, Executor, int)
+	 */
+	public IconLoadScheduler(final IconPack iconPack, final boolean maskFallback,
+							 final Executor workerExecutor, final Executor deliveryExecutor) {
+		this(iconPack, maskFallback, workerExecutor, deliveryExecutor, getDefaultWorkerCount());
+	}
+
+	/**
+	 * @param iconPack         - its appfilter must be loaded before icons are requested
+	 * @param maskFallback     - as in {@link IconPack#getDefaultIconForPackage(ResolveInfo, boolean)}
+	 * @param workerExecutor   - runs the loads; should have at least maxWorkers threads, preferably
+	 *                         with background priority
+	 * @param deliveryExecutor - calls the callbacks
+	 * @param maxWorkers       - most loads that run at the same time
+	 */
+	public IconLoadScheduler(final IconPack iconPack, final boolean maskFallback,
+							 final Executor workerExecutor, final Executor deliveryExecutor,
+							 final int maxWorkers) {
+		if (maxWorkers < 1) {
+			throw new IllegalArgumentException("maxWorkers must be at least 1, was " + maxWorkers);
+		}
+
+		this.iconPack = iconPack;
+		this.maskFallback = maskFallback;
+		this.workerExecutor = workerExecutor;
+		this.deliveryExecutor = deliveryExecutor;
+		this.maxWorkers = maxWorkers;
+
+		for (int i = 0; i < PRIORITY_COUNT; i++) {
+			this.lanes.add(new ArrayDeque<Job>());
+		}
+	}
+
+	/**
+	 * @return one worker per core, leaving one core for the UI thread on devices that have more
+	 * than one
+	 */
+	public static int getDefaultWorkerCount() {
+		return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+	}
+
+	public IconPack getIconPack() {
+		return this.iconPack;
+	}
+
+	/**
+	 * Asks for the icon of an activity.
+	 *
+	 * @param priority - one of the PRIORITY_ constants
+	 * @param tag      - cancels the previous request with the same tag, e.g. the view the icon
+	 *                 is for; may be null
+	 * @param callback - called on the delivery executor, unless the request is cancelled first
+	 * @return handle to cancel or reprioritise the request
+	 */
+	public Request load(final ResolveInfo info, final int priority, final Object tag,
+						final IconPack.IconCallback<ResolveInfo> callback) {
+		checkPriority(priority);
+
+		final ActivityInfo activityInfo = info.activityInfo;
+		final String key = activityInfo.packageName + "/" + activityInfo.name;
+		final Request request = new Request(info, priority, tag, callback);
+
+		synchronized (this) {
+			Job job = this.jobs.get(key);
+
+			if (job == null) {
+				job = new Job(key, info);
+				this.jobs.put(key, job);
+				this.enqueue(job, priority);
+			} else if (job.state == STATE_QUEUED && priority < job.priority) {
+				this.enqueue(job, priority);
+			}
+
+			request.job = job;
+			job.requests.add(request);
+
+			// Only after joining the job, so rebinding a view to the same activity keeps its load
+			if (tag != null) {
+				final Request previous = this.requestsByTag.put(tag, request);
+
+				if (previous != null) {
+					this.cancel(previous);
+				}
+			}
+		}
+
+		this.dispatch();
+
+		return request;
+	}
+
+	/**
+	 * Cancels the pending request with this tag, if there is one.
+	 */
+	public void cancel(final Object tag) {
+		synchronized (this) {
+			final Request request = this.requestsByTag.remove(tag);
+
+			if (request != null) {
+				this.cancel(request);
+			}
+		}
+	}
+
+	/**
+	 * Cancels every pending request, e.g. when the drawer is closed. Loads that are running
+	 * finish, but their icons aren't delivered.
+	 */
+	public void cancelAll() {
+		synchronized (this) {
+			for (final Job job : this.jobs.values()) {
+				for (final Request request : job.requests) {
+					request.cancelled = true;
+				}
+
+				job.requests.clear();
+
+				if (job.state == STATE_QUEUED) {
+					job.state = STATE_DONE;
+				}
+			}
+
+			for (final ArrayDeque<Job> lane : this.lanes) {
+				lane.clear();
+			}
+
+			this.jobs.clear();
+			this.requestsByTag.clear();
+			this.queuedCount = 0;
+		}
+	}
+
+	/**
+	 * @return number of loads waiting for a worker
+	 */
+	public synchronized int getQueuedCount() {
+		return this.queuedCount;
+	}
+
+	private void cancel(final Request request) {
+		request.cancelled = true;
+
+		final Job job = request.job;
+		if (! job.requests.remove(request) || job.state != STATE_QUEUED) {
+			return;
+		}
+
+		if (job.requests.isEmpty()) {
+			// Nobody wants it any more, its lane entry is skipped
+			job.state = STATE_DONE;
+			this.jobs.remove(job.key);
+			this.queuedCount--;
+		} else {
+			// The view that was on screen may have been the only reason it was in a better lane
+			this.enqueue(job, this.getBestPriority(job));
+		}
+	}
+
+	private void setPriority(final Request request, final int priority) {
+		checkPriority(priority);
+
+		synchronized (this) {
+			request.priority = priority;
+
+			final Job job = request.job;
+			if (request.cancelled || job.state != STATE_QUEUED) {
+				return;
+			}
+
+			final int best = this.getBestPriority(job);
+			if (best != job.priority) {
+				this.enqueue(job, best);
+			}
+		}
+
+		this.dispatch();
+	}
+
+	/**
+	 * Puts a new job in its lane, or moves a queued one to another lane.
+	 */
+	private void enqueue(final Job job, final int priority) {
+		if (job.priority < 0) {
+			this.queuedCount++;
+		}
+
+		job.priority = priority;
+
+		if (priority == PRIORITY_PREFETCH) {
+			this.lanes.get(priority).addLast(job);
+		} else {
+			this.lanes.get(priority).addFirst(job);
+		}
+	}
+
+	private int getBestPriority(final Job job) {
+		int best = PRIORITY_COUNT - 1;
+
+		for (final Request request : job.requests) {
+			best = Math.min(best, request.priority);
+		}
+
+		return best;
+	}
+
+	/**
+	 * Starts workers for the queued jobs, as far as the limit allows.
+	 */
+	private void dispatch() {
+		final int start;
+
+		synchronized (this) {
+			start = Math.min(this.queuedCount, this.maxWorkers) - this.activeWorkers;
+
+			if (start <= 0) {
+				return;
+			}
+
+			this.activeWorkers += start;
+		}
+
+		for (int i = 0; i < start; i++) {
+			try {
+				this.workerExecutor.execute(this.worker);
+			} catch (final RejectedExecutionException ex) {
+				ex.printStackTrace();
+
+				synchronized (this) {
+					this.activeWorkers -= start - i;
+				}
+
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Takes jobs until all lanes are empty.
+	 */
+	private void work() {
+		boolean finished = false;
+
+		try {
+			Job job;
+			while ((job = this.next()) != null) {
+				this.run(job);
+			}
+
+			finished = true;
+		} finally {
+			if (! finished) {
+				// Let another worker take over whatever is still queued
+				synchronized (this) {
+					this.activeWorkers--;
+				}
+
+				this.dispatch();
+			}
+		}
+	}
+
+	/**
+	 * @return the next job to run, or null once there are none, in which case the calling worker
+	 * is done
+	 */
+	private synchronized Job next() {
+		for (int priority = 0; priority < PRIORITY_COUNT; priority++) {
+			final ArrayDeque<Job> lane = this.lanes.get(priority);
+			Job job;
+
+			while ((job = lane.pollFirst()) != null) {
+				if (job.state == STATE_QUEUED && job.priority == priority) {
+					job.state = STATE_RUNNING;
+					this.queuedCount--;
+
+					return job;
+				}
+			}
+		}
+
+		this.activeWorkers--;
+
+		return null;
+	}
+
+	private void run(final Job job) {
+		Drawable icon = null;
+
+		try {
+			icon = this.iconPack.getDefaultIconForPackage(job.info, this.maskFallback);
+		} catch (final RuntimeException ex) {
+			ex.printStackTrace();
+		}
+
+		final List<Request> requests;
+
+		synchronized (this) {
+			job.state = STATE_DONE;
+
+			if (this.jobs.get(job.key) == job) {
+				this.jobs.remove(job.key);
+			}
+
+			requests = new ArrayList<>(job.requests);
+			job.requests.clear();
+
+			for (final Request request : requests) {
+				if (request.tag != null && this.requestsByTag.get(request.tag) == request) {
+					this.requestsByTag.remove(request.tag);
+				}
+			}
+		}
+
+		if (requests.isEmpty()) {
+			// Everyone who asked for it was cancelled while it was loading
+			this.iconPack.releaseIcon(icon);
+		} else {
+			this.deliver(requests, icon);
+		}
+	}
+
+	/**
+	 * Every request gets a drawable of its own, so one view releasing or changing its icon
+	 * doesn't affect the others.
+	 */
+	private void deliver(final List<Request> requests, final Drawable icon) {
+		this.deliveryExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final IconPack iconPack = IconLoadScheduler.this.iconPack;
+				final IconPackMetrics metrics = iconPack.getMetrics();
+				final Drawable[] icons = new Drawable[requests.size()];
+				boolean handedOut = false;
+
+				// All made up front, a callback may release its icon right away
+				for (int i = 0; i < icons.length; i++) {
+					if (! requests.get(i).cancelled) {
+						icons[i] = handedOut ? iconPack.duplicateIcon(icon) : icon;
+						handedOut = true;
+					}
+				}
+
+				if (! handedOut) {
+					iconPack.releaseIcon(icon);
+
+					return;
+				}
+
+				for (int i = 0; i < icons.length; i++) {
+					final Request request = requests.get(i);
+
+					// It may have been cancelled while the icon was on its way
+					if (request.cancelled) {
+						iconPack.releaseIcon(icons[i]);
+
+						continue;
+					}
+
+					request.callback.onIconResolved(request.info, icons[i]);
+
+					if (metrics != null) {
+						metrics.onIconDelivered(IconLoadScheduler.this.iconPack.getPackageName(),
+								request.priority, System.nanoTime() - request.requestedAt);
+					}
+				}
+			}
+		});
+	}
+
+	private static void checkPriority(final int priority) {
+		if (priority < 0 || priority >= PRIORITY_COUNT) {
+			throw new IllegalArgumentException("Unknown priority " + priority);
+		}
+	}
+
+	/**
+	 * A pending icon request.
+	 */
+	public class Request {
+		final ResolveInfo info;
+		final Object tag;
+		final IconPack.IconCallback<ResolveInfo> callback;
+		final long requestedAt = System.nanoTime();
+		// guarded by the scheduler
+		int priority;
+		Job job;
+		volatile boolean cancelled;
+
+		Request(final ResolveInfo info, final int priority, final Object tag,
+				final IconPack.IconCallback<ResolveInfo> callback) {
+			this.info = info;
+			this.priority = priority;
+			this.tag = tag;
+			this.callback = callback;
+		}
+
+		/**
+		 * Makes sure the callback isn't called. Cancelling on the delivery executor's thread
+		 * is exact; from other threads, an icon that is already being delivered may still
+		 * arrive.
+		 */
+		public void cancel() {
+			synchronized (IconLoadScheduler.this) {
+				if (this.cancelled) {
+					return;
+				}
+
+				if (this.tag != null && IconLoadScheduler.this.requestsByTag.get(this.tag) == this) {
+					IconLoadScheduler.this.requestsByTag.remove(this.tag);
+				}
+
+				IconLoadScheduler.this.cancel(this);
+			}
+		}
+
+		/**
+		 * Moves the request to another lane, e.g. when a prefetched item scrolls into view.
+		 */
+		public void setPriority(final int priority) {
+			IconLoadScheduler.this.setPriority(this, priority);
+		}
+
+		public boolean isCancelled() {
+			return this.cancelled;
+		}
+	}
+
+	/**
+	 * A single load, shared by all requests for the same activity.
+	 */
+	private static class Job {
+		final String key;
+		final ResolveInfo info;
+		final List<Request> requests = new ArrayList<>(1);
+		int state = STATE_QUEUED;
+		// lane it's queued in; -1 until it's queued
+		int priority = -1;
+
+		Job(final String key, final ResolveInfo info) {
+			this.key = key;
+			this.info = info;
+		}
+	}
+}
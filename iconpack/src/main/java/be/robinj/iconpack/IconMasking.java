@@ -3,43 +3,175 @@ package be.robinj.iconpack;
 import android.graphics.Bitmap;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
+import be.robinj.iconpack.utils.BitmapHelper;
+
 /**
  * Created by nadavfima on 14/05/2017.
+ * <p>
+ * The masking directives of an appfilter and, while they're loaded, their layers. Under memory
+ * pressure the layers can be downsampled or released; released layers are loaded again from
+ * their drawable names the next time an icon is masked, see {@link MemoryGovernor}.
  */
-
 class IconMasking {
 	static final float DEFAULT_FACTOR = 1.0f;
 
-	List<Bitmap> backImages = new ArrayList<Bitmap>();
+	final List<String> backImageNames;
+	final String maskImageName;
+	final String frontImageName;
+	private final float factor;
+
+	// Replaced as a whole, never modified; compositors keep using the layers they were made with
+	List<Bitmap> backImages = Collections.emptyList();
 	Bitmap maskImage = null;
 	Bitmap frontImage = null;
 
-	private float factor = DEFAULT_FACTOR;
+	// guarded by this
+	private boolean loaded;
+	private boolean downsampled;
+
+	/**
+	 * @param maskImageName  - may be null
+	 * @param frontImageName - may be null
+	 * @param factor         - null for {@link #DEFAULT_FACTOR}
+	 */
+	IconMasking(final List<String> backImageNames, final String maskImageName,
+				final String frontImageName, final Float factor) {
+		this.backImageNames = Collections.unmodifiableList(new ArrayList<>(backImageNames));
+		this.maskImageName = maskImageName;
+		this.frontImageName = frontImageName;
+		this.factor = factor != null ? factor : DEFAULT_FACTOR;
+	}
+
+	/**
+	 * @param backImages - the iconback images that could be loaded
+	 * @param maskImage  - may be null
+	 * @param frontImage - may be null
+	 */
+	synchronized void setLayers(final List<Bitmap> backImages, final Bitmap maskImage,
+								final Bitmap frontImage) {
+		this.backImages = Collections.unmodifiableList(new ArrayList<>(backImages));
+		this.maskImage = maskImage;
+		this.frontImage = frontImage;
+		this.loaded = true;
+		this.downsampled = false;
+	}
+
+	/**
+	 * @return whether the layers need to be loaded (again) before they can be drawn
+	 */
+	synchronized boolean isReleased() {
+		return ! this.loaded;
+	}
 
+	/**
+	 * @return whether the layers are smaller than they were loaded at
+	 */
+	synchronized boolean isDownsampled() {
+		return this.downsampled;
+	}
 
-	public void addBackgroundBitmap(final Bitmap iconback) {
-		this.backImages.add(iconback);
+	/**
+	 * Drops the layers; they're only garbage collected once the compositors made with them are
+	 * gone too.
+	 */
+	synchronized void release() {
+		this.backImages = Collections.emptyList();
+		this.maskImage = null;
+		this.frontImage = null;
+		this.loaded = false;
+		this.downsampled = false;
 	}
 
-	public void setMaskBitmap(final Bitmap bitmap) {
-		this.maskImage = bitmap;
+	/**
+	 * Scales all layers down by the same amount, so they still line up, until the largest one
+	 * is at most maxSize.
+	 *
+	 * @return whether any layer got smaller
+	 */
+	synchronized boolean downsample(final int maxSize) {
+		int largest = 0;
+
+		for (final Bitmap backImage : this.backImages) {
+			largest = Math.max(largest, getSize(backImage));
+		}
+
+		largest = Math.max(largest, getSize(this.maskImage));
+		largest = Math.max(largest, getSize(this.frontImage));
+
+		if (! this.loaded || maxSize <= 0 || largest <= maxSize) {
+			return false;
+		}
+
+		final float scale = (float) maxSize / largest;
+		final List<Bitmap> backImages = new ArrayList<>(this.backImages.size());
+
+		for (final Bitmap backImage : this.backImages) {
+			backImages.add(scale(backImage, scale));
+		}
+
+		this.backImages = Collections.unmodifiableList(backImages);
+		this.maskImage = scale(this.maskImage, scale);
+		this.frontImage = scale(this.frontImage, scale);
+		this.downsampled = true;
+
+		return true;
 	}
 
-	public void setFrontBitmap(final Bitmap bitmap) {
-		this.frontImage = bitmap;
+	/**
+	 * @return size of the largest layer, or 0 if none are loaded
+	 */
+	synchronized int getLayerSize() {
+		int largest = Math.max(getSize(this.maskImage), getSize(this.frontImage));
+
+		for (final Bitmap backImage : this.backImages) {
+			largest = Math.max(largest, getSize(backImage));
+		}
+
+		return largest;
 	}
 
-	public void setFactor(final Float factor) {
-		this.factor = factor;
+	/**
+	 * @return memory held by the loaded layers
+	 */
+	synchronized long getBytes() {
+		long bytes = 0;
+
+		for (final Bitmap backImage : this.backImages) {
+			bytes += BitmapHelper.getByteCount(backImage);
+		}
+
+		if (this.maskImage != null) {
+			bytes += BitmapHelper.getByteCount(this.maskImage);
+		}
+
+		if (this.frontImage != null) {
+			bytes += BitmapHelper.getByteCount(this.frontImage);
+		}
+
+		return bytes;
 	}
 
-	public List<Bitmap> getBackgroundImages() {
+	public synchronized List<Bitmap> getBackgroundImages() {
 		return this.backImages;
 	}
 
 	public float getFactor() {
 		return this.factor;
 	}
+
+	private static int getSize(final Bitmap bitmap) {
+		return bitmap != null ? Math.max(bitmap.getWidth(), bitmap.getHeight()) : 0;
+	}
+
+	private static Bitmap scale(final Bitmap bitmap, final float scale) {
+		if (bitmap == null) {
+			return null;
+		}
+
+		return Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)),
+				Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+	}
 }
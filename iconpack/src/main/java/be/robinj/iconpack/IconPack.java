@@ -3,58 +3,106 @@ package be.robinj.iconpack;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.ActivityInfo;
 import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Paint;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.support.annotation.WorkerThread;
 
+import be.robinj.iconpack.atlas.IconAtlas;
+import be.robinj.iconpack.atlas.IconAtlasBuilder;
+import be.robinj.iconpack.cache.BitmapInterner;
+import be.robinj.iconpack.cache.BitmapLruCache;
+import be.robinj.iconpack.cache.DiskIconCache;
+import be.robinj.iconpack.cache.IconCache;
+import be.robinj.iconpack.cache.SharedBitmapDrawable;
+import be.robinj.iconpack.cache.TwoLevelIconCache;
 import be.robinj.iconpack.exceptions.AppFilterNotLoadedException;
+import be.robinj.iconpack.exceptions.DrawablesNotLoadedException;
 import be.robinj.iconpack.exceptions.XMLNotFoundException;
+import be.robinj.iconpack.metrics.IconPackMetrics;
 import be.robinj.iconpack.utils.XmlPullParserGenerator;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UnsupportedEncodingException;
 import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Locale;
+import java.util.Map;
 import java.util.Random;
-
-import be.robinj.iconpack.utils.ResourceHelper;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import be.robinj.iconpack.utils.BitmapDecoder;
+import be.robinj.iconpack.utils.BitmapHelper;
+import be.robinj.iconpack.utils.ResourceIdResolver;
+import be.robinj.iconpack.utils.XmlScanner;
 
 /**
  * Created by nadavfima on 14/05/2017.
  */
 
 public class IconPack {
+	public static final int BACKGROUND_SELECTION_STABLE = 0;
+	public static final int BACKGROUND_SELECTION_RANDOM = 1;
+
+	// Share of the heap the default in-memory icon cache may use
+	private static final int DEFAULT_MEMORY_CACHE_DIVIDER = 16;
+	// Masking layers aren't downsampled any further than this, in pixels
+	private static final int MIN_MASK_LAYER_SIZE = 48;
+
+	private static final byte[] CATEGORY = XmlScanner.name(Constants.CATEGORY);
+	private static final byte[] ITEM = XmlScanner.name(Constants.ITEM);
+	private static final byte[] TITLE = XmlScanner.name(Constants.TITLE);
+	private static final byte[] DRAWABLE = XmlScanner.name(Constants.DRAWABLE);
 
 	private final String packageName;
 	private final WeakReference<Context> contextReference;
 	private final PackageManager packageManager;
 
 	private String title;
-	private Resources resources;
-	private IconMasking masking;
-
-	private HashMap<String, String> appFilterMap = new HashMap<>();
-	private LinkedHashMap<String, ArrayList<IconDrawable>> drawableMap = new LinkedHashMap<>();
-
-	private boolean loadedAppFilter;
-	private boolean loadingAppFilter;
-	private boolean loadedDrawableMap;
-	private BitmapDrawable temporaryDrawable;
+	private volatile Resources resources;
+	private volatile int versionCode;
+	private volatile long lastUpdateTime;
+	private volatile ResourceIdResolver drawableIdResolver;
+	private final Random random = new Random();
+	private volatile int backgroundSelection = BACKGROUND_SELECTION_STABLE;
+	private volatile IconCache iconCache;
+	private volatile int iconSize;
+	private volatile Bitmap.Config bitmapConfig = Bitmap.Config.ARGB_8888;
+	private final BitmapDecoder bitmapDecoder = new BitmapDecoder();
+	private volatile IconPackMetrics metrics;
+	private volatile MemoryGovernor memoryGovernor;
+	private volatile BitmapInterner bitmapInterner;
+
+	// Published once loading has finished; never modified afterwards
+	private volatile AppFilter appFilter;
+	private volatile Map<String, List<IconDrawable>> drawableMap;
+	private volatile DrawableSearchIndex drawableSearchIndex;
+
+	private final Object appFilterLock = new Object();
+	private AppFilterLoad appFilterLoad; // guarded by appFilterLock
 
 	public IconPack(final Context context, final String packageName)
 			throws PackageManager.NameNotFoundException {
@@ -65,408 +113,2049 @@ public class IconPack {
 		this.packageManager = context.getPackageManager();
 
 		this.initIconPack();
+		this.iconCache = this.createDefaultIconCache(context);
 	}
 
 	private void initIconPack() throws PackageManager.NameNotFoundException {
 		final ApplicationInfo appInfo = packageManager.getApplicationInfo(packageName, PackageManager.GET_META_DATA);
 
+		final PackageInfo packageInfo = packageManager.getPackageInfo(packageName, 0);
+
 		this.title = packageManager.getApplicationLabel(appInfo).toString();
 		this.resources = packageManager.getResourcesForApplication(packageName);
+		this.versionCode = packageInfo.versionCode;
+		this.lastUpdateTime = packageInfo.lastUpdateTime;
+	}
+
+	private IconCache createDefaultIconCache(final Context context) {
+		final BitmapLruCache memoryCache = new BitmapLruCache(
+				Runtime.getRuntime().maxMemory() / DEFAULT_MEMORY_CACHE_DIVIDER);
+		final File directory = new File(new File(new File(context.getCacheDir(),
+				Constants.INDEX_DIRECTORY), Constants.ICON_CACHE_DIRECTORY), this.packageName);
+
+		memoryCache.setEvictionListener(new BitmapLruCache.EvictionListener() {
+			@Override
+			public void onEvicted(final String key, final int bytes) {
+				final IconPackMetrics metrics = IconPack.this.metrics;
+
+				if (metrics != null) {
+					metrics.onCacheEviction(IconPack.this.packageName, key, bytes);
+				}
+			}
+		});
+
+		return new TwoLevelIconCache(memoryCache, new DiskIconCache(directory, this.getVersion()));
 	}
 
 	/**
-	 * @return Icon Pack's title as a @{@link String}
+	 * @return Identifies the installed build of the icon pack; changes whenever it gets updated
 	 */
-	public String getTitle() {
-		return this.title;
+	public String getVersion() {
+		return this.versionCode + "-" + this.lastUpdateTime;
 	}
 
 	/**
-	 * Returns a @{@link Resources} object that contains the Icon Pack's resources (drawables and everything)
-	 * <p>
-	 * You basically don't really need that.
+	 * Replaces the cache that decoded icons are kept in.
+	 * By default icons are cached in memory and on disk.
 	 *
-	 * @return
+	 * @param iconCache - pass null to disable caching
 	 */
-	public Resources getResources() {
-		return this.resources;
+	public void setIconCache(final IconCache iconCache) {
+		this.iconCache = iconCache;
 	}
 
 	/**
-	 * Parsing the AppFilter.XML file.
+	 * @return the cache decoded icons are kept in; use it to look at hit and miss counts
+	 */
+	public IconCache getIconCache() {
+		return this.iconCache;
+	}
+
+	/**
+	 * Sets the size (in pixels) icons should be returned at.
+	 * Icons are cached at this size, so they only need to be decoded and scaled once.
+	 * Masking layers are decoded at the size that was set when the appfilter was loaded (or
+	 * when they're loaded again after a {@link MemoryGovernor} released them).
 	 *
-	 * @param initMasking
+	 * @param iconSize - 0 to return icons at the size they are in the icon pack
 	 */
-	public void initAppFilter(final boolean initMasking)
-			throws IOException, XmlPullParserException {
-		this.loadingAppFilter = true;
+	public void setIconSize(final int iconSize) {
+		this.iconSize = iconSize;
+	}
 
-		final XmlPullParser parser = XmlPullParserGenerator.getXmlPullParser(
-				this.resources, this.packageName, Constants.FILE_APPFILTER);
+	public int getIconSize() {
+		return this.iconSize;
+	}
 
-		this.onLoadAppFilter(parser, initMasking);
-		this.loadedAppFilter = true;
+	/**
+	 * Sets the config icons are decoded to. Masking layers are always decoded to
+	 * {@link Bitmap.Config#ARGB_8888}, since they need to be drawn in software.
+	 *
+	 * @param bitmapConfig - e.g. {@link Bitmap.Config#RGB_565} to halve the memory used by icons
+	 *                     at the cost of transparency, or {@link BitmapDecoder#HARDWARE} (when
+	 *                     it isn't null) for icons that are only ever drawn to the screen
+	 */
+	public void setBitmapConfig(final Bitmap.Config bitmapConfig) {
+		this.bitmapConfig = bitmapConfig != null ? bitmapConfig : Bitmap.Config.ARGB_8888;
+	}
 
-		this.loadingAppFilter = false;
+	public Bitmap.Config getBitmapConfig() {
+		return this.bitmapConfig;
 	}
 
 	/**
-	 * Parse the Dawable.XML file.
+	 * @param metrics - told where time goes while loading and resolving icons, e.g. a
+	 *                {@link be.robinj.iconpack.metrics.MetricsRecorder}; null to stop measuring
 	 */
-	private void initDrawableMap() throws XmlPullParserException, IOException {
-		final XmlPullParser parser = this.getDrawableXmlPullParser();
-
-		this.onLoadDrawableMap(parser);
+	public void setMetrics(final IconPackMetrics metrics) {
+		this.metrics = metrics;
+	}
 
-		this.loadedDrawableMap = true;
+	public IconPackMetrics getMetrics() {
+		return this.metrics;
 	}
 
 	/**
-	 * @return - @{@link XmlPullParser} of the drawable.xml from the icon pack
-	 * @throws XMLNotFoundException
-	 * @throws XmlPullParserException
+	 * Puts the memory held by this icon pack's masking layers and in-memory icon cache under a
+	 * governor, which is told every time masking layers get loaded.
+	 *
+	 * @param memoryGovernor - may be shared by several icon packs; null to stop governing
 	 */
-	public XmlPullParser getDrawableXmlPullParser() throws XMLNotFoundException, XmlPullParserException {
-		return XmlPullParserGenerator.getXmlPullParser(this.resources, this.packageName,
-				Constants.FILE_DRAWABLE);
+	public void setMemoryGovernor(final MemoryGovernor memoryGovernor) {
+		final MemoryGovernor previous = this.memoryGovernor;
+		this.memoryGovernor = memoryGovernor;
+
+		if (previous != null && previous != memoryGovernor) {
+			previous.unregister(this);
+		}
+
+		if (memoryGovernor != null) {
+			memoryGovernor.register(this);
+		}
+	}
+
+	public MemoryGovernor getMemoryGovernor() {
+		return this.memoryGovernor;
 	}
 
 	/**
-	 * @param drawableName
-	 * @return - specific Drawable Icon, not necessarily found in the appfilter.xml
+	 * Shares the bitmaps of icon pack drawables between everyone that shows them: while a
+	 * drawable is in use at some size, loading it again at that size gives the same bitmap
+	 * instead of decoding (or keeping) it again.
+	 * <p>
+	 * With an interner, icons loaded from the icon pack are {@link SharedBitmapDrawable}s. Hand
+	 * every icon back through {@link #releaseIcon(Drawable)} once it isn't shown anymore.
+	 *
+	 * @param bitmapInterner - may be shared by several icon packs; null to stop interning
 	 */
-	public Drawable getDrawableIconForName(final String drawableName) {
-		return this.loadDrawable(drawableName);
+	public void setBitmapInterner(final BitmapInterner bitmapInterner) {
+		this.bitmapInterner = bitmapInterner;
 	}
 
+	public BitmapInterner getBitmapInterner() {
+		return this.bitmapInterner;
+	}
 
 	/**
-	 * This method will first try to look up the icon in the AppFilterMap.
-	 * If no icon is found in the AppFilter, a masked icon will be generated for this app.
+	 * @return Icon Pack's title as a @{@link String}
+	 */
+	public String getTitle() {
+		return this.title;
+	}
+
+	/**
+	 * Returns a @{@link Resources} object that contains the Icon Pack's resources (drawables and everything)
+	 * <p>
+	 * You basically don't really need that.
 	 *
-	 * @param context
-	 * @param componentName
-	 * @param maskFallback
 	 * @return
 	 */
-	public Drawable getDefaultIconForPackage(final Context context,
-											 final ComponentName componentName,
-											 final boolean maskFallback) {
-		final Intent intent = new Intent();
-		intent.setComponent(componentName);
-		final List<ResolveInfo> activites = context.getPackageManager()
-				.queryIntentActivities(intent, PackageManager.GET_META_DATA);
+	public Resources getResources() {
+		return this.resources;
+	}
 
-		if (activites.size() == 0) {
-			return null;
-		}
+	/**
+	 * Parsing the AppFilter.XML file.
+	 * <p>
+	 * The parsed result is kept in a binary index in the cache directory. As long as the icon
+	 * pack doesn't get updated, subsequent calls load that index instead of parsing the XML.
+	 * <p>
+	 * Safe to call from several threads at once: the appfilter is only loaded once, and every
+	 * caller waits for that single load to finish.
+	 *
+	 * @param initMasking
+	 */
+	@WorkerThread
+	public void initAppFilter(final boolean initMasking)
+			throws IOException, XmlPullParserException {
+		// Does nothing if another thread is already running (or has run) the same load
+		this.runAppFilterLoad(this.getAppFilterLoad(initMasking));
+	}
+
+	private void runAppFilterLoad(final AppFilterLoad load)
+			throws IOException, XmlPullParserException {
+		load.run();
+
+		try {
+			load.get();
+		} catch (final InterruptedException ex) {
+			Thread.currentThread().interrupt();
+
+			throw new InterruptedIOException();
+		} catch (final ExecutionException ex) {
+			final Throwable cause = ex.getCause();
+
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof XmlPullParserException) {
+				throw (XmlPullParserException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
 
-		return this.getDefaultIconForPackage(activites.get(0), maskFallback);
+			throw new RuntimeException(cause);
+		}
 	}
 
 	/**
-	 * This method will first try to look up the icon in the AppFilterMap.
-	 * If no icon is found in the AppFilter, a masked icon will be generated for this app.
+	 * Loads the appfilter on the given executor.
+	 * <p>
+	 * Concurrent callers share a single load: as long as it is running (or once it has
+	 * succeeded), every call returns the same {@link Future}. A load that failed is retried on
+	 * the next call.
 	 *
-	 * @param info
-	 * @param maskFallback
-	 * @return
+	 * @param executor
+	 * @param initMasking
+	 * @param listener    - called on the executor's thread once loading has finished; may be null
+	 * @return - completes with this icon pack once the appfilter has been loaded
 	 */
-	public Drawable getDefaultIconForPackage(final ResolveInfo info, final boolean maskFallback) {
-		if (! this.loadedAppFilter) {
-			throw new AppFilterNotLoadedException();
+	public Future<IconPack> initAppFilterAsync(final Executor executor, final boolean initMasking,
+											   final OnAppFilterLoadedListener listener) {
+		final AppFilterLoad load = this.getAppFilterLoad(initMasking);
+
+		if (listener != null) {
+			load.addListener(listener);
 		}
 
-		final String appPackageName = info.activityInfo.packageName;
-		final Drawable defaultIcon = info.loadIcon(this.packageManager);
+		if (load.markSubmitted()) {
+			executor.execute(load);
+		}
+
+		return load;
+	}
 
-		final Intent launchIntent = this.packageManager.getLaunchIntentForPackage(appPackageName);
+	/**
+	 * Brings this icon pack up to date after the icon pack app got updated, without starting
+	 * over: the appfilter is parsed again and compared to the one that was loaded. Cached icons
+	 * are all thrown away, on disk as well as in memory; an update may have new artwork under any
+	 * existing drawable name, and the resources of the previous version can no longer be read to
+	 * tell which ones changed. Icons that were already handed out keep their artwork until they
+	 * are loaded again, so reload the ones the returned diff affects first.
+	 * <p>
+	 * Does nothing to the appfilter if it wasn't loaded yet. The drawable map is parsed again if
+	 * it was loaded. Icons resolved while refreshing may come from either version.
+	 *
+	 * @return what changed in the appfilter, so only the affected icons need to be reloaded
+	 */
+	@WorkerThread
+	public synchronized AppFilterDiff refresh()
+			throws PackageManager.NameNotFoundException, IOException, XmlPullParserException {
+		final AppFilter previous = this.appFilter;
 
-		String componentName = null;
-		if (launchIntent != null) {
-			componentName = this.packageManager.getLaunchIntentForPackage(appPackageName)
-					.getComponent().toString();
-		}
+		// Resource IDs can change between versions
+		this.initIconPack();
+		this.drawableIdResolver = null;
 
-		String drawableName = this.appFilterMap.get(componentName);
+		AppFilterDiff diff = AppFilterDiff.empty();
 
-		if (drawableName != null) {
-			final Drawable drawable = this.loadDrawable(drawableName);
+		if (previous != null) {
+			final AppFilterLoad load = new AppFilterLoad(previous.maskingLoaded);
 
-			if (drawable != null) {
-				return drawable;
-			} else if (maskFallback) {
-				return this.generateMaskedIcon(defaultIcon);
+			synchronized (this.appFilterLock) {
+				this.appFilterLoad = load;
 			}
 
-			return defaultIcon;
+			this.runAppFilterLoad(load);
+
+			final AppFilter current = this.requireAppFilter();
+			final Map<String, String> previousComponents = previous.getComponents();
+			final Map<String, String> currentComponents = current.getComponents();
+			final boolean maskingChanged = previous.maskingIdentity != null
+					&& ! previous.maskingIdentity.equals(current.maskingIdentity);
+
+			diff = AppFilterDiff.compute(previousComponents, currentComponents, maskingChanged);
 		}
 
-		// not found
-		// try to get a resource with the component filename
-		if (componentName != null) {
-			int start = componentName.indexOf("{") + 1;
-			int end = componentName.indexOf("}", start);
-			if (end > start) {
-				drawableName = componentName.substring(start, end).toLowerCase(Locale.getDefault())
-						.replace(".", "_").replace("/", "_");
+		final IconCache cache = this.iconCache;
+		if (cache != null) {
+			cache.clear();
+		}
 
-				if (ResourceHelper.getDrawableResourceId(resources, drawableName, packageName) > 0)
-					return this.loadDrawable(drawableName);
-			}
+		if (cache instanceof TwoLevelIconCache
+				&& ((TwoLevelIconCache) cache).getDiskCache() instanceof DiskIconCache) {
+			((DiskIconCache) ((TwoLevelIconCache) cache).getDiskCache()).setVersion(this.getVersion());
+		} else if (cache instanceof DiskIconCache) {
+			((DiskIconCache) cache).setVersion(this.getVersion());
 		}
 
-		if (maskFallback && masking != null) {
-			return this.generateMaskedIcon(defaultIcon);
+		if (this.drawableMap != null) {
+			this.initDrawableMap();
 		}
 
-		return defaultIcon;
+		return diff;
 	}
 
-	private void onLoadDrawableMap(final XmlPullParser parser)
-			throws XmlPullParserException, IOException {
-		int eventType = parser.getEventType();
-		String currentTitle = "";
-
-		while (eventType != XmlPullParser.END_DOCUMENT) {
-			if (eventType == XmlPullParser.START_TAG) {
-				if (Constants.CATEGORY.equals(parser.getName())) {
-					currentTitle = onAddCategoryToMap(
-							parser.getAttributeValue(null, Constants.TITLE));
-				} else if (Constants.ITEM.equals(parser.getName())) {
-					final String name = parser.getAttributeValue(null, Constants.DRAWABLE);
+	private AppFilterLoad getAppFilterLoad(final boolean initMasking) {
+		synchronized (this.appFilterLock) {
+			final AppFilterLoad load = this.appFilterLoad;
 
-					this.onAddIconToCategory(currentTitle, name);
-				}
+			if (load == null || load.hasFailed() || (initMasking && ! load.initMasking)) {
+				this.appFilterLoad = new AppFilterLoad(initMasking);
 			}
 
-			eventType = parser.next();
+			return this.appFilterLoad;
 		}
 	}
 
-	private void onAddIconToCategory(final String currentTitle, final String name) {
-		final int id = ResourceHelper.getDrawableResourceId(resources, name, packageName);
+	@WorkerThread
+	private void loadAppFilter(final boolean initMasking)
+			throws IOException, XmlPullParserException {
+		final AppFilterIndex index = this.getAppFilterIndex();
 
-		if (id > 0) {
-			final IconDrawable icon = new IconDrawable(name, id);
-			icon.setTitle(IconDrawable.replaceName(this.contextReference.get(),
-					true, icon.getDrawableName()));
-			this.drawableMap.get(currentTitle).add(icon);
+		final AppFilter appFilter;
+		if (initMasking) {
+			appFilter = new AppFilter(index.components, this.onLoadMask(index),
+					getMaskingIdentity(index), true);
+		} else {
+			appFilter = new AppFilter(index.components, null, null, false);
 		}
-	}
 
-	private String onAddCategoryToMap(final String title) {
-		if (title != null && title.length() > 0) {
-			this.drawableMap.put(title, new ArrayList<IconDrawable>());
+		synchronized (this.appFilterLock) {
+			final AppFilter current = this.appFilter;
 
-			return title;
+			// A load without masking that finishes late mustn't throw away loaded masking
+			if (appFilter.maskingLoaded || current == null || ! current.maskingLoaded) {
+				this.appFilter = appFilter;
+			}
 		}
 
-		return "";
+		this.onMaskLayersLoaded(appFilter.masking);
 	}
 
-	private void onLoadAppFilter(final XmlPullParser parser, final boolean initMasking)
-			throws XmlPullParserException, IOException {
-		if (parser != null) {
-			int eventType = parser.getEventType();
+	/**
+	 * @return the persisted appfilter index if it's still valid, otherwise a freshly parsed one
+	 */
+	@WorkerThread
+	private AppFilterIndex getAppFilterIndex() throws IOException, XmlPullParserException {
+		final AppFilterIndex.Key key = this.getAppFilterIndexKey();
+		final File indexFile = this.getAppFilterIndexFile();
 
-			while (eventType != XmlPullParser.END_DOCUMENT) {
-				if (eventType == XmlPullParser.START_TAG) {
-					if (initMasking) {
-						this.onLoadMask(parser);
-					}
+		final IconPackMetrics metrics = this.metrics;
+		long start = metrics != null ? System.nanoTime() : 0;
+		AppFilterIndex index = this.readAppFilterIndex(indexFile, key);
 
-					if (Constants.ITEM.equals(parser.getName())) {
-						this.onLoadAppFilter(parser);
-					}
-				}
+		if (index != null && metrics != null) {
+			metrics.onAppFilterIndexRead(this.packageName, index.components.size(),
+					System.nanoTime() - start);
+		}
 
-				eventType = parser.next();
+		if (index == null) {
+			final byte[] asset = this.readXmlAsset(Constants.FILE_APPFILTER, metrics);
+
+			start = metrics != null ? System.nanoTime() : 0;
+			index = asset != null ? scanAppFilter(asset)
+					: AppFilterIndex.parse(this.getXmlPullParser(Constants.FILE_APPFILTER, metrics));
+
+			if (metrics != null) {
+				metrics.onXmlParsed(this.packageName, Constants.FILE_APPFILTER,
+						index.components.size(), System.nanoTime() - start);
 			}
+
+			this.writeAppFilterIndex(index, indexFile, key);
 		}
+
+		return index;
 	}
 
-	private void onLoadAppFilter(final XmlPullParser parser) {
-		String componentName = null;
-		String drawableName = null;
+	private static AppFilterIndex scanAppFilter(final byte[] asset)
+			throws IOException, XmlPullParserException {
+		try {
+			return AppFilterIndex.scan(new XmlScanner(asset));
+		} catch (final XmlPullParserException ex) {
+			ex.printStackTrace();
 
-		for (int i = 0; i < parser.getAttributeCount(); i++) {
-			if (parser.getAttributeName(i).equals(Constants.COMPONENT)) {
-				componentName = parser.getAttributeValue(i);
-			} else if (parser.getAttributeName(i).equals(Constants.DRAWABLE)) {
-				drawableName = parser.getAttributeValue(i);
-			}
+			return AppFilterIndex.parse(XmlPullParserGenerator.newPullParser(asset));
+		}
+	}
+
+	/**
+	 * Plain text XML in the assets is read in one go so it can be scanned instead of parsed, see
+	 * {@link XmlScanner}. Compiled XML resources are already cheap to parse.
+	 *
+	 * @return contents of the file in the assets, or null if it's an XML resource
+	 */
+	private byte[] readXmlAsset(final String file, final IconPackMetrics metrics)
+			throws XMLNotFoundException {
+		if (XmlPullParserGenerator.getXmlResourceId(this.resources, this.packageName, file) > 0) {
+			return null;
 		}
 
-		if (! this.appFilterMap.containsKey(componentName)) {
-			this.appFilterMap.put(componentName, drawableName);
+		final long start = metrics != null ? System.nanoTime() : 0;
+		final byte[] asset = XmlPullParserGenerator.readXmlAsset(this.resources, file);
+
+		if (metrics != null) {
+			metrics.onXmlOpened(this.packageName, file, true, System.nanoTime() - start);
 		}
+
+		return asset;
 	}
 
-	@WorkerThread
-	private void onLoadMask(final XmlPullParser parser) {
-		if (Constants.BACKGROUND.equals(parser.getName())) {
-			for (int i = 0; i < parser.getAttributeCount(); i++) {
-				if (parser.getAttributeName(i).startsWith(Constants.BACKGROUND_IMG)) {
-					final String drawableName = parser.getAttributeValue(i);
-
-					this.temporaryDrawable = this.loadDrawable(drawableName);
-					if (this.temporaryDrawable != null) {
-						final Bitmap iconback = this.temporaryDrawable.getBitmap();
-
-						if (iconback != null) {
-							if (this.masking == null) {
-								this.masking = new IconMasking();
-							}
+	private XmlPullParser getXmlPullParser(final String file, final IconPackMetrics metrics)
+			throws XMLNotFoundException, XmlPullParserException {
+		return XmlPullParserGenerator.getXmlPullParser(this.resources, this.packageName, file, metrics);
+	}
 
-							this.masking.addBackgroundBitmap(iconback);
-						}
-					}
-				}
-			}
-		} else if (Constants.MASK.equals(parser.getName())) {
-			if (parser.getAttributeCount() > 0
-					&& Constants.IMG_1_VALUE.equals(parser.getAttributeName(0))) {
-				final String drawableName = parser.getAttributeValue(0);
+	private AppFilterIndex.Key getAppFilterIndexKey() {
+		return new AppFilterIndex.Key(this.packageName, this.versionCode, this.lastUpdateTime);
+	}
 
-				if (this.masking == null) {
-					this.masking = new IconMasking();
-				}
+	private File getAppFilterIndexFile() {
+		final Context context = this.contextReference.get();
 
-				this.temporaryDrawable = loadDrawable(drawableName);
-				if (this.temporaryDrawable != null) {
-					this.masking.setMaskBitmap(this.temporaryDrawable.getBitmap());
-				}
-			}
-		} else if (Constants.FRONT.equals(parser.getName())) {
-			if (parser.getAttributeCount() > 0
-					&& Constants.IMG_1_VALUE.equals(parser.getAttributeName(0))) {
-				final String drawableName = parser.getAttributeValue(0);
+		if (context == null) {
+			return null;
+		}
 
-				if (this.masking == null) {
-					this.masking = new IconMasking();
-				}
+		return new File(new File(context.getCacheDir(), Constants.INDEX_DIRECTORY),
+				this.packageName + Constants.EXT_APPFILTER_INDEX);
+	}
 
-				this.temporaryDrawable = this.loadDrawable(drawableName);
+	private AppFilterIndex readAppFilterIndex(final File indexFile, final AppFilterIndex.Key key) {
+		if (indexFile == null) {
+			return null;
+		}
 
-				if (this.temporaryDrawable != null) {
-					this.masking.setFrontBitmap(this.temporaryDrawable.getBitmap());
-				}
-			}
-		} else if (Constants.SCALE.equals(parser.getName())) {
-			// mFactor
-			if (parser.getAttributeCount() > 0
-					&& Constants.FACTOR.equals(parser.getAttributeName(0))) {
+		try {
+			return AppFilterIndex.read(indexFile, key);
+		} catch (final IOException ex) {
+			ex.printStackTrace();
 
-				if (this.masking == null) {
-					this.masking = new IconMasking();
-				}
+			indexFile.delete();
+		}
 
-				float factor = IconMasking.DEFAULT_FACTOR;
+		return null;
+	}
 
-				try {
-					factor = Float.parseFloat(parser.getAttributeValue(0));
-				} catch (final NumberFormatException ex) {
-					ex.printStackTrace();
-				}
+	private void writeAppFilterIndex(final AppFilterIndex index, final File indexFile,
+									 final AppFilterIndex.Key key) {
+		if (indexFile == null) {
+			return;
+		}
 
-				this.masking.setFactor(factor);
-			}
+		try {
+			index.write(indexFile, key);
+		} catch (final IOException ex) {
+			ex.printStackTrace();
 		}
 	}
 
+	/**
+	 * Exports the resolved appfilter (component to drawable name and resource ID), the masking
+	 * directives and the drawable.xml categories to a memory-mapped file that every process of
+	 * the app can read through {@link #openSharedIndex(Context, String)}, so only one of them has
+	 * to parse the icon pack. Loads the drawable map if it isn't loaded yet.
+	 * <p>
+	 * Export again after {@link #refresh()}; an index of an older version of the icon pack is
+	 * never opened.
+	 *
+	 * @return the exported file
+	 */
 	@WorkerThread
-	private BitmapDrawable loadDrawable(final String drawableName) {
-		final int id = ResourceHelper.getDrawableResourceId(resources, drawableName, packageName);
+	public synchronized File exportSharedIndex() throws IOException, XmlPullParserException {
+		final File file = getSharedIndexFile(this.contextReference.get(), this.packageName);
 
-		if (id <= 0) {
-			return null;
+		if (file == null) {
+			throw new IOException("No context to export the shared index to");
 		}
 
-		if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.LOLLIPOP) {
-			return (BitmapDrawable) this.resources.getDrawable(id);
+		if (this.drawableMap == null) {
+			this.initDrawableMap();
 		}
 
-		return (BitmapDrawable) this.resources.getDrawable(id, this.contextReference.get().getTheme());
+		SharedIconIndex.write(file, this.getAppFilterIndexKey(), this.getAppFilterIndex(),
+				this.drawableMap, this.getDrawableIdResolver());
+
+		return file;
 	}
 
-	private Drawable generateMaskedIcon(final Drawable defaultIcon) {
-		final Bitmap defaultBitmap = ((BitmapDrawable) defaultIcon).getBitmap();
+	/**
+	 * Opens the index {@link #exportSharedIndex()} exported, from any process.
+	 *
+	 * @return the index, or null if none was exported or if the icon pack changed since
+	 */
+	@WorkerThread
+	public static SharedIconIndex openSharedIndex(final Context context, final String packageName) {
+		final File file = getSharedIndexFile(context, packageName);
+
+		if (! file.isFile()) {
+			return null;
+		}
 
-		// if no support images in the icon pack return the bitmap itself
-		final List<Bitmap> backgroundImages = masking.getBackgroundImages();
+		try {
+			final PackageInfo packageInfo = context.getPackageManager().getPackageInfo(packageName, 0);
+			final SharedIconIndex index = SharedIconIndex.open(file);
 
-		if (backgroundImages.size() == 0) {
-			return defaultIcon;
+			if (index.matches(new AppFilterIndex.Key(packageName, packageInfo.versionCode,
+					packageInfo.lastUpdateTime))) {
+				return index;
+			}
+		} catch (final PackageManager.NameNotFoundException | IOException ex) {
+			ex.printStackTrace();
 		}
 
-		final Random random = new Random();
-		final int backImageInd = random.nextInt(backgroundImages.size());
-		final Bitmap backImage = backgroundImages.get(backImageInd);
-		final int w = backImage.getWidth();
-		final int h = backImage.getHeight();
+		file.delete();
 
-		// create a bitmap for the result
-		final Bitmap result = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-		final Canvas canvas = new Canvas(result);
+		return null;
+	}
 
-		// draw the background first
-		canvas.drawBitmap(backImage, 0, 0, null);
+	private static File getSharedIndexFile(final Context context, final String packageName) {
+		if (context == null) {
+			return null;
+		}
 
-		// create a mutable mask bitmap with the same mask
-		final Bitmap scaledBitmap;
-		if (defaultBitmap.getWidth() > w || defaultBitmap.getHeight() > h) {
-			final float factor = masking.getFactor();
+		return new File(new File(context.getCacheDir(), Constants.INDEX_DIRECTORY),
+				packageName + Constants.EXT_SHARED_INDEX);
+	}
 
-			scaledBitmap = Bitmap.createScaledBitmap(
-					defaultBitmap,(int) (w * factor), (int) (h * factor), false);
+	/**
+	 * Parse the Dawable.XML file.
+	 * <p>
+	 * Titles are only generated when they're first asked for, see {@link IconDrawable#getTitle()}.
+	 */
+	@WorkerThread
+	public synchronized void initDrawableMap() throws XmlPullParserException, IOException {
+		final IconPackMetrics metrics = this.metrics;
+		final byte[] asset = this.readXmlAsset(Constants.FILE_DRAWABLE, metrics);
+		final LinkedHashMap<String, List<IconDrawable>> drawableMap = new LinkedHashMap<>();
+
+		final Context context = this.contextReference.get();
+		final TitleGenerator titleGenerator = context != null
+				? TitleGenerator.getDefault(context.getResources())
+				: TitleGenerator.withoutRules();
+
+		final ResourceIdResolver resolver = this.getDrawableIdResolver();
+		final long start = metrics != null ? System.nanoTime() : 0;
+
+		if (asset == null) {
+			onLoadDrawableMap(this.getXmlPullParser(Constants.FILE_DRAWABLE, metrics), drawableMap,
+					resolver, titleGenerator);
 		} else {
-			scaledBitmap = Bitmap.createBitmap(defaultBitmap);
+			try {
+				onLoadDrawableMap(new XmlScanner(asset), drawableMap, resolver, titleGenerator);
+			} catch (final XmlPullParserException ex) {
+				ex.printStackTrace();
+
+				drawableMap.clear();
+				onLoadDrawableMap(XmlPullParserGenerator.newPullParser(asset), drawableMap,
+						resolver, titleGenerator);
+			}
 		}
 
-		if (this.masking.maskImage != null) {
-			// draw the scaled bitmap with mask
-			final Bitmap mutableMask = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-			final Canvas maskCanvas = new Canvas(mutableMask);
-			maskCanvas.drawBitmap(masking.maskImage, 0, 0, new Paint());
+		if (metrics != null) {
+			int entries = 0;
+			for (final List<IconDrawable> category : drawableMap.values()) {
+				entries += category.size();
+			}
 
-			// paint the bitmap with mask into the result
-			final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
-			paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
-			canvas.drawBitmap(scaledBitmap, (w - scaledBitmap.getWidth()) / 2, (h - scaledBitmap.getHeight()) / 2, null);
-			canvas.drawBitmap(mutableMask, 0, 0, paint);
-			paint.setXfermode(null);
-		} else {
-			// draw the scaled bitmap with the back image as mask
-			final Bitmap mutableMask = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-			final Canvas maskCanvas = new Canvas(mutableMask);
-			maskCanvas.drawBitmap(backImage, 0, 0, new Paint());
+			metrics.onXmlParsed(this.packageName, Constants.FILE_DRAWABLE, entries,
+					System.nanoTime() - start);
+		}
 
-			// paint the bitmap with mask into the result
-			final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
-			paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_IN));
-			canvas.drawBitmap(scaledBitmap, (w - scaledBitmap.getWidth()) / 2, (h - scaledBitmap.getHeight()) / 2, null);
-			canvas.drawBitmap(mutableMask, 0, 0, paint);
-			paint.setXfermode(null);
+		for (final Map.Entry<String, List<IconDrawable>> entry : drawableMap.entrySet()) {
+			entry.setValue(Collections.unmodifiableList(entry.getValue()));
 		}
 
-		if (this.masking.frontImage != null) {
-			// paint the front
-			canvas.drawBitmap(this.masking.frontImage, 0, 0, null);
+		this.drawableSearchIndex = null;
+		this.drawableMap = Collections.unmodifiableMap(drawableMap);
+	}
+
+	/**
+	 * @return all drawables listed in the drawable.xml, per category, in the order they're listed
+	 * @throws DrawablesNotLoadedException if {@link #initDrawableMap()} hasn't been called
+	 */
+	public Map<String, List<IconDrawable>> getDrawableMap() {
+		final Map<String, List<IconDrawable>> drawableMap = this.drawableMap;
+
+		if (drawableMap == null) {
+			throw new DrawablesNotLoadedException();
 		}
 
-		return new BitmapDrawable(this.resources, result);
+		return drawableMap;
 	}
 
-	public String getPackageName() {
-		return this.packageName;
+	/**
+	 * The index is built (and all titles generated) the first time it's asked for; icon pickers
+	 * can call this ahead of time on a background thread.
+	 *
+	 * @return index to search the drawables listed in the drawable.xml by name or title
+	 * @throws DrawablesNotLoadedException if {@link #initDrawableMap()} hasn't been called
+	 */
+	public DrawableSearchIndex getDrawableSearchIndex() {
+		DrawableSearchIndex searchIndex = this.drawableSearchIndex;
+
+		if (searchIndex == null) {
+			synchronized (this) {
+				searchIndex = this.drawableSearchIndex;
+
+				if (searchIndex == null) {
+					final DrawableSearchIndex.Builder builder = new DrawableSearchIndex.Builder();
+
+					for (final List<IconDrawable> category : this.getDrawableMap().values()) {
+						for (final IconDrawable icon : category) {
+							builder.add(icon);
+						}
+					}
+
+					searchIndex = builder.build();
+					this.drawableSearchIndex = searchIndex;
+				}
+			}
+		}
+
+		return searchIndex;
 	}
 
-	public boolean isAppFilterLoaded() {
-		return this.loadedAppFilter;
+	public boolean isDrawableMapLoaded() {
+		return this.drawableMap != null;
 	}
 
-	public boolean isLoadingAppFilter() {
-		return this.loadingAppFilter;
+	/**
+	 * @return - @{@link XmlPullParser} of the drawable.xml from the icon pack
+	 * @throws XMLNotFoundException
+	 * @throws XmlPullParserException
+	 */
+	public XmlPullParser getDrawableXmlPullParser() throws XMLNotFoundException, XmlPullParserException {
+		return XmlPullParserGenerator.getXmlPullParser(this.resources, this.packageName,
+				Constants.FILE_DRAWABLE, this.metrics);
+	}
+
+	/**
+	 * @param drawableName
+	 * @return - specific Drawable Icon, not necessarily found in the appfilter.xml
+	 */
+	public Drawable getDrawableIconForName(final String drawableName) {
+		return this.loadIcon(drawableName, null);
+	}
+
+
+	/**
+	 * This method will first try to look up the icon in the AppFilterMap.
+	 * If no icon is found in the AppFilter, a masked icon will be generated for this app.
+	 *
+	 * @param context
+	 * @param componentName
+	 * @param maskFallback
+	 * @return
+	 */
+	public Drawable getDefaultIconForPackage(final Context context,
+											 final ComponentName componentName,
+											 final boolean maskFallback) {
+		final ResolveInfo info = resolveActivity(context.getPackageManager(), componentName);
+
+		if (info == null) {
+			return null;
+		}
+
+		return this.getDefaultIconForPackage(info, maskFallback);
+	}
+
+	private static ResolveInfo resolveActivity(final PackageManager packageManager,
+											   final ComponentName componentName) {
+		final Intent intent = new Intent();
+		intent.setComponent(componentName);
+		final List<ResolveInfo> activites = packageManager
+				.queryIntentActivities(intent, PackageManager.GET_META_DATA);
+
+		if (activites.size() == 0) {
+			return null;
+		}
+
+		return activites.get(0);
+	}
+
+	/**
+	 * @return name of the drawable the appfilter maps exactly this component to, or null
+	 */
+	public String getAppFilterDrawableName(final ComponentName componentName) {
+		return this.requireAppFilter().getDrawableName(
+				componentName.getPackageName(), componentName.getClassName());
+	}
+
+	/**
+	 * @return name of the drawable the appfilter maps the package's first listed activity to,
+	 * or null if the appfilter doesn't list the package
+	 */
+	public String getAppFilterDrawableName(final String packageName) {
+		return this.requireAppFilter().getDrawableNameForPackage(packageName);
+	}
+
+	/**
+	 * @return the current appfilter snapshot, or null if it isn't loaded
+	 */
+	AppFilter getAppFilterSnapshot() {
+		return this.appFilter;
+	}
+
+	AppFilter requireAppFilter() {
+		final AppFilter appFilter = this.appFilter;
+
+		if (appFilter == null) {
+			throw new AppFilterNotLoadedException();
+		}
+
+		return appFilter;
+	}
+
+	/**
+	 * This method will first try to look up the icon in the AppFilterMap.
+	 * If no icon is found in the AppFilter, a masked icon will be generated for this app.
+	 *
+	 * @param info
+	 * @param maskFallback
+	 * @return
+	 */
+	public Drawable getDefaultIconForPackage(final ResolveInfo info, final boolean maskFallback) {
+		return this.resolveIcon(this.requireAppFilter(), info, maskFallback, null);
+	}
+
+	/**
+	 * Same as {@link #getDefaultIconForPackage(Context, ComponentName, boolean)}, for many
+	 * components at once.
+	 * <p>
+	 * The components are split into one chunk per CPU core and resolved on the given executor.
+	 * Drawables that several components map to are only loaded once. Blocks until every
+	 * component has been resolved, so don't call this from a thread the executor depends on.
+	 *
+	 * @param executor - runs the chunks; should have about as many threads as there are cores
+	 * @param callback - called on the executor's threads as soon as each icon is ready; may be null
+	 * @return icon for every component, in the order they were passed in
+	 */
+	@WorkerThread
+	public Map<ComponentName, Drawable> getDefaultIconsForComponents(
+			final Context context, final Collection<ComponentName> componentNames,
+			final boolean maskFallback, final Executor executor,
+			final IconCallback<ComponentName> callback) throws InterruptedException {
+		final PackageManager packageManager = context.getPackageManager();
+
+		return this.resolveIcons(componentNames, maskFallback, executor, callback,
+				new ResolveInfoGetter<ComponentName>() {
+					@Override
+					public ResolveInfo getResolveInfo(final ComponentName componentName) {
+						return resolveActivity(packageManager, componentName);
+					}
+				});
+	}
+
+	/**
+	 * Same as {@link #getDefaultIconForPackage(ResolveInfo, boolean)}, for many apps at once.
+	 *
+	 * @see #getDefaultIconsForComponents(Context, Collection, boolean, Executor, IconCallback)
+	 */
+	@WorkerThread
+	public Map<ResolveInfo, Drawable> getDefaultIconsForPackages(
+			final Collection<ResolveInfo> infos, final boolean maskFallback,
+			final Executor executor, final IconCallback<ResolveInfo> callback)
+			throws InterruptedException {
+		return this.resolveIcons(infos, maskFallback, executor, callback,
+				new ResolveInfoGetter<ResolveInfo>() {
+					@Override
+					public ResolveInfo getResolveInfo(final ResolveInfo info) {
+						return info;
+					}
+				});
+	}
+
+	/**
+	 * Masks the icons of many apps at once, e.g. to theme every app when an icon pack is first
+	 * applied. The result is the same as the mask fallback of
+	 * {@link #getDefaultIconForPackage(ResolveInfo, boolean)}, but the compositing is done on
+	 * plain pixel buffers, split across the executor's threads. Icons that are already cached
+	 * aren't masked again, and new ones are cached as usual.
+	 * <p>
+	 * Blocks until every icon has been masked, so don't call this from a thread the executor
+	 * depends on.
+	 *
+	 * @return masked icon for every app, in the order they were passed in; the apps' own icons
+	 * if the icon pack doesn't do masking or its masking wasn't loaded
+	 */
+	@WorkerThread
+	public Map<ResolveInfo, Drawable> getMaskedIcons(final Collection<ResolveInfo> infos,
+													 final Executor executor)
+			throws InterruptedException {
+		final AppFilter appFilter = this.requireAppFilter();
+		final PixelCompositor compositor = this.getPixelCompositor(appFilter);
+		final List<ResolveInfo> infoList = new ArrayList<>(infos);
+		final int count = infoList.size();
+		final Drawable[] icons = new Drawable[count];
+		final PixelBuffer[] sources = new PixelBuffer[count];
+		final int[] backImageInds = new int[count];
+		final String[] keys = new String[count];
+
+		// randomly picked backgrounds can't be cached, they would be a different one next time,
+		// and icons drawn on downsampled layers shouldn't outlive the memory pressure
+		final IconCache cache = this.backgroundSelection == BACKGROUND_SELECTION_STABLE
+				&& (appFilter.masking == null || ! appFilter.masking.isDownsampled())
+				? this.iconCache : null;
+		final int size = this.iconSize;
+		int maskedCount = 0;
+
+		for (int i = 0; i < count; i++) {
+			final ResolveInfo info = infoList.get(i);
+			final Drawable defaultIcon = info.loadIcon(this.packageManager);
+			icons[i] = defaultIcon;
+
+			if (compositor == null || compositor.getBackgroundCount() == 0) {
+				continue;
+			}
+
+			final String component = info.activityInfo.packageName + "/" + info.activityInfo.name;
+			backImageInds[i] = this.getBackImageIndex(component, compositor.getBackgroundCount());
+
+			if (cache != null) {
+				keys[i] = getMaskedIconCacheKey(appFilter, component, info, backImageInds[i], size);
+				final Bitmap cached = this.getCachedIcon(cache, keys[i]);
+
+				if (cached != null) {
+					icons[i] = new BitmapDrawable(this.resources, cached);
+					continue;
+				}
+			}
+
+			final Bitmap defaultBitmap = this.rasterizeDefaultIcon(defaultIcon, component, info,
+					compositor.getBackgroundSize(backImageInds[i]));
+
+			if (defaultBitmap != null) {
+				sources[i] = toPixelBuffer(defaultBitmap);
+				maskedCount++;
+			}
+		}
+
+		if (maskedCount > 0) {
+			final IconPackMetrics metrics = this.metrics;
+			final long start = metrics != null ? System.nanoTime() : 0;
+			final PixelBuffer[] results = compositor.composeAll(sources, backImageInds, executor);
+			final long nanosPerIcon = metrics != null ? (System.nanoTime() - start) / maskedCount : 0;
+
+			for (int i = 0; i < count; i++) {
+				if (results[i] == null) {
+					continue;
+				}
+
+				final Bitmap masked = Bitmap.createBitmap(results[i].toArgb(), results[i].width,
+						results[i].height, Bitmap.Config.ARGB_8888);
+				final Bitmap result = BitmapHelper.scaleTo(masked, size);
+
+				if (result != masked) {
+					masked.recycle();
+				}
+
+				if (cache != null) {
+					cache.put(keys[i], result);
+				}
+
+				if (metrics != null) {
+					metrics.onIconMasked(this.packageName, nanosPerIcon);
+				}
+
+				icons[i] = new BitmapDrawable(this.resources, result);
+			}
+		}
+
+		final Map<ResolveInfo, Drawable> map = new LinkedHashMap<>(count * 2);
+		for (int i = 0; i < count; i++) {
+			map.put(infoList.get(i), icons[i]);
+		}
+
+		return map;
+	}
+
+	/**
+	 * @return compositor for the appfilter's masking, made the first time it's needed (loading
+	 * the layers again if they were released); null if there's no masking
+	 */
+	private MaskCompositor getMaskCompositor(final AppFilter appFilter) {
+		final IconMasking masking = appFilter.masking;
+
+		if (masking == null) {
+			return null;
+		}
+
+		MaskCompositor compositor = appFilter.compositor;
+		boolean reloaded = false;
+
+		if (compositor == null) {
+			synchronized (masking) {
+				compositor = appFilter.compositor;
+
+				if (compositor == null) {
+					reloaded = masking.isReleased();
+					if (reloaded) {
+						this.loadMaskLayers(masking);
+					}
+
+					compositor = new MaskCompositor(masking);
+					appFilter.compositor = compositor;
+				}
+			}
+		}
+
+		if (reloaded) {
+			this.onMaskLayersLoaded(masking);
+		}
+
+		return compositor;
+	}
+
+	/**
+	 * Same as {@link #getMaskCompositor(AppFilter)}, on pixel buffers.
+	 */
+	private PixelCompositor getPixelCompositor(final AppFilter appFilter) {
+		final IconMasking masking = appFilter.masking;
+
+		if (masking == null) {
+			return null;
+		}
+
+		PixelCompositor compositor = appFilter.pixelCompositor;
+		boolean reloaded = false;
+
+		if (compositor == null) {
+			synchronized (masking) {
+				compositor = appFilter.pixelCompositor;
+
+				if (compositor == null) {
+					reloaded = masking.isReleased();
+					if (reloaded) {
+						this.loadMaskLayers(masking);
+					}
+
+					final List<PixelBuffer> backImages = new ArrayList<>(masking.backImages.size());
+
+					for (final Bitmap backImage : masking.backImages) {
+						backImages.add(toPixelBuffer(backImage));
+					}
+
+					compositor = new PixelCompositor(backImages,
+							masking.maskImage != null ? toPixelBuffer(masking.maskImage) : null,
+							masking.frontImage != null ? toPixelBuffer(masking.frontImage) : null,
+							masking.getFactor());
+					appFilter.pixelCompositor = compositor;
+				}
+			}
+		}
+
+		if (reloaded) {
+			this.onMaskLayersLoaded(masking);
+		}
+
+		return compositor;
+	}
+
+	/**
+	 * Lets the memory governor know, outside of any lock, that layers take up memory again.
+	 */
+	private void onMaskLayersLoaded(final IconMasking masking) {
+		final MemoryGovernor memoryGovernor = this.memoryGovernor;
+
+		if (memoryGovernor != null && masking != null) {
+			memoryGovernor.enforceBudget();
+		}
+	}
+
+	/**
+	 * @return memory held by the loaded masking layers and what the compositors made from them
+	 * keep around
+	 */
+	long getMaskingBytes() {
+		final AppFilter appFilter = this.appFilter;
+		final IconMasking masking = appFilter != null ? appFilter.masking : null;
+
+		if (masking == null) {
+			return 0;
+		}
+
+		final MaskCompositor compositor = appFilter.compositor;
+		final PixelCompositor pixelCompositor = appFilter.pixelCompositor;
+
+		return masking.getBytes() + (compositor != null ? compositor.getPoolBytes() : 0)
+				+ (pixelCompositor != null ? pixelCompositor.getBytes() : 0);
+	}
+
+	/**
+	 * Drops the pixel buffer copy of the masking layers; it's made again by the next bulk
+	 * masking.
+	 *
+	 * @return whether there was one
+	 */
+	boolean releasePixelCompositor() {
+		final AppFilter appFilter = this.appFilter;
+
+		if (appFilter == null || appFilter.masking == null) {
+			return false;
+		}
+
+		synchronized (appFilter.masking) {
+			final boolean released = appFilter.pixelCompositor != null;
+			appFilter.pixelCompositor = null;
+
+			return released;
+		}
+	}
+
+	/**
+	 * Halves the size of the masking layers, down to {@link #MIN_MASK_LAYER_SIZE}. Icons
+	 * masked with downsampled layers aren't cached.
+	 *
+	 * @return whether the layers got smaller
+	 */
+	boolean downsampleMasking() {
+		final AppFilter appFilter = this.appFilter;
+
+		if (appFilter == null || appFilter.masking == null) {
+			return false;
+		}
+
+		final IconMasking masking = appFilter.masking;
+
+		synchronized (masking) {
+			if (! masking.downsample(Math.max(MIN_MASK_LAYER_SIZE, masking.getLayerSize() / 2))) {
+				return false;
+			}
+
+			// Compositors hold on to the layers they were made with
+			appFilter.compositor = null;
+			appFilter.pixelCompositor = null;
+
+			return true;
+		}
+	}
+
+	/**
+	 * Lets go of downsampled masking layers, so they're loaded again at full size when the next
+	 * icon is masked.
+	 *
+	 * @return whether they were downsampled
+	 */
+	boolean restoreMasking() {
+		final AppFilter appFilter = this.appFilter;
+
+		if (appFilter == null || appFilter.masking == null) {
+			return false;
+		}
+
+		synchronized (appFilter.masking) {
+			return appFilter.masking.isDownsampled() && this.releaseMasking();
+		}
+	}
+
+	/**
+	 * Lets go of the masking layers; they're loaded again when the next icon is masked.
+	 *
+	 * @return whether any were loaded
+	 */
+	boolean releaseMasking() {
+		final AppFilter appFilter = this.appFilter;
+
+		if (appFilter == null || appFilter.masking == null) {
+			return false;
+		}
+
+		final IconMasking masking = appFilter.masking;
+
+		synchronized (masking) {
+			if (masking.isReleased()) {
+				return false;
+			}
+
+			masking.release();
+			appFilter.compositor = null;
+			appFilter.pixelCompositor = null;
+
+			return true;
+		}
+	}
+
+	/**
+	 * @return the in-memory part of the icon cache, or null if it doesn't have one this library
+	 * knows how to trim
+	 */
+	BitmapLruCache getMemoryCache() {
+		final IconCache cache = this.iconCache;
+
+		if (cache instanceof BitmapLruCache) {
+			return (BitmapLruCache) cache;
+		} else if (cache instanceof TwoLevelIconCache) {
+			return ((TwoLevelIconCache) cache).getMemoryCache();
+		}
+
+		return null;
+	}
+
+	private static PixelBuffer toPixelBuffer(final Bitmap bitmap) {
+		final int width = bitmap.getWidth();
+		final int height = bitmap.getHeight();
+		final int[] argb = new int[width * height];
+
+		bitmap.getPixels(argb, 0, width, 0, 0, width, height);
+
+		return PixelBuffer.fromArgb(width, height, argb);
+	}
+
+	/**
+	 * Packs the icons of a set of activities into an {@link IconAtlas}, at {@link #getIconSize()}.
+	 * <p>
+	 * The atlas is persisted, and read back as long as the icon pack, the icon size and the set
+	 * of activities (and their apps' versions) stay the same. Otherwise the icons are resolved
+	 * as in {@link #getDefaultIconsForPackages(Collection, boolean, Executor, IconCallback)}
+	 * and a new atlas replaces the old one. Run it in the background whenever the icon pack or
+	 * the installed apps change.
+	 */
+	@WorkerThread
+	public IconAtlas loadIconAtlas(final Collection<ResolveInfo> infos, final boolean maskFallback,
+								   final Executor executor) throws InterruptedException {
+		final int size = this.iconSize;
+
+		if (size <= 0) {
+			throw new IllegalStateException("An icon atlas needs an icon size, see setIconSize(int)");
+		}
+
+		final String stamp = this.getIconAtlasStamp(this.requireAppFilter(), infos, maskFallback, size);
+		final File directory = this.getIconAtlasDirectory();
+
+		if (directory != null) {
+			try {
+				final IconAtlas atlas = IconAtlas.read(directory, stamp);
+
+				if (atlas != null) {
+					return atlas;
+				}
+			} catch (final IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+
+		final IconAtlasBuilder builder = new IconAtlasBuilder(size, stamp);
+		final Map<ResolveInfo, Drawable> icons = this.getDefaultIconsForPackages(
+				infos, maskFallback, executor, null);
+
+		for (final Map.Entry<ResolveInfo, Drawable> entry : icons.entrySet()) {
+			final ActivityInfo activityInfo = entry.getKey().activityInfo;
+
+			builder.add(activityInfo.packageName + "/" + activityInfo.name, entry.getValue());
+		}
+
+		final IconAtlas atlas = builder.build();
+
+		// The atlas has its own copy of every icon
+		for (final Drawable icon : icons.values()) {
+			this.releaseIcon(icon);
+		}
+
+		if (directory != null) {
+			try {
+				atlas.write(directory);
+			} catch (final IOException ex) {
+				ex.printStackTrace();
+			}
+		}
+
+		return atlas;
+	}
+
+	private File getIconAtlasDirectory() {
+		final Context context = this.contextReference.get();
+
+		if (context == null) {
+			return null;
+		}
+
+		return new File(new File(new File(context.getCacheDir(), Constants.INDEX_DIRECTORY),
+				Constants.ATLAS_DIRECTORY), this.packageName);
+	}
+
+	/**
+	 * @return digest of everything the atlas' icons depend on
+	 */
+	private String getIconAtlasStamp(final AppFilter appFilter, final Collection<ResolveInfo> infos,
+									 final boolean maskFallback, final int size) {
+		final List<String> activities = new ArrayList<>(infos.size());
+
+		for (final ResolveInfo info : infos) {
+			final ApplicationInfo appInfo = info.activityInfo.applicationInfo;
+
+			activities.add(info.activityInfo.packageName + "/" + info.activityInfo.name
+					+ Constants.CACHE_KEY_SEPARATOR + (appInfo != null ? appInfo.sourceDir : ""));
+		}
+
+		Collections.sort(activities);
+
+		final StringBuilder stamp = new StringBuilder()
+				.append(this.getVersion()).append(Constants.CACHE_KEY_SEPARATOR)
+				.append(maskFallback).append(Constants.CACHE_KEY_SEPARATOR)
+				.append(appFilter.maskingIdentity)
+				.append(Constants.CACHE_KEY_SEPARATOR).append(this.backgroundSelection)
+				.append(Constants.CACHE_KEY_SIZE_SEPARATOR).append(size);
+
+		try {
+			final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+
+			for (final String activity : activities) {
+				digest.update(activity.getBytes("UTF-8"));
+				digest.update((byte) 0);
+			}
+
+			stamp.append(Constants.CACHE_KEY_SEPARATOR);
+			for (final byte b : digest.digest()) {
+				stamp.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			}
+		} catch (final NoSuchAlgorithmException | UnsupportedEncodingException ex) {
+			// Every Android device has SHA-1 and UTF-8
+			throw new IllegalStateException(ex);
+		}
+
+		return stamp.toString();
+	}
+
+	private <T> Map<T, Drawable> resolveIcons(final Collection<T> items,
+											  final boolean maskFallback,
+											  final Executor executor,
+											  final IconCallback<T> callback,
+											  final ResolveInfoGetter<T> getter)
+			throws InterruptedException {
+		final AppFilter appFilter = this.requireAppFilter();
+
+		final List<T> itemList = new ArrayList<>(items);
+		final Drawable[] results = new Drawable[itemList.size()];
+		final ConcurrentHashMap<String, Bitmap> sharedBitmaps = new ConcurrentHashMap<>();
+
+		// Build the resource ID table up front instead of having every chunk wait for it
+		this.getDrawableResourceId(null);
+
+		final int chunkCount = Math.max(1, Math.min(itemList.size(),
+				Runtime.getRuntime().availableProcessors()));
+		final int chunkSize = (itemList.size() + chunkCount - 1) / chunkCount;
+		final CountDownLatch latch = new CountDownLatch(chunkCount);
+
+		for (int chunk = 0; chunk < chunkCount; chunk++) {
+			final int start = chunk * chunkSize;
+			final int end = Math.min(itemList.size(), start + chunkSize);
+
+			// A chunk the executor rejects runs right here, so no chunk outlives this call
+			IconPackManager.execute(executor, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = start; i < end; i++) {
+							final T item = itemList.get(i);
+
+							try {
+								final ResolveInfo info = getter.getResolveInfo(item);
+
+								if (info != null) {
+									results[i] = resolveIcon(appFilter, info, maskFallback, sharedBitmaps);
+								}
+							} catch (final RuntimeException ex) {
+								ex.printStackTrace();
+							}
+
+							if (callback != null) {
+								callback.onIconResolved(item, results[i]);
+							}
+						}
+					} finally {
+						latch.countDown();
+					}
+				}
+			});
+		}
+
+		latch.await();
+
+		final Map<T, Drawable> map = new LinkedHashMap<>(itemList.size() * 2);
+		for (int i = 0; i < results.length; i++) {
+			map.put(itemList.get(i), results[i]);
+		}
+
+		return map;
+	}
+
+	/**
+	 * The app's own icon is only loaded if it's needed, as decoding it from the app's APK costs
+	 * more than loading a themed icon.
+	 *
+	 * @param sharedBitmaps - bitmaps already loaded for other items in the same batch; may be null
+	 */
+	private Drawable resolveIcon(final AppFilter appFilter, final ResolveInfo info,
+								 final boolean maskFallback,
+								 final Map<String, Bitmap> sharedBitmaps) {
+
+		final ActivityInfo activityInfo = info.activityInfo;
+
+		// Most apps aren't themed by a given icon pack, so skip the lookups we know will miss
+		if (appFilter.isMiss(activityInfo.packageName, activityInfo.name)) {
+			return this.getFallbackIcon(appFilter, info, maskFallback);
+		}
+
+		// Falls back to other activities of the same package, which also covers activity aliases
+		String drawableName = appFilter.getDrawableNameForActivity(
+				activityInfo.packageName, activityInfo.name);
+
+		if (drawableName != null) {
+			final Drawable drawable = this.loadIcon(drawableName, sharedBitmaps);
+
+			if (drawable != null) {
+				return drawable;
+			}
+
+			final Drawable defaultIcon = info.loadIcon(this.packageManager);
+
+			return maskFallback ? this.generateMaskedIcon(appFilter, defaultIcon, info) : defaultIcon;
+		}
+
+		// not found
+		// try to get a resource with the component filename
+		drawableName = getDerivedDrawableName(activityInfo.packageName, activityInfo.name);
+
+		if (this.getDrawableResourceId(drawableName) > 0) {
+			return this.loadIcon(drawableName, sharedBitmaps);
+		}
+
+		appFilter.addMiss(activityInfo.packageName, activityInfo.name);
+
+		return this.getFallbackIcon(appFilter, info, maskFallback);
+	}
+
+	private Drawable getFallbackIcon(final AppFilter appFilter, final ResolveInfo info,
+									 final boolean maskFallback) {
+		final Drawable defaultIcon = info.loadIcon(this.packageManager);
+
+		if (maskFallback && appFilter.masking != null) {
+			return this.generateMaskedIcon(appFilter, defaultIcon, info);
+		}
+
+		return defaultIcon;
+	}
+
+	/**
+	 * Built in a single pass. Only ASCII letters are expected in package and class names; others
+	 * are lowercased without regard to the locale, like resource names are.
+	 *
+	 * @return drawable name icon packs conventionally use for components they don't list in
+	 * their appfilter, e.g. "com_android_chrome_com_google_android_apps_chrome_main"
+	 */
+	static String getDerivedDrawableName(final String packageName, final String className) {
+		final int packageLength = packageName.length();
+		final char[] name = new char[packageLength + 1 + className.length()];
+
+		appendDerivedName(name, 0, packageName);
+		name[packageLength] = '_';
+		appendDerivedName(name, packageLength + 1, className);
+
+		return new String(name);
+	}
+
+	private static void appendDerivedName(final char[] name, final int offset, final String part) {
+		for (int i = 0; i < part.length(); i++) {
+			final char c = part.charAt(i);
+
+			if (c == '.') {
+				name[offset + i] = '_';
+			} else if (c >= 'A' && c <= 'Z') {
+				name[offset + i] = (char) (c + ('a' - 'A'));
+			} else if (c < 0x80) {
+				name[offset + i] = c;
+			} else {
+				name[offset + i] = Character.toLowerCase(c);
+			}
+		}
+	}
+
+	static void onLoadDrawableMap(final XmlPullParser parser,
+								  final Map<String, List<IconDrawable>> drawableMap,
+								  final ResourceIdResolver resolver,
+								  final TitleGenerator titleGenerator)
+			throws XmlPullParserException, IOException {
+		int eventType = parser.getEventType();
+		String currentTitle = "";
+
+		while (eventType != XmlPullParser.END_DOCUMENT) {
+			if (eventType == XmlPullParser.START_TAG) {
+				if (Constants.CATEGORY.equals(parser.getName())) {
+					currentTitle = onAddCategoryToMap(drawableMap,
+							parser.getAttributeValue(null, Constants.TITLE));
+				} else if (Constants.ITEM.equals(parser.getName())) {
+					final String name = parser.getAttributeValue(null, Constants.DRAWABLE);
+
+					onAddIconToCategory(drawableMap, resolver, titleGenerator, currentTitle, name);
+				}
+			}
+
+			eventType = parser.next();
+		}
+	}
+
+	/**
+	 * Same as {@link #onLoadDrawableMap(XmlPullParser, Map, ResourceIdResolver, TitleGenerator)}
+	 * for a plain text drawable.xml.
+	 */
+	static void onLoadDrawableMap(final XmlScanner scanner,
+								  final Map<String, List<IconDrawable>> drawableMap,
+								  final ResourceIdResolver resolver,
+								  final TitleGenerator titleGenerator) throws XmlPullParserException {
+		String currentTitle = "";
+
+		while (scanner.nextElement()) {
+			if (scanner.isElement(CATEGORY)) {
+				currentTitle = onAddCategoryToMap(drawableMap, scanner.getAttributeValue(TITLE));
+			} else if (scanner.isElement(ITEM)) {
+				final String name = scanner.getAttributeValue(DRAWABLE);
+
+				onAddIconToCategory(drawableMap, resolver, titleGenerator, currentTitle, name);
+			}
+		}
+	}
+
+	private static void onAddIconToCategory(final Map<String, List<IconDrawable>> drawableMap,
+											final ResourceIdResolver resolver,
+											final TitleGenerator titleGenerator,
+											final String currentTitle, final String name) {
+		final int id = resolver.getResourceId(name);
+
+		if (id > 0) {
+			final IconDrawable icon = new IconDrawable(name, id, titleGenerator);
+
+			List<IconDrawable> category = drawableMap.get(currentTitle);
+			if (category == null) {
+				// items that come before the first category
+				category = new ArrayList<>();
+				drawableMap.put(currentTitle, category);
+			}
+
+			category.add(icon);
+		}
+	}
+
+	private static String onAddCategoryToMap(final Map<String, List<IconDrawable>> drawableMap,
+									  final String title) {
+		if (title != null && title.length() > 0) {
+			drawableMap.put(title, new ArrayList<IconDrawable>());
+
+			return title;
+		}
+
+		return "";
+	}
+
+	private static String getMaskingIdentity(final AppFilterIndex index) {
+		return Integer.toHexString((index.backImages + Constants.CACHE_KEY_SEPARATOR
+				+ index.maskImage + Constants.CACHE_KEY_SEPARATOR + index.frontImage
+				+ Constants.CACHE_KEY_SEPARATOR + index.factor).hashCode());
+	}
+
+	/**
+	 * @return the masking described by the appfilter, with its layers loaded, or null if it
+	 * doesn't describe any
+	 */
+	@WorkerThread
+	private IconMasking onLoadMask(final AppFilterIndex index) {
+		if (! index.hasMasking()) {
+			return null;
+		}
+
+		final IconMasking masking = new IconMasking(index.backImages, index.maskImage,
+				index.frontImage, index.factor);
+		this.loadMaskLayers(masking);
+
+		return masking;
+	}
+
+	/**
+	 * Decodes the layers the masking's drawable names point to. Layers that can't be loaded are
+	 * left out.
+	 */
+	@WorkerThread
+	private void loadMaskLayers(final IconMasking masking) {
+		final List<Bitmap> backImages = new ArrayList<>(masking.backImageNames.size());
+
+		for (final String drawableName : masking.backImageNames) {
+			final Bitmap iconback = this.loadMaskLayerBitmap(drawableName);
+
+			if (iconback != null) {
+				backImages.add(iconback);
+			}
+		}
+
+		masking.setLayers(backImages, this.loadMaskLayerBitmap(masking.maskImageName),
+				this.loadMaskLayerBitmap(masking.frontImageName));
+	}
+
+	private Bitmap loadMaskLayerBitmap(final String drawableName) {
+		if (drawableName == null) {
+			return null;
+		}
+
+		final BitmapDrawable drawable = this.loadMaskLayer(drawableName);
+
+		return drawable != null ? drawable.getBitmap() : null;
+	}
+
+	/**
+	 * The first call builds the name to ID table for all of the icon pack's drawables, every call
+	 * after that is a single lookup in that table.
+	 *
+	 * @return resource ID of the drawable in the icon pack, or -1 if there is none
+	 */
+	@WorkerThread
+	int getDrawableResourceId(final String drawableName) {
+		return this.getDrawableIdResolver().getResourceId(drawableName);
+	}
+
+	private ResourceIdResolver getDrawableIdResolver() {
+		ResourceIdResolver resolver = this.drawableIdResolver;
+
+		if (resolver == null) {
+			synchronized (this) {
+				resolver = this.drawableIdResolver;
+
+				if (resolver == null) {
+					final IconPackMetrics metrics = this.metrics;
+					final long start = metrics != null ? System.nanoTime() : 0;
+
+					resolver = ResourceIdResolver.build(this.resources, this.packageName,
+							Constants.RES_TYPE_DRAWABLE);
+					this.drawableIdResolver = resolver;
+
+					if (metrics != null) {
+						metrics.onResourceIdsResolved(this.packageName, resolver.size(),
+								resolver.isTableBuilt(), System.nanoTime() - start);
+					}
+				}
+			}
+		}
+
+		return resolver;
+	}
+
+	/**
+	 * Loads a drawable from the icon pack at {@link #getIconSize()}, going through the icon cache.
+	 */
+	@WorkerThread
+	BitmapDrawable loadIcon(final String drawableName, final Map<String, Bitmap> sharedBitmaps) {
+		// Interned icons already share their bitmap, and each user needs a reference of its own
+		if (sharedBitmaps == null || this.bitmapInterner != null) {
+			return this.loadIcon(drawableName);
+		}
+
+		// Only the bitmap is shared; bounds, alpha and filters are set per drawable
+		final Bitmap shared = sharedBitmaps.get(drawableName);
+
+		if (shared != null) {
+			return new BitmapDrawable(this.resources, shared);
+		}
+
+		final BitmapDrawable drawable = this.loadIcon(drawableName);
+
+		if (drawable != null && drawable.getBitmap() != null) {
+			sharedBitmaps.put(drawableName, drawable.getBitmap());
+		}
+
+		return drawable;
+	}
+
+	@WorkerThread
+	private BitmapDrawable loadIcon(final String drawableName) {
+		final IconCache cache = this.iconCache;
+		final BitmapInterner interner = this.bitmapInterner;
+		final int size = this.iconSize;
+		final Bitmap.Config config = this.bitmapConfig;
+		// Interned bitmaps of a previous version aren't handed out once the icon pack is refreshed
+		final String version = this.getVersion();
+		final String key = drawableName + Constants.CACHE_KEY_SIZE_SEPARATOR + size;
+		// Only a bitmap that no memory cache holds on to can be reused once it's released
+		final boolean poolable = cache == null || cache instanceof DiskIconCache;
+		int id = 0;
+
+		if (interner != null) {
+			id = this.getDrawableResourceId(drawableName);
+
+			if (id <= 0) {
+				return null;
+			}
+
+			final SharedBitmapDrawable shared = interner.acquire(this.resources, this.packageName,
+					version, id, size, config);
+
+			if (shared != null) {
+				return shared;
+			}
+		}
+
+		if (cache != null) {
+			final Bitmap cached = this.getCachedIcon(cache, key);
+
+			if (cached != null) {
+				// Icons read from disk come back as ARGB_8888, whatever they were decoded to
+				final Bitmap bitmap = this.toBitmapConfig(key, cached, config);
+
+				return interner != null ? interner.intern(this.resources, this.packageName, version,
+						id, size, config, bitmap, poolable) : new BitmapDrawable(this.resources, bitmap);
+			}
+		}
+
+		final BitmapDrawable drawable = this.loadDrawable(drawableName, size, config);
+
+		if (drawable == null || drawable.getBitmap() == null) {
+			return drawable;
+		}
+
+		final Bitmap bitmap = BitmapHelper.scaleTo(drawable.getBitmap(), size);
+
+		if (cache != null) {
+			cache.put(key, bitmap);
+		}
+
+		if (interner != null) {
+			return interner.intern(this.resources, this.packageName, version, id, size, config,
+					bitmap, poolable);
+		}
+
+		return bitmap == drawable.getBitmap() ? drawable : new BitmapDrawable(this.resources, bitmap);
+	}
+
+	/**
+	 * Converts a cached icon to the config icons are decoded to. The converted icon replaces
+	 * the one in the memory cache, so it's only converted once.
+	 */
+	private Bitmap toBitmapConfig(final String key, final Bitmap cached, final Bitmap.Config config) {
+		final Bitmap converted = BitmapHelper.convert(cached, config);
+
+		if (converted != cached) {
+			final BitmapLruCache memoryCache = this.getMemoryCache();
+
+			if (memoryCache != null) {
+				memoryCache.put(key, converted);
+			}
+		}
+
+		return converted;
+	}
+
+	private Bitmap getCachedIcon(final IconCache cache, final String key) {
+		final Bitmap cached = cache.get(key);
+		final IconPackMetrics metrics = this.metrics;
+
+		if (metrics != null) {
+			if (cached != null) {
+				metrics.onCacheHit(this.packageName, key);
+			} else {
+				metrics.onCacheMiss(this.packageName, key);
+			}
+		}
+
+		return cached;
+	}
+
+	/**
+	 * Masking layers are decoded at the icon size too; they're drawn onto each other and need
+	 * to stay in software.
+	 */
+	@WorkerThread
+	private BitmapDrawable loadMaskLayer(final String drawableName) {
+		return this.loadDrawable(drawableName, this.iconSize, Bitmap.Config.ARGB_8888);
+	}
+
+	/**
+	 * @param size - size to decode (or, for vectors and other XML drawables, draw) the drawable
+	 *             at; 0 for its own size
+	 * @return the drawable as a bitmap, or null if it doesn't exist or can't be drawn
+	 */
+	@WorkerThread
+	private BitmapDrawable loadDrawable(final String drawableName, final int size,
+										final Bitmap.Config config) {
+		final int id = this.getDrawableResourceId(drawableName);
+
+		if (id <= 0) {
+			return null;
+		}
+
+		final IconPackMetrics metrics = this.metrics;
+		final long start = metrics != null ? System.nanoTime() : 0;
+		final BitmapDrawable drawable = this.decodeDrawable(id, size, config);
+
+		if (metrics != null && drawable != null && drawable.getBitmap() != null) {
+			metrics.onDrawableDecoded(this.packageName, drawableName,
+					BitmapHelper.getByteCount(drawable.getBitmap()), System.nanoTime() - start);
+		}
+
+		return drawable;
+	}
+
+	private BitmapDrawable decodeDrawable(final int id, final int size, final Bitmap.Config config) {
+		final BitmapInterner interner = this.bitmapInterner;
+		final Bitmap bitmap = this.bitmapDecoder.decodeResource(this.resources, id, size, config,
+				interner != null ? interner.getPool() : null);
+
+		if (bitmap != null) {
+			return new BitmapDrawable(this.resources, bitmap);
+		}
+
+		// Not something BitmapFactory can decode; let the resources figure out what it is
+		final Drawable drawable;
+		final Context context = this.contextReference.get();
+
+		if (android.os.Build.VERSION.SDK_INT < android.os.Build.VERSION_CODES.LOLLIPOP || context == null) {
+			drawable = this.resources.getDrawable(id);
+		} else {
+			drawable = this.resources.getDrawable(id, context.getTheme());
+		}
+
+		if (drawable == null) {
+			return null;
+		} else if (drawable instanceof BitmapDrawable) {
+			return (BitmapDrawable) drawable;
+		}
+
+		// Vectors and other XML drawables are drawn once here, and then cached like any other icon
+		final Bitmap rasterized = BitmapHelper.rasterize(drawable, size, config);
+
+		return rasterized != null ? new BitmapDrawable(this.resources, rasterized) : null;
+	}
+
+	Drawable generateMaskedIcon(final AppFilter appFilter, final Drawable defaultIcon,
+								final ResolveInfo info) {
+		final MaskCompositor compositor = this.getMaskCompositor(appFilter);
+
+		// if no support images in the icon pack return the bitmap itself
+		if (compositor == null || compositor.getBackgroundCount() == 0) {
+			return defaultIcon;
+		}
+
+		final String component = info.activityInfo.packageName + "/" + info.activityInfo.name;
+		final int backImageInd = this.getBackImageIndex(component, compositor.getBackgroundCount());
+
+		// randomly picked backgrounds can't be cached, they would be a different one next time,
+		// and icons drawn on downsampled layers shouldn't outlive the memory pressure
+		final IconCache cache = this.backgroundSelection == BACKGROUND_SELECTION_STABLE
+				&& ! appFilter.masking.isDownsampled() ? this.iconCache : null;
+		final int size = this.iconSize;
+		final String key = cache == null ? null
+				: getMaskedIconCacheKey(appFilter, component, info, backImageInd, size);
+
+		if (cache != null) {
+			final Bitmap cached = this.getCachedIcon(cache, key);
+
+			if (cached != null) {
+				return new BitmapDrawable(this.resources, cached);
+			}
+		}
+
+		final IconPackMetrics metrics = this.metrics;
+		final long start = metrics != null ? System.nanoTime() : 0;
+		final Bitmap defaultBitmap = this.rasterizeDefaultIcon(defaultIcon, component, info,
+				compositor.getBackgroundSize(backImageInd));
+
+		if (defaultBitmap == null) {
+			return defaultIcon;
+		}
+
+		final Bitmap masked = compositor.compose(defaultBitmap, backImageInd);
+
+		if (metrics != null) {
+			metrics.onIconMasked(this.packageName, System.nanoTime() - start);
+		}
+
+		final Bitmap result = BitmapHelper.scaleTo(masked, size);
+		if (result != masked) {
+			compositor.recycle(masked);
+		}
+
+		if (cache != null) {
+			compositor.share(result);
+			cache.put(key, result);
+		}
+
+		return new BitmapDrawable(this.resources, result);
+	}
+
+	private int getBackImageIndex(final String component, final int backgroundCount) {
+		if (this.backgroundSelection == BACKGROUND_SELECTION_STABLE) {
+			return (component.hashCode() & Integer.MAX_VALUE) % backgroundCount;
+		}
+
+		return this.random.nextInt(backgroundCount);
+	}
+
+	/**
+	 * Adaptive, vector and other non-bitmap app icons are drawn into a bitmap of their own size
+	 * (or the iconback's, if they don't have one), just like a bitmap icon would be handed to
+	 * the compositor. That's only done once per app and size; the result is kept in the icon
+	 * cache.
+	 *
+	 * @return the app's icon as a bitmap, or null if it can't be drawn
+	 */
+	private Bitmap rasterizeDefaultIcon(final Drawable defaultIcon, final String component,
+										final ResolveInfo info, final int backgroundSize) {
+		if (defaultIcon instanceof BitmapDrawable && ((BitmapDrawable) defaultIcon).getBitmap() != null) {
+			return ((BitmapDrawable) defaultIcon).getBitmap();
+		}
+
+		final int intrinsicSize = Math.max(defaultIcon.getIntrinsicWidth(), defaultIcon.getIntrinsicHeight());
+		final int size = intrinsicSize > 0 ? intrinsicSize : backgroundSize;
+		final IconCache cache = this.iconCache;
+		final String key = cache == null ? null : Constants.CACHE_KEY_RASTERIZED + component
+				+ Constants.CACHE_KEY_SEPARATOR + getSourceDirHash(info)
+				+ Constants.CACHE_KEY_SIZE_SEPARATOR + size;
+
+		if (cache != null) {
+			final Bitmap cached = this.getCachedIcon(cache, key);
+
+			if (cached != null) {
+				return cached;
+			}
+		}
+
+		final Bitmap rasterized = BitmapHelper.rasterize(defaultIcon, size, Bitmap.Config.ARGB_8888);
+
+		if (cache != null && rasterized != null) {
+			cache.put(key, rasterized);
+		}
+
+		return rasterized;
+	}
+
+	private static String getSourceDirHash(final ResolveInfo info) {
+		final ApplicationInfo appInfo = info.activityInfo.applicationInfo;
+		final String sourceDir = appInfo != null ? appInfo.sourceDir : null;
+
+		return sourceDir != null ? Integer.toHexString(sourceDir.hashCode()) : "";
+	}
+
+	/**
+	 * Masked icons are identified by the component, the background they were drawn on, the
+	 * mask/front/scale they were drawn with and the size they were scaled to. The app's APK
+	 * path is included too, so an app that gets updated (and might have a new icon) gets a new
+	 * masked icon. So is the icon pack's version, since the layers may change between versions
+	 * without being renamed.
+	 */
+	private String getMaskedIconCacheKey(final AppFilter appFilter, final String component,
+										 final ResolveInfo info, final int backImageInd,
+										 final int size) {
+		return Constants.CACHE_KEY_MASKED + component
+				+ Constants.CACHE_KEY_SEPARATOR + getSourceDirHash(info)
+				+ Constants.CACHE_KEY_SEPARATOR + this.getVersion()
+				+ Constants.CACHE_KEY_SEPARATOR + backImageInd
+				+ Constants.CACHE_KEY_SEPARATOR + appFilter.maskingIdentity
+				+ Constants.CACHE_KEY_SIZE_SEPARATOR + size;
+	}
+
+	/**
+	 * Sets how the iconback image is picked for apps that get a masked icon.
+	 *
+	 * @param backgroundSelection - {@link #BACKGROUND_SELECTION_STABLE} (default) always picks the
+	 *                            same background for the same app, which lets masked icons be
+	 *                            cached. {@link #BACKGROUND_SELECTION_RANDOM} picks a random one
+	 *                            every time.
+	 */
+	public void setBackgroundSelection(final int backgroundSelection) {
+		this.backgroundSelection = backgroundSelection;
+	}
+
+	public int getBackgroundSelection() {
+		return this.backgroundSelection;
+	}
+
+	/**
+	 * Hands a masked icon that is no longer displayed back to the icon pack, so its bitmap can be
+	 * reused for the next masked icon instead of allocating a new one.
+	 * <p>
+	 * Don't use the drawable anymore after calling this. Icons that weren't generated by masking
+	 * are ignored.
+	 *
+	 * @param icon
+	 */
+	public void recycleMaskedIcon(final Drawable icon) {
+		this.releaseIcon(icon);
+	}
+
+	/**
+	 * Hands an icon that is no longer displayed back to the icon pack: a
+	 * {@link SharedBitmapDrawable} lets go of its shared bitmap, and a masked icon's bitmap is
+	 * reused for the next masked icon. Other icons are ignored.
+	 * <p>
+	 * Don't use the drawable anymore after calling this.
+	 */
+	public void releaseIcon(final Drawable icon) {
+		if (icon instanceof SharedBitmapDrawable) {
+			((SharedBitmapDrawable) icon).release();
+
+			return;
+		}
+
+		final AppFilter appFilter = this.appFilter;
+		final MaskCompositor compositor = appFilter != null ? appFilter.compositor : null;
+
+		if (compositor != null && icon instanceof BitmapDrawable) {
+			compositor.recycle(((BitmapDrawable) icon).getBitmap());
+		}
+	}
+
+	/**
+	 * @return a drawable of its own for another user of the icon: a new reference for a
+	 * {@link SharedBitmapDrawable}, otherwise a drawable that shares the bitmap, which then can't
+	 * be reused by masking anymore, since either user might hand it back while the other still
+	 * shows it. Null for null.
+	 */
+	Drawable duplicateIcon(final Drawable icon) {
+		if (icon == null) {
+			return null;
+		} else if (icon instanceof SharedBitmapDrawable) {
+			return ((SharedBitmapDrawable) icon).newReference();
+		}
+
+		final AppFilter appFilter = this.appFilter;
+		final MaskCompositor compositor = appFilter != null ? appFilter.compositor : null;
+
+		if (compositor != null && icon instanceof BitmapDrawable) {
+			compositor.share(((BitmapDrawable) icon).getBitmap());
+		}
+
+		final Drawable.ConstantState state = icon.getConstantState();
+
+		return state != null ? state.newDrawable() : icon;
+	}
+
+	/**
+	 * Receives icons from the bulk methods as soon as they have been resolved.
+	 */
+	public interface IconCallback<T> {
+		/**
+		 * @param icon - null if the item couldn't be resolved
+		 */
+		void onIconResolved(T item, Drawable icon);
+	}
+
+	private interface ResolveInfoGetter<T> {
+		ResolveInfo getResolveInfo(T item);
+	}
+
+	/**
+	 * Gets told when loading the appfilter through
+	 * {@link #initAppFilterAsync(Executor, boolean, OnAppFilterLoadedListener)} has finished.
+	 */
+	public interface OnAppFilterLoadedListener {
+		void onAppFilterLoaded(IconPack iconPack);
+
+		void onAppFilterLoadFailed(IconPack iconPack, Throwable cause);
+	}
+
+	/**
+	 * A single appfilter load, shared by everyone who asks for it while it is running.
+	 */
+	private class AppFilterLoad extends FutureTask<IconPack> {
+		final boolean initMasking;
+		private final AtomicBoolean submitted = new AtomicBoolean();
+		private final List<OnAppFilterLoadedListener> listeners = new ArrayList<>();
+
+		AppFilterLoad(final boolean initMasking) {
+			super(new Callable<IconPack>() {
+				@Override
+				public IconPack call() throws Exception {
+					loadAppFilter(initMasking);
+
+					return IconPack.this;
+				}
+			});
+
+			this.initMasking = initMasking;
+		}
+
+		/**
+		 * @return true the first time it is called, so the load only gets submitted once
+		 */
+		boolean markSubmitted() {
+			return this.submitted.compareAndSet(false, true);
+		}
+
+		boolean hasFailed() {
+			if (! this.isDone()) {
+				return false;
+			}
+
+			try {
+				this.get();
+
+				return false;
+			} catch (final Exception ex) {
+				return true;
+			}
+		}
+
+		void addListener(final OnAppFilterLoadedListener listener) {
+			synchronized (this.listeners) {
+				if (! this.isDone()) {
+					this.listeners.add(listener);
+
+					return;
+				}
+			}
+
+			this.notifyListener(listener);
+		}
+
+		@Override
+		protected void done() {
+			final List<OnAppFilterLoadedListener> listeners;
+
+			synchronized (this.listeners) {
+				listeners = new ArrayList<>(this.listeners);
+				this.listeners.clear();
+			}
+
+			for (final OnAppFilterLoadedListener listener : listeners) {
+				this.notifyListener(listener);
+			}
+		}
+
+		private void notifyListener(final OnAppFilterLoadedListener listener) {
+			try {
+				this.get();
+			} catch (final ExecutionException ex) {
+				listener.onAppFilterLoadFailed(IconPack.this, ex.getCause());
+
+				return;
+			} catch (final Exception ex) {
+				listener.onAppFilterLoadFailed(IconPack.this, ex);
+
+				return;
+			}
+
+			listener.onAppFilterLoaded(IconPack.this);
+		}
+	}
+
+	public String getPackageName() {
+		return this.packageName;
+	}
+
+	public boolean isAppFilterLoaded() {
+		return this.appFilter != null;
+	}
+
+	public boolean isLoadingAppFilter() {
+		synchronized (this.appFilterLock) {
+			return this.appFilterLoad != null && ! this.appFilterLoad.isDone();
+		}
 	}
 }
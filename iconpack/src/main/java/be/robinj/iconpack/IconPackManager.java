@@ -1,29 +1,447 @@
 package be.robinj.iconpack;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.support.annotation.WorkerThread;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.robinj.iconpack.exceptions.IconPacksNotFoundException;
+import be.robinj.iconpack.exceptions.IconPacksNotLoadedException;
+import be.robinj.iconpack.metrics.IconPackMetrics;
 
 /**
  * Created by robin on 08/12/2018.
  */
 
 public class IconPackManager {
+	// Intent actions icon packs for the various launchers register their activities for
+	private static final String[] THEME_ACTIONS = {
+			"org.adw.launcher.THEMES", // ADW
+			"org.adw.launcher.icons.ACTION_PICK_ICON",
+			"com.gau.go.launcherex.theme", // Go
+			"com.novalauncher.THEME", // Nova
+			"com.teslacoilsw.launcher.THEME",
+			"com.anddoes.launcher.THEME", // Apex
+			"com.fede.launcher.THEME_ICONPACK", // LauncherPro
+			"com.dlto.atom.launcher.THEME", // Atom
+	};
+	// Categories some icon packs put on their main activity instead
+	private static final String[] THEME_CATEGORIES = {
+			"com.anddoes.launcher.THEME",
+			"com.teslacoilsw.launcher.THEME",
+			"com.fede.launcher.THEME_ICONPACK",
+	};
+
+	private final ConcurrentHashMap<String, IconPack> iconPacks = new ConcurrentHashMap<>();
+	private volatile List<IconPack> installedIconPacks;
+	private volatile IconPackMetrics metrics;
+	private BroadcastReceiver packageReceiver;
+
 	public IconPackManager() {
 	}
 
-	public IconPack getIconPack(final Context context, final String packageName)
+	/**
+	 * @param action - intent action the icon pack registered for, e.g. "org.adw.launcher.THEMES"
+	 */
+	public IconPack getIconPack(final Context context, final String action)
 			throws PackageManager.NameNotFoundException {
 		final PackageManager pacMan = context.getPackageManager();
-		final ResolveInfo resInf = pacMan.queryIntentActivities(
-				new Intent(packageName), PackageManager.GET_META_DATA).get(0);
+		final List<ResolveInfo> resInfs = pacMan.queryIntentActivities(
+				new Intent(action), PackageManager.GET_META_DATA);
+
+		if (resInfs.size() == 0) {
+			throw new IconPacksNotFoundException(action);
+		}
 
-		return this.getIconPack(context, resInf);
+		return this.getIconPack(context, resInfs.get(0));
 	}
 
 	public IconPack getIconPack(final Context context, final ResolveInfo resInf)
 			throws PackageManager.NameNotFoundException {
-		return new IconPack(context, resInf.activityInfo.packageName);
+		return this.getIconPackForPackage(context, resInf.activityInfo.packageName);
+	}
+
+	/**
+	 * Returns the cached {@link IconPack} for a package, creating it if there isn't one yet.
+	 * Cached instances are dropped when the package gets updated or removed, see
+	 * {@link #registerPackageReceiver(Context)}.
+	 */
+	public IconPack getIconPackForPackage(final Context context, final String packageName)
+			throws PackageManager.NameNotFoundException {
+		final IconPack cached = this.iconPacks.get(packageName);
+
+		if (cached != null) {
+			return cached;
+		}
+
+		// Cached instances outlive whatever activity asked for them first
+		final Context applicationContext = context.getApplicationContext();
+		final IconPack iconPack = new IconPack(
+				applicationContext != null ? applicationContext : context, packageName);
+		iconPack.setMetrics(this.metrics);
+		final IconPack raced = this.iconPacks.putIfAbsent(packageName, iconPack);
+
+		return raced != null ? raced : iconPack;
+	}
+
+	/**
+	 * Chains icon packs: an app gets its icon from the first pack that has one for it, and apps
+	 * none of them has an icon for are masked with the masking pack. Loads the appfilters that
+	 * aren't loaded yet, and the masking pack's masking.
+	 *
+	 * @param packageNames       - icon packs in order of preference
+	 * @param maskingPackageName - icon pack whose masking is applied to the remaining apps; need
+	 *                           not be one of the chained packs; may be null for no masking
+	 */
+	@WorkerThread
+	public CompositeIconResolver getCompositeIconResolver(final Context context,
+														  final List<String> packageNames,
+														  final String maskingPackageName)
+			throws PackageManager.NameNotFoundException, IOException, XmlPullParserException {
+		final List<IconPack> iconPacks = new ArrayList<>(packageNames.size());
+
+		for (final String packageName : packageNames) {
+			final IconPack iconPack = this.getIconPackForPackage(context, packageName);
+			iconPack.initAppFilter(packageName.equals(maskingPackageName));
+			iconPacks.add(iconPack);
+		}
+
+		IconPack maskingIconPack = null;
+		if (maskingPackageName != null) {
+			maskingIconPack = this.getIconPackForPackage(context, maskingPackageName);
+			maskingIconPack.initAppFilter(true);
+		}
+
+		return new CompositeIconResolver(iconPacks, maskingIconPack, context.getPackageManager());
+	}
+
+	/**
+	 * Finds every installed icon pack, for all the launchers' intent actions and categories.
+	 * Icon packs that registered for more than one of them are only returned once.
+	 */
+	public List<ResolveInfo> findInstalledIconPacks(final Context context) {
+		final IconPackMetrics metrics = this.metrics;
+		final long start = metrics != null ? System.nanoTime() : 0;
+		final PackageManager pacMan = context.getPackageManager();
+		final Map<String, ResolveInfo> found = new LinkedHashMap<>();
+
+		for (final String action : THEME_ACTIONS) {
+			this.addIconPacks(found, pacMan, new Intent(action));
+		}
+
+		for (final String category : THEME_CATEGORIES) {
+			this.addIconPacks(found, pacMan, new Intent(Intent.ACTION_MAIN).addCategory(category));
+		}
+
+		if (metrics != null) {
+			metrics.onIconPacksDiscovered(found.size(), System.nanoTime() - start);
+		}
+
+		return new ArrayList<>(found.values());
+	}
+
+	private void addIconPacks(final Map<String, ResolveInfo> found, final PackageManager pacMan,
+							  final Intent intent) {
+		for (final ResolveInfo resInf : pacMan.queryIntentActivities(intent, PackageManager.GET_META_DATA)) {
+			final String packageName = resInf.activityInfo.packageName;
+
+			if (! found.containsKey(packageName)) {
+				found.put(packageName, resInf);
+			}
+		}
+	}
+
+	/**
+	 * Finds every installed icon pack and creates their {@link IconPack}s (loading their titles
+	 * and resources) in parallel on the given executor.
+	 * Icon packs that were already loaded before come from the cache.
+	 *
+	 * @param listener - called on one of the executor's threads once all icon packs are loaded
+	 *                 (or on the calling thread, if the executor rejects the work); also called
+	 *                 when some of them fail to load
+	 */
+	public void loadInstalledIconPacksAsync(final Context context, final Executor executor,
+											final OnIconPacksLoadedListener listener) {
+		final List<ResolveInfo> resInfs = this.findInstalledIconPacks(context);
+		final IconPack[] loaded = new IconPack[resInfs.size()];
+		final AtomicInteger remaining = new AtomicInteger(resInfs.size());
+
+		if (resInfs.size() == 0) {
+			this.onIconPacksLoaded(loaded, listener);
+
+			return;
+		}
+
+		for (int i = 0; i < resInfs.size(); i++) {
+			final int index = i;
+			final ResolveInfo resInf = resInfs.get(i);
+
+			execute(executor, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						loaded[index] = getIconPack(context, resInf);
+					} catch (final PackageManager.NameNotFoundException ex) {
+						// Uninstalled while we were looking at it
+						ex.printStackTrace();
+					} catch (final RuntimeException ex) {
+						ex.printStackTrace();
+					} finally {
+						if (remaining.decrementAndGet() == 0) {
+							onIconPacksLoaded(loaded, listener);
+						}
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Same as {@link #loadInstalledIconPacksAsync(Context, Executor, OnIconPacksLoadedListener)},
+	 * but waits for all icon packs to be loaded. Don't call it from one of the executor's threads.
+	 */
+	@WorkerThread
+	public List<IconPack> loadInstalledIconPacks(final Context context, final Executor executor)
+			throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final List<List<IconPack>> result = new ArrayList<>(1);
+
+		this.loadInstalledIconPacksAsync(context, executor, new OnIconPacksLoadedListener() {
+			@Override
+			public void onIconPacksLoaded(final List<IconPack> iconPacks) {
+				try {
+					result.add(iconPacks);
+				} finally {
+					latch.countDown();
+				}
+			}
+		});
+
+		latch.await();
+
+		return result.get(0);
+	}
+
+	/**
+	 * Runs the task on the executor or, if the executor won't take it (e.g. because it was shut
+	 * down or its queue is full), on the calling thread, so whoever waits for it isn't left
+	 * waiting forever.
+	 */
+	static void execute(final Executor executor, final Runnable task) {
+		try {
+			executor.execute(task);
+		} catch (final RejectedExecutionException ex) {
+			ex.printStackTrace();
+
+			task.run();
+		}
+	}
+
+	private void onIconPacksLoaded(final IconPack[] loaded, final OnIconPacksLoadedListener listener) {
+		final List<IconPack> iconPacks = new ArrayList<>(loaded.length);
+
+		for (final IconPack iconPack : loaded) {
+			if (iconPack != null) {
+				iconPacks.add(iconPack);
+			}
+		}
+
+		this.installedIconPacks = Collections.unmodifiableList(iconPacks);
+
+		if (listener != null) {
+			listener.onIconPacksLoaded(this.installedIconPacks);
+		}
+	}
+
+	/**
+	 * @return icon packs found by the last call to
+	 * {@link #loadInstalledIconPacksAsync(Context, Executor, OnIconPacksLoadedListener)}
+	 * @throws IconPacksNotLoadedException if they haven't been loaded (since the last time an
+	 *                                     icon pack was installed, updated or removed)
+	 */
+	public List<IconPack> getInstalledIconPacks() {
+		final List<IconPack> iconPacks = this.installedIconPacks;
+
+		if (iconPacks == null) {
+			throw new IconPacksNotLoadedException();
+		}
+
+		return iconPacks;
+	}
+
+	/**
+	 * Sets the metrics that this manager and all of its icon packs (including the ones it has
+	 * already created) report to.
+	 *
+	 * @param metrics - e.g. a {@link be.robinj.iconpack.metrics.MetricsRecorder}; null to stop
+	 *                measuring
+	 */
+	public void setMetrics(final IconPackMetrics metrics) {
+		this.metrics = metrics;
+
+		for (final IconPack iconPack : this.iconPacks.values()) {
+			iconPack.setMetrics(metrics);
+		}
+	}
+
+	public IconPackMetrics getMetrics() {
+		return this.metrics;
+	}
+
+	/**
+	 * Drops the cached {@link IconPack} for a package, e.g. because it was updated.
+	 */
+	public void invalidate(final String packageName) {
+		final IconPack removed = this.iconPacks.remove(packageName);
+		final List<IconPack> installed = this.installedIconPacks;
+
+		if (removed != null && installed != null && installed.contains(removed)) {
+			this.installedIconPacks = null;
+		}
+	}
+
+	public void invalidateAll() {
+		this.iconPacks.clear();
+		this.installedIconPacks = null;
+	}
+
+	/**
+	 * Brings a cached icon pack up to date on the executor, see {@link IconPack#refresh()}.
+	 * If it can't be refreshed, it is dropped from the cache instead.
+	 *
+	 * @param listener - called on one of the executor's threads; may be null
+	 */
+	public void refreshIconPackAsync(final String packageName, final Executor executor,
+									 final OnIconPackRefreshedListener listener) {
+		final IconPack iconPack = this.iconPacks.get(packageName);
+
+		if (iconPack == null) {
+			return;
+		}
+
+		execute(executor, new Runnable() {
+			@Override
+			public void run() {
+				final AppFilterDiff diff;
+
+				try {
+					diff = iconPack.refresh();
+				} catch (final Exception ex) {
+					ex.printStackTrace();
+
+					invalidate(packageName);
+
+					if (listener != null) {
+						listener.onIconPackRefreshFailed(packageName, ex);
+					}
+
+					return;
+				}
+
+				if (listener != null) {
+					listener.onIconPackRefreshed(iconPack, diff);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts listening for packages being installed, updated or removed, so cached icon packs
+	 * are dropped as soon as they change.
+	 */
+	public void registerPackageReceiver(final Context context) {
+		this.registerPackageReceiver(context, null, null);
+	}
+
+	/**
+	 * Starts listening for packages being installed, updated or removed. Cached icon packs that
+	 * get updated are refreshed on the executor instead of being dropped, see
+	 * {@link #refreshIconPackAsync(String, Executor, OnIconPackRefreshedListener)}; removed
+	 * ones are dropped.
+	 *
+	 * @param executor - null to drop updated icon packs as well
+	 * @param listener - told what changed in refreshed icon packs; may be null
+	 */
+	public synchronized void registerPackageReceiver(final Context context, final Executor executor,
+													 final OnIconPackRefreshedListener listener) {
+		if (this.packageReceiver != null) {
+			return;
+		}
+
+		final IntentFilter filter = new IntentFilter();
+		filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+		filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+		filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+		filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+		filter.addDataScheme("package");
+
+		this.packageReceiver = new BroadcastReceiver() {
+			@Override
+			public void onReceive(final Context context, final Intent intent) {
+				final Uri data = intent.getData();
+				final String action = intent.getAction();
+				// An update also sends PACKAGE_REMOVED and PACKAGE_ADDED, with EXTRA_REPLACING
+				final boolean update = Intent.ACTION_PACKAGE_REPLACED.equals(action)
+						|| intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+
+				if (data != null) {
+					if (executor == null || ! update) {
+						invalidate(data.getSchemeSpecificPart());
+					} else if (Intent.ACTION_PACKAGE_REPLACED.equals(action)) {
+						refreshIconPackAsync(data.getSchemeSpecificPart(), executor, listener);
+					}
+				}
+
+				if (Intent.ACTION_PACKAGE_ADDED.equals(action)) {
+					// Might be a new icon pack
+					installedIconPacks = null;
+				}
+			}
+		};
+
+		context.getApplicationContext().registerReceiver(this.packageReceiver, filter);
+	}
+
+	public synchronized void unregisterPackageReceiver(final Context context) {
+		if (this.packageReceiver != null) {
+			context.getApplicationContext().unregisterReceiver(this.packageReceiver);
+			this.packageReceiver = null;
+		}
+	}
+
+	public interface OnIconPacksLoadedListener {
+		void onIconPacksLoaded(List<IconPack> iconPacks);
+	}
+
+	public interface OnIconPackRefreshedListener {
+		/**
+		 * @param diff - which appfilter entries changed; only icons of those components need to
+		 *             be reloaded
+		 */
+		void onIconPackRefreshed(IconPack iconPack, AppFilterDiff diff);
+
+		/**
+		 * The icon pack was dropped from the cache; everything that came from it should be
+		 * reloaded.
+		 */
+		void onIconPackRefreshFailed(String packageName, Throwable error);
 	}
 }
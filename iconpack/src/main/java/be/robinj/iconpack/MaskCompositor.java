@@ -0,0 +1,197 @@
+package be.robinj.iconpack;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import be.robinj.iconpack.utils.BitmapHelper;
+
+/**
+ * Draws app icons onto the iconback/iconmask/iconupon layers of an {@link IconMasking}.
+ * <p>
+ * Everything that doesn't depend on the icon being masked (layers, paints, xfermodes) is set up
+ * once. Each thread gets its own reusable canvas, and output bitmaps that are handed back
+ * through {@link #recycle(Bitmap)} are reused for the next icon instead of allocating a new one.
+ */
+class MaskCompositor {
+	private static final int MAX_POOL_SIZE = 8;
+
+	private final List<Bitmap> backImages;
+	private final Bitmap maskImage;
+	private final Bitmap frontImage;
+	private final float factor;
+
+	// Only ever read while drawing, so they can be shared between threads
+	private final Paint maskPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint backMaskPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+	private final ArrayDeque<Bitmap> pool = new ArrayDeque<>();
+	// Outputs that haven't been handed out to anyone else (e.g. a cache) and may be recycled
+	private final Map<Bitmap, Boolean> recyclable = new WeakHashMap<>();
+
+	private final ThreadLocal<Workspace> workspace = new ThreadLocal<Workspace>() {
+		@Override
+		protected Workspace initialValue() {
+			return new Workspace();
+		}
+	};
+
+	MaskCompositor(final IconMasking masking) {
+		this.backImages = Collections.unmodifiableList(
+				new ArrayList<>(masking.getBackgroundImages()));
+		this.maskImage = masking.maskImage;
+		this.frontImage = masking.frontImage;
+		this.factor = masking.getFactor();
+
+		this.maskPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OUT));
+		this.backMaskPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_IN));
+	}
+
+	int getBackgroundCount() {
+		return this.backImages.size();
+	}
+
+	/**
+	 * @return the larger of the iconback image's width and height
+	 */
+	int getBackgroundSize(final int backIndex) {
+		final Bitmap backImage = this.backImages.get(backIndex);
+
+		return Math.max(backImage.getWidth(), backImage.getHeight());
+	}
+
+	/**
+	 * @return memory held by output bitmaps waiting in the pool to be reused
+	 */
+	long getPoolBytes() {
+		long bytes = 0;
+
+		synchronized (this.pool) {
+			for (final Bitmap pooled : this.pool) {
+				bytes += BitmapHelper.getByteCount(pooled);
+			}
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * @param source    the app's own icon
+	 * @param backIndex which of the iconback images to use
+	 * @return a new (or recycled) bitmap the size of the iconback image
+	 */
+	Bitmap compose(final Bitmap source, final int backIndex) {
+		final Bitmap backImage = this.backImages.get(backIndex);
+		final int w = backImage.getWidth();
+		final int h = backImage.getHeight();
+
+		final Bitmap result = this.obtain(w, h);
+		final Workspace workspace = this.workspace.get();
+		final Canvas canvas = workspace.canvas;
+		canvas.setBitmap(result);
+
+		// draw the background first
+		canvas.drawBitmap(backImage, 0, 0, null);
+
+		// icons that don't fit are scaled down to the scale factor, others are drawn as they are
+		final int scaledWidth;
+		final int scaledHeight;
+		if (source.getWidth() > w || source.getHeight() > h) {
+			scaledWidth = (int) (w * this.factor);
+			scaledHeight = (int) (h * this.factor);
+		} else {
+			scaledWidth = source.getWidth();
+			scaledHeight = source.getHeight();
+		}
+
+		final int left = (w - scaledWidth) / 2;
+		final int top = (h - scaledHeight) / 2;
+		workspace.source.set(0, 0, source.getWidth(), source.getHeight());
+		workspace.destination.set(left, top, left + scaledWidth, top + scaledHeight);
+		canvas.drawBitmap(source, workspace.source, workspace.destination, null);
+
+		if (this.maskImage != null) {
+			// cut the mask out of the result
+			canvas.drawBitmap(this.maskImage, 0, 0, this.maskPaint);
+		} else {
+			// use the back image as mask
+			canvas.drawBitmap(backImage, 0, 0, this.backMaskPaint);
+		}
+
+		if (this.frontImage != null) {
+			// paint the front
+			canvas.drawBitmap(this.frontImage, 0, 0, null);
+		}
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			// don't keep the result reachable from this thread's canvas
+			canvas.setBitmap(null);
+		}
+
+		synchronized (this.recyclable) {
+			this.recyclable.put(result, Boolean.TRUE);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Marks a result as shared (e.g. because it was put in a cache), so it will never be
+	 * recycled.
+	 */
+	void share(final Bitmap result) {
+		synchronized (this.recyclable) {
+			this.recyclable.remove(result);
+		}
+	}
+
+	/**
+	 * Hands a result that is no longer being used back, so it can be reused for the next icon.
+	 * Bitmaps that weren't made by this compositor, or that were shared, are ignored.
+	 */
+	void recycle(final Bitmap result) {
+		synchronized (this.recyclable) {
+			if (this.recyclable.remove(result) == null) {
+				return;
+			}
+		}
+
+		synchronized (this.pool) {
+			if (this.pool.size() < MAX_POOL_SIZE) {
+				this.pool.push(result);
+			}
+		}
+	}
+
+	private Bitmap obtain(final int w, final int h) {
+		synchronized (this.pool) {
+			final Bitmap pooled = this.pool.poll();
+
+			if (pooled != null && ! pooled.isRecycled()
+					&& pooled.getWidth() == w && pooled.getHeight() == h) {
+				pooled.eraseColor(0);
+
+				return pooled;
+			}
+		}
+
+		return Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+	}
+
+	private static class Workspace {
+		final Canvas canvas = new Canvas();
+		final Rect source = new Rect();
+		final Rect destination = new Rect();
+	}
+}
@@ -0,0 +1,281 @@
+package be.robinj.iconpack;
+
+import android.content.ComponentCallbacks2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import be.robinj.iconpack.cache.BitmapInterner;
+import be.robinj.iconpack.cache.BitmapLruCache;
+import be.robinj.iconpack.cache.BitmapPool;
+
+/**
+ * Keeps the memory held by icon packs within a budget: the masking layers (iconback, iconmask
+ * and iconupon bitmaps, plus what's derived from them) and the in-memory icon caches.
+ * Install it with {@link IconPack#setMemoryGovernor(MemoryGovernor)}; one governor can look
+ * after several icon packs.
+ * <p>
+ * When the budget is exceeded, memory is given back in order of how cheap it is to get back:
+ * <ol>
+ * <li>bitmaps waiting in a {@link BitmapPool} of the packs' {@link BitmapInterner}s</li>
+ * <li>the least recently used cached icons are evicted</li>
+ * <li>pixel buffer copies of the layers, made again by the next bulk masking</li>
+ * </ol>
+ * The layers themselves are left alone, since every masked icon needs them. Pass the app's trim
+ * memory callbacks on to {@link #onTrimMemory(int)} and {@link #onLowMemory()}: at critical
+ * levels the layers are downsampled (halving them each time) and, once the app is likely to be
+ * killed, released altogether and loaded again the next time an icon is masked. Call
+ * {@link #onMemoryPressureEnded()} when the pressure is over to get full size layers back.
+ * <p>
+ * Icon caches other than {@link BitmapLruCache} and
+ * {@link be.robinj.iconpack.cache.TwoLevelIconCache} aren't counted or trimmed.
+ */
+public class MemoryGovernor {
+	// Share of the heap icon packs may use by default
+	private static final int DEFAULT_BUDGET_DIVIDER = 8;
+
+	// What trimming may do to the masking layers
+	private static final int LAYERS_KEEP = 0;
+	private static final int LAYERS_DOWNSAMPLE = 1;
+	private static final int LAYERS_RELEASE = 2;
+
+	// guarded by itself
+	private final Set<IconPack> iconPacks = Collections.newSetFromMap(
+			new WeakHashMap<IconPack, Boolean>());
+	private volatile long budget;
+
+	/**
+	 * Uses an eighth of the heap.
+	 */
+	public MemoryGovernor() {
+		this(Runtime.getRuntime().maxMemory() / DEFAULT_BUDGET_DIVIDER);
+	}
+
+	/**
+	 * @param budget - in bytes
+	 */
+	public MemoryGovernor(final long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Changes the budget, giving memory back right away if the new one is smaller.
+	 */
+	public void setBudget(final long budget) {
+		this.budget = budget;
+		this.enforceBudget();
+	}
+
+	public long getBudget() {
+		return this.budget;
+	}
+
+	/**
+	 * @return memory held by the masking layers, in-memory icon caches and bitmap pools of all
+	 * icon packs
+	 */
+	public long getBytes() {
+		final List<IconPack> iconPacks = this.getIconPacks();
+
+		return sumMaskingBytes(iconPacks) + sumCacheBytes(getMemoryCaches(iconPacks))
+				+ sumPoolBytes(getPools(iconPacks));
+	}
+
+	public long getMaskingBytes() {
+		return sumMaskingBytes(this.getIconPacks());
+	}
+
+	public long getCacheBytes() {
+		return sumCacheBytes(getMemoryCaches(this.getIconPacks()));
+	}
+
+	/**
+	 * Gives memory back until the icon packs are within budget, without touching the masking
+	 * layers. Called every time an icon pack loads its layers.
+	 */
+	public void enforceBudget() {
+		this.trim(this.budget, LAYERS_KEEP);
+	}
+
+	/**
+	 * @param level - as passed to {@link ComponentCallbacks2#onTrimMemory(int)}
+	 */
+	public void onTrimMemory(final int level) {
+		final long budget = this.budget;
+
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+			// Likely to be killed; drop whatever can be loaded again
+			this.trim(0, LAYERS_RELEASE);
+		} else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			// Still in use, so icons must keep getting masked, if with smaller layers
+			this.trim(0, LAYERS_DOWNSAMPLE);
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+				|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			this.trim(budget / 4, LAYERS_KEEP);
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+				|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+			this.trim(budget / 2, LAYERS_KEEP);
+		}
+	}
+
+	public void onLowMemory() {
+		this.trim(0, LAYERS_RELEASE);
+	}
+
+	/**
+	 * Lets the icon packs load their masking layers at full size again (the next time an icon is
+	 * masked) if they were downsampled. Call it once memory pressure is over, e.g. when the app
+	 * comes back to the foreground.
+	 */
+	public void onMemoryPressureEnded() {
+		for (final IconPack iconPack : this.getIconPacks()) {
+			iconPack.restoreMasking();
+		}
+	}
+
+	void register(final IconPack iconPack) {
+		synchronized (this.iconPacks) {
+			this.iconPacks.add(iconPack);
+		}
+
+		this.enforceBudget();
+	}
+
+	void unregister(final IconPack iconPack) {
+		synchronized (this.iconPacks) {
+			this.iconPacks.remove(iconPack);
+		}
+	}
+
+	/**
+	 * @param layers - LAYERS_ constant; how far the masking layers may be cut back if giving
+	 *               everything else back isn't enough
+	 */
+	private synchronized void trim(final long target, final int layers) {
+		final List<IconPack> iconPacks = this.getIconPacks();
+		final List<BitmapLruCache> caches = getMemoryCaches(iconPacks);
+		final List<BitmapPool> pools = getPools(iconPacks);
+
+		if (sumMaskingBytes(iconPacks) + sumCacheBytes(caches) + sumPoolBytes(pools) <= target) {
+			return;
+		}
+
+		for (final BitmapPool pool : pools) {
+			pool.clear();
+		}
+
+		long maskingBytes = sumMaskingBytes(iconPacks);
+		final long cacheBytes = sumCacheBytes(caches);
+		final long cacheTarget = Math.max(0, target - maskingBytes);
+
+		if (cacheBytes > cacheTarget) {
+			// Every cache gives back the same share of what it holds
+			for (final BitmapLruCache cache : caches) {
+				cache.trimToSize(cache.getBytes() * cacheTarget / cacheBytes);
+			}
+		}
+
+		if (maskingBytes <= target) {
+			return;
+		}
+
+		for (final IconPack iconPack : iconPacks) {
+			iconPack.releasePixelCompositor();
+		}
+
+		maskingBytes = sumMaskingBytes(iconPacks);
+		// Layers that are going to be released anyway aren't worth scaling first
+		boolean downsampled = layers == LAYERS_DOWNSAMPLE;
+
+		while (maskingBytes > target && downsampled) {
+			downsampled = false;
+
+			for (final IconPack iconPack : iconPacks) {
+				downsampled |= iconPack.downsampleMasking();
+			}
+
+			maskingBytes = sumMaskingBytes(iconPacks);
+		}
+
+		if (layers == LAYERS_RELEASE && maskingBytes > target) {
+			for (final IconPack iconPack : iconPacks) {
+				iconPack.releaseMasking();
+			}
+		}
+	}
+
+	private List<IconPack> getIconPacks() {
+		synchronized (this.iconPacks) {
+			return new ArrayList<>(this.iconPacks);
+		}
+	}
+
+	/**
+	 * @return each memory cache once, even if several icon packs share it
+	 */
+	private static List<BitmapLruCache> getMemoryCaches(final List<IconPack> iconPacks) {
+		final Map<BitmapLruCache, Boolean> caches = new IdentityHashMap<>();
+
+		for (final IconPack iconPack : iconPacks) {
+			final BitmapLruCache cache = iconPack.getMemoryCache();
+
+			if (cache != null) {
+				caches.put(cache, Boolean.TRUE);
+			}
+		}
+
+		return new ArrayList<>(caches.keySet());
+	}
+
+	/**
+	 * @return each interner's pool once, even if several icon packs share it
+	 */
+	private static List<BitmapPool> getPools(final List<IconPack> iconPacks) {
+		final Map<BitmapPool, Boolean> pools = new IdentityHashMap<>();
+
+		for (final IconPack iconPack : iconPacks) {
+			final BitmapInterner interner = iconPack.getBitmapInterner();
+
+			if (interner != null && interner.getPool() != null) {
+				pools.put(interner.getPool(), Boolean.TRUE);
+			}
+		}
+
+		return new ArrayList<>(pools.keySet());
+	}
+
+	private static long sumMaskingBytes(final List<IconPack> iconPacks) {
+		long bytes = 0;
+
+		for (final IconPack iconPack : iconPacks) {
+			bytes += iconPack.getMaskingBytes();
+		}
+
+		return bytes;
+	}
+
+	private static long sumCacheBytes(final List<BitmapLruCache> caches) {
+		long bytes = 0;
+
+		for (final BitmapLruCache cache : caches) {
+			bytes += cache.getBytes();
+		}
+
+		return bytes;
+	}
+
+	private static long sumPoolBytes(final List<BitmapPool> pools) {
+		long bytes = 0;
+
+		for (final BitmapPool pool : pools) {
+			bytes += pool.getBytes();
+		}
+
+		return bytes;
+	}
+}
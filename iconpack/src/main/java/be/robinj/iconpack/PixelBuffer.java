@@ -0,0 +1,73 @@
+package be.robinj.iconpack;
+
+/**
+ * Plain ARGB pixels for {@link PixelCompositor}, held premultiplied so compositing is just
+ * multiplying and adding. Doesn't depend on android.graphics, so it works on any JVM.
+ */
+class PixelBuffer {
+	final int width;
+	final int height;
+	// premultiplied ARGB, row by row
+	final int[] pixels;
+
+	PixelBuffer(final int width, final int height) {
+		this(width, height, new int[width * height]);
+	}
+
+	private PixelBuffer(final int width, final int height, final int[] pixels) {
+		this.width = width;
+		this.height = height;
+		this.pixels = pixels;
+	}
+
+	/**
+	 * @param argb - unpremultiplied colours, like {@link android.graphics.Bitmap#getPixels} gives
+	 *             them; converted in place
+	 */
+	static PixelBuffer fromArgb(final int width, final int height, final int[] argb) {
+		for (int i = 0; i < argb.length; i++) {
+			argb[i] = scale(argb[i] | 0xFF000000, argb[i] >>> 24);
+		}
+
+		return new PixelBuffer(width, height, argb);
+	}
+
+	/**
+	 * @return unpremultiplied colours, e.g. for {@link android.graphics.Bitmap#createBitmap(int[], int, int, android.graphics.Bitmap.Config)}
+	 */
+	int[] toArgb() {
+		final int[] argb = new int[this.pixels.length];
+
+		for (int i = 0; i < argb.length; i++) {
+			final int pixel = this.pixels[i];
+			final int a = pixel >>> 24;
+
+			if (a == 0xFF || a == 0) {
+				argb[i] = pixel;
+			} else {
+				final int half = a >> 1;
+				final int r = Math.min(0xFF, (((pixel >> 16) & 0xFF) * 0xFF + half) / a);
+				final int g = Math.min(0xFF, (((pixel >> 8) & 0xFF) * 0xFF + half) / a);
+				final int b = Math.min(0xFF, ((pixel & 0xFF) * 0xFF + half) / a);
+
+				argb[i] = (a << 24) | (r << 16) | (g << 8) | b;
+			}
+		}
+
+		return argb;
+	}
+
+	/**
+	 * Multiplies all four channels by alpha / 255, two channels per multiplication and rounded
+	 * like a division by 255 would be. No branches, so loops over it stay simple for the JIT.
+	 */
+	static int scale(final int pixel, final int alpha) {
+		int rb = (pixel & 0x00FF00FF) * alpha + 0x00800080;
+		rb = ((rb + ((rb >>> 8) & 0x00FF00FF)) >>> 8) & 0x00FF00FF;
+
+		int ag = ((pixel >>> 8) & 0x00FF00FF) * alpha + 0x00800080;
+		ag = (ag + ((ag >>> 8) & 0x00FF00FF)) & 0xFF00FF00;
+
+		return ag | rb;
+	}
+}
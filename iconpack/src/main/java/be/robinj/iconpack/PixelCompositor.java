@@ -0,0 +1,267 @@
+package be.robinj.iconpack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Same masking as {@link MaskCompositor}, on {@link PixelBuffer}s instead of a Canvas: the
+ * iconback, the app's icon drawn over it (scaled down to the scale factor if it doesn't fit),
+ * the iconmask cut out of it (or the result clipped to the iconback if there's no iconmask) and
+ * the iconupon drawn on top.
+ * <p>
+ * It only needs int arrays, so it runs (and can be measured) on a plain JVM, and many icons can
+ * be composited on as many threads as there are cores, see
+ * {@link #composeAll(PixelBuffer[], int[], Executor)}. Layers are only read, so one compositor
+ * can be shared by all threads.
+ */
+class PixelCompositor {
+	private final List<PixelBuffer> backImages;
+	private final PixelBuffer maskImage;
+	private final PixelBuffer frontImage;
+	private final float factor;
+
+	/**
+	 * @param maskImage  - may be null
+	 * @param frontImage - may be null
+	 */
+	PixelCompositor(final List<PixelBuffer> backImages, final PixelBuffer maskImage,
+					final PixelBuffer frontImage, final float factor) {
+		this.backImages = Collections.unmodifiableList(new ArrayList<>(backImages));
+		this.maskImage = maskImage;
+		this.frontImage = frontImage;
+		this.factor = factor;
+	}
+
+	int getBackgroundCount() {
+		return this.backImages.size();
+	}
+
+	/**
+	 * @return the larger of the iconback image's width and height
+	 */
+	int getBackgroundSize(final int backIndex) {
+		final PixelBuffer backImage = this.backImages.get(backIndex);
+
+		return Math.max(backImage.width, backImage.height);
+	}
+
+	/**
+	 * @return memory held by the layers' pixels
+	 */
+	long getBytes() {
+		long pixels = 0;
+
+		for (final PixelBuffer backImage : this.backImages) {
+			pixels += backImage.pixels.length;
+		}
+
+		if (this.maskImage != null) {
+			pixels += this.maskImage.pixels.length;
+		}
+
+		if (this.frontImage != null) {
+			pixels += this.frontImage.pixels.length;
+		}
+
+		return pixels * 4;
+	}
+
+	/**
+	 * @param source    the app's own icon
+	 * @param backIndex which of the iconback images to use
+	 * @return a new buffer the size of the iconback image
+	 */
+	PixelBuffer compose(final PixelBuffer source, final int backIndex) {
+		final PixelBuffer backImage = this.backImages.get(backIndex);
+		final int w = backImage.width;
+		final int h = backImage.height;
+		final PixelBuffer result = new PixelBuffer(w, h);
+
+		// draw the background first
+		System.arraycopy(backImage.pixels, 0, result.pixels, 0, w * h);
+
+		// icons that don't fit are scaled down to the scale factor, others are drawn as they are
+		final int scaledWidth;
+		final int scaledHeight;
+		if (source.width > w || source.height > h) {
+			scaledWidth = (int) (w * this.factor);
+			scaledHeight = (int) (h * this.factor);
+		} else {
+			scaledWidth = source.width;
+			scaledHeight = source.height;
+		}
+
+		drawScaled(source, result, (w - scaledWidth) / 2, (h - scaledHeight) / 2,
+				scaledWidth, scaledHeight);
+
+		if (this.maskImage != null) {
+			// cut the mask out of the result
+			destinationOut(this.maskImage, result);
+		} else {
+			// use the back image as mask
+			destinationIn(backImage, result);
+		}
+
+		if (this.frontImage != null) {
+			// paint the front
+			sourceOver(this.frontImage, result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Composes many icons, split into one chunk per core and run on the executor. Blocks until
+	 * all of them are done, so don't call this from a thread the executor depends on.
+	 * <p>
+	 * Chunks on an executor rather than a ForkJoinPool, which isn't available on every version
+	 * of Android this library supports.
+	 *
+	 * @param backIndexes - which iconback to use for each source
+	 * @return the results, in the same order as the sources
+	 */
+	PixelBuffer[] composeAll(final PixelBuffer[] sources, final int[] backIndexes,
+							 final Executor executor) throws InterruptedException {
+		final PixelBuffer[] results = new PixelBuffer[sources.length];
+
+		if (sources.length == 0) {
+			return results;
+		}
+
+		final int chunkCount = Math.min(sources.length, Runtime.getRuntime().availableProcessors());
+		final int chunkSize = (sources.length + chunkCount - 1) / chunkCount;
+		final CountDownLatch latch = new CountDownLatch(chunkCount);
+		final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+		for (int chunk = 0; chunk < chunkCount; chunk++) {
+			final int start = chunk * chunkSize;
+			final int end = Math.min(sources.length, start + chunkSize);
+
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int i = start; i < end; i++) {
+							if (sources[i] != null) {
+								results[i] = compose(sources[i], backIndexes[i]);
+							}
+						}
+					} catch (final RuntimeException ex) {
+						failure.compareAndSet(null, ex);
+					} finally {
+						latch.countDown();
+					}
+				}
+			});
+		}
+
+		latch.await();
+
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+
+		return results;
+	}
+
+	/**
+	 * Source over, nearest neighbour scaled like a Canvas draws a bitmap without a paint.
+	 */
+	private static void drawScaled(final PixelBuffer source, final PixelBuffer destination,
+								   final int left, final int top, final int width, final int height) {
+		if (width <= 0 || height <= 0) {
+			return;
+		}
+
+		final int[] src = source.pixels;
+		final int[] dst = destination.pixels;
+		final int fromX = Math.max(0, -left);
+		final int toX = Math.min(width, destination.width - left);
+		final int fromY = Math.max(0, -top);
+		final int toY = Math.min(height, destination.height - top);
+
+		// source column of every destination column, sampled at pixel centres
+		final int[] columns = new int[width];
+		for (int x = 0; x < width; x++) {
+			columns[x] = (int) (((2L * x + 1) * source.width) / (2L * width));
+		}
+
+		for (int y = fromY; y < toY; y++) {
+			final int sourceRow = (int) (((2L * y + 1) * source.height) / (2L * height)) * source.width;
+			final int destinationRow = (top + y) * destination.width + left;
+
+			for (int x = fromX; x < toX; x++) {
+				final int s = src[sourceRow + columns[x]];
+				final int d = dst[destinationRow + x];
+
+				dst[destinationRow + x] = s + PixelBuffer.scale(d, 0xFF - (s >>> 24));
+			}
+		}
+	}
+
+	/**
+	 * Source over, drawn at the top left corner without scaling.
+	 */
+	private static void sourceOver(final PixelBuffer source, final PixelBuffer destination) {
+		final int[] src = source.pixels;
+		final int[] dst = destination.pixels;
+		final int width = Math.min(source.width, destination.width);
+		final int height = Math.min(source.height, destination.height);
+
+		for (int y = 0; y < height; y++) {
+			final int sourceRow = y * source.width;
+			final int destinationRow = y * destination.width;
+
+			for (int x = 0; x < width; x++) {
+				final int s = src[sourceRow + x];
+
+				dst[destinationRow + x] = s + PixelBuffer.scale(dst[destinationRow + x], 0xFF - (s >>> 24));
+			}
+		}
+	}
+
+	/**
+	 * Keeps the destination where the source is transparent (PorterDuff DST_OUT).
+	 */
+	private static void destinationOut(final PixelBuffer source, final PixelBuffer destination) {
+		final int[] src = source.pixels;
+		final int[] dst = destination.pixels;
+		final int width = Math.min(source.width, destination.width);
+		final int height = Math.min(source.height, destination.height);
+
+		for (int y = 0; y < height; y++) {
+			final int sourceRow = y * source.width;
+			final int destinationRow = y * destination.width;
+
+			for (int x = 0; x < width; x++) {
+				dst[destinationRow + x] = PixelBuffer.scale(dst[destinationRow + x],
+						0xFF - (src[sourceRow + x] >>> 24));
+			}
+		}
+	}
+
+	/**
+	 * Keeps the destination where the source is opaque (PorterDuff DST_IN). Like a Canvas, only
+	 * the part the source covers is touched.
+	 */
+	private static void destinationIn(final PixelBuffer source, final PixelBuffer destination) {
+		final int[] src = source.pixels;
+		final int[] dst = destination.pixels;
+		final int width = Math.min(source.width, destination.width);
+		final int height = Math.min(source.height, destination.height);
+
+		for (int y = 0; y < height; y++) {
+			final int sourceRow = y * source.width;
+			final int destinationRow = y * destination.width;
+
+			for (int x = 0; x < width; x++) {
+				dst[destinationRow + x] = PixelBuffer.scale(dst[destinationRow + x],
+						src[sourceRow + x] >>> 24);
+			}
+		}
+	}
+}
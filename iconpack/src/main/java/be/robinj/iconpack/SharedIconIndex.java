@@ -0,0 +1,563 @@
+package be.robinj.iconpack;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.robinj.iconpack.utils.ResourceIdResolver;
+
+/**
+ * Read-only, memory-mapped index of a resolved icon pack: component to drawable (name and
+ * resource ID), the masking directives and the drawable.xml categories.
+ * <p>
+ * One process exports it through {@link IconPack#exportSharedIndex()}; any process of the app
+ * can then open it through {@link IconPack#openSharedIndex(android.content.Context, String)}
+ * without parsing anything. Lookups probe hash tables directly in the mapped file; only the
+ * strings that are returned get decoded, so an open index costs next to no heap.
+ * <p>
+ * Layout (big-endian): a fixed header with section offsets, the entries (component, drawable,
+ * resource ID) in appfilter order, an open-addressed table from component to entry, one from
+ * package to its first entry, the masking directives, the categories and finally the string
+ * pool. Strings are stored once, as a length followed by UTF-8 bytes, and referred to by offset.
+ */
+public class SharedIconIndex {
+	private static final int MAGIC = 0x49505349; // "IPSI"
+	private static final int FORMAT_VERSION = 1;
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int NONE = -1;
+	private static final char COMPONENT_SEPARATOR = '/';
+	private static final String EXT_TMP = ".tmp";
+
+	// header fields
+	private static final int HEADER_VERSION_CODE = 8;
+	private static final int HEADER_LAST_UPDATE_TIME = 12;
+	private static final int HEADER_PACKAGE_NAME = 20;
+	private static final int HEADER_ENTRY_COUNT = 24;
+	private static final int HEADER_ENTRIES = 28;
+	private static final int HEADER_COMPONENT_SLOTS = 32;
+	private static final int HEADER_COMPONENT_TABLE = 36;
+	private static final int HEADER_PACKAGE_SLOTS = 40;
+	private static final int HEADER_PACKAGE_TABLE = 44;
+	private static final int HEADER_MASKING = 48;
+	private static final int HEADER_CATEGORIES = 52;
+	private static final int HEADER_SIZE = 56;
+
+	// entry: component, drawable name, resource ID
+	private static final int ENTRY_SIZE = 12;
+	// category: title, item count, offset of its items
+	private static final int CATEGORY_SIZE = 12;
+	// category item: drawable name, resource ID
+	private static final int ITEM_SIZE = 8;
+
+	private final ByteBuffer buffer;
+	private final int entryCount;
+	private final int entries;
+	private final int componentMask;
+	private final int componentTable;
+	private final int packageMask;
+	private final int packageTable;
+	private final int masking;
+	private final int categories;
+
+	private SharedIconIndex(final ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+
+		if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC
+				|| buffer.getInt(4) != FORMAT_VERSION) {
+			throw new IOException("Not a shared icon index");
+		}
+
+		this.entryCount = buffer.getInt(HEADER_ENTRY_COUNT);
+		this.entries = buffer.getInt(HEADER_ENTRIES);
+		this.componentMask = buffer.getInt(HEADER_COMPONENT_SLOTS) - 1;
+		this.componentTable = buffer.getInt(HEADER_COMPONENT_TABLE);
+		this.packageMask = buffer.getInt(HEADER_PACKAGE_SLOTS) - 1;
+		this.packageTable = buffer.getInt(HEADER_PACKAGE_TABLE);
+		this.masking = buffer.getInt(HEADER_MASKING);
+		this.categories = buffer.getInt(HEADER_CATEGORIES);
+	}
+
+	/**
+	 * Maps an exported index. The file can be closed (or even replaced) right away; the mapping
+	 * stays valid.
+	 */
+	public static SharedIconIndex open(final File file) throws IOException {
+		final FileInputStream in = new FileInputStream(file);
+
+		try {
+			final FileChannel channel = in.getChannel();
+
+			return new SharedIconIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		} catch (final RuntimeException ex) {
+			throw new IOException("Corrupt shared icon index " + file, ex);
+		} finally {
+			in.close();
+		}
+	}
+
+	public String getPackageName() {
+		return this.getString(this.buffer.getInt(HEADER_PACKAGE_NAME));
+	}
+
+	public int getVersionCode() {
+		return this.buffer.getInt(HEADER_VERSION_CODE);
+	}
+
+	public long getLastUpdateTime() {
+		return this.buffer.getLong(HEADER_LAST_UPDATE_TIME);
+	}
+
+	/**
+	 * @return whether the index was exported from exactly this build of the icon pack
+	 */
+	boolean matches(final AppFilterIndex.Key key) {
+		return this.getVersionCode() == key.versionCode
+				&& this.getLastUpdateTime() == key.lastUpdateTime
+				&& key.packageName.equals(this.getPackageName());
+	}
+
+	/**
+	 * @return number of appfilter entries
+	 */
+	public int size() {
+		return this.entryCount;
+	}
+
+	/**
+	 * @return drawable for exactly this activity, or null if the appfilter doesn't list it
+	 */
+	public String getDrawableName(final String packageName, final String className) {
+		final int entry = this.findComponent(packageName, className);
+
+		return entry != NONE ? this.getString(this.buffer.getInt(entry + 4)) : null;
+	}
+
+	/**
+	 * @return drawable for the package's first entry, or null if the appfilter doesn't list it
+	 */
+	public String getDrawableNameForPackage(final String packageName) {
+		final int entry = this.findPackage(packageName);
+
+		return entry != NONE ? this.getString(this.buffer.getInt(entry + 4)) : null;
+	}
+
+	/**
+	 * @return drawable for the activity if it's listed, otherwise for any activity of the same
+	 * package, otherwise null
+	 */
+	public String getDrawableNameForActivity(final String packageName, final String className) {
+		final int entry = this.findActivity(packageName, className);
+
+		return entry != NONE ? this.getString(this.buffer.getInt(entry + 4)) : null;
+	}
+
+	/**
+	 * Same lookup as {@link #getDrawableNameForActivity(String, String)}, without decoding any
+	 * string at all.
+	 *
+	 * @return resource ID of the drawable in the icon pack, or -1 if there is none
+	 */
+	public int getDrawableResourceIdForActivity(final String packageName, final String className) {
+		final int entry = this.findActivity(packageName, className);
+
+		return entry != NONE ? this.buffer.getInt(entry + 8) : NONE;
+	}
+
+	public List<String> getBackImages() {
+		final int count = this.buffer.getInt(this.masking + 16);
+		final List<String> backImages = new ArrayList<>(count);
+
+		for (int i = 0; i < count; i++) {
+			backImages.add(this.getString(this.buffer.getInt(this.masking + 20 + i * 4)));
+		}
+
+		return Collections.unmodifiableList(backImages);
+	}
+
+	public String getMaskImage() {
+		return this.getString(this.buffer.getInt(this.masking + 8));
+	}
+
+	public String getFrontImage() {
+		return this.getString(this.buffer.getInt(this.masking + 12));
+	}
+
+	/**
+	 * @return the scale factor, or null if the appfilter doesn't set one
+	 */
+	public Float getFactor() {
+		return this.buffer.getInt(this.masking) != 0 ? this.buffer.getFloat(this.masking + 4) : null;
+	}
+
+	public int getCategoryCount() {
+		return this.buffer.getInt(this.categories);
+	}
+
+	public String getCategoryTitle(final int category) {
+		return this.getString(this.buffer.getInt(this.getCategory(category)));
+	}
+
+	public int getCategorySize(final int category) {
+		return this.buffer.getInt(this.getCategory(category) + 4);
+	}
+
+	public String getCategoryDrawableName(final int category, final int index) {
+		return this.getString(this.buffer.getInt(this.getCategoryItem(category, index)));
+	}
+
+	public int getCategoryDrawableResourceId(final int category, final int index) {
+		return this.buffer.getInt(this.getCategoryItem(category, index) + 4);
+	}
+
+	private int getCategory(final int category) {
+		if (category < 0 || category >= this.getCategoryCount()) {
+			throw new IndexOutOfBoundsException("Category " + category);
+		}
+
+		return this.categories + 4 + category * CATEGORY_SIZE;
+	}
+
+	private int getCategoryItem(final int category, final int index) {
+		final int offset = this.getCategory(category);
+
+		if (index < 0 || index >= this.buffer.getInt(offset + 4)) {
+			throw new IndexOutOfBoundsException("Item " + index + " of category " + category);
+		}
+
+		return this.buffer.getInt(offset + 8) + index * ITEM_SIZE;
+	}
+
+	private int findActivity(final String packageName, final String className) {
+		final int entry = this.findComponent(packageName, className);
+
+		return entry != NONE ? entry : this.findPackage(packageName);
+	}
+
+	/**
+	 * @return offset of the entry, or -1
+	 */
+	private int findComponent(final String packageName, final String className) {
+		int hash = 0;
+		hash = hash(hash, packageName);
+		hash = 31 * hash + COMPONENT_SEPARATOR;
+		hash = hash(hash, className);
+
+		int slot = spread(hash) & this.componentMask;
+
+		while (true) {
+			final int index = this.buffer.getInt(this.componentTable + slot * 4);
+
+			if (index == NONE) {
+				return NONE;
+			}
+
+			final int entry = this.entries + index * ENTRY_SIZE;
+			if (this.isComponent(this.buffer.getInt(entry), packageName, className)) {
+				return entry;
+			}
+
+			slot = (slot + 1) & this.componentMask;
+		}
+	}
+
+	/**
+	 * @return offset of the package's first entry, or -1
+	 */
+	private int findPackage(final String packageName) {
+		int slot = spread(packageName.hashCode()) & this.packageMask;
+
+		while (true) {
+			final int index = this.buffer.getInt(this.packageTable + slot * 4);
+
+			if (index == NONE) {
+				return NONE;
+			}
+
+			final int entry = this.entries + index * ENTRY_SIZE;
+			if (this.isComponent(this.buffer.getInt(entry), packageName, null)) {
+				return entry;
+			}
+
+			slot = (slot + 1) & this.packageMask;
+		}
+	}
+
+	/**
+	 * Compares a stored component against "package/class", or against just its package when
+	 * className is null, without decoding it.
+	 */
+	private boolean isComponent(final int offset, final String packageName, final String className) {
+		final int end = offset + 4 + this.buffer.getInt(offset);
+		int position = this.compare(offset + 4, end, packageName);
+
+		if (position < 0) {
+			return false;
+		} else if (className == null) {
+			return position == end || this.buffer.get(position) == COMPONENT_SEPARATOR;
+		} else if (position == end || this.buffer.get(position) != COMPONENT_SEPARATOR) {
+			return false;
+		}
+
+		position = this.compare(position + 1, end, className);
+
+		return position == end;
+	}
+
+	/**
+	 * @return position after the matched string, or -1 if it doesn't match
+	 */
+	private int compare(int position, final int end, final String string) {
+		for (int i = 0; i < string.length(); i++) {
+			final char c = string.charAt(i);
+
+			if (c >= 0x80) {
+				// Rare enough to just compare the encoded bytes
+				final byte[] bytes = string.substring(i).getBytes(UTF_8);
+
+				for (final byte b : bytes) {
+					if (position >= end || this.buffer.get(position++) != b) {
+						return NONE;
+					}
+				}
+
+				return position;
+			}
+
+			if (position >= end || this.buffer.get(position++) != c) {
+				return NONE;
+			}
+		}
+
+		return position;
+	}
+
+	private String getString(final int offset) {
+		if (offset == NONE) {
+			return null;
+		}
+
+		final byte[] bytes = new byte[this.buffer.getInt(offset)];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = this.buffer.get(offset + 4 + i);
+		}
+
+		return new String(bytes, UTF_8);
+	}
+
+	private static int hash(int hash, final String string) {
+		// Same as String.hashCode(), so it can be continued across strings
+		for (int i = 0; i < string.length(); i++) {
+			hash = 31 * hash + string.charAt(i);
+		}
+
+		return hash;
+	}
+
+	private static int spread(final int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	private static int tableSize(final int count) {
+		int size = 2;
+
+		while (size < count * 2) {
+			size <<= 1;
+		}
+
+		return size;
+	}
+
+	/**
+	 * Writes an index to a temporary file first and then moves it in place, so a process that
+	 * opens it never sees a half-written index.
+	 *
+	 * @param categories - drawable.xml categories, in order
+	 */
+	static void write(final File file, final AppFilterIndex.Key key,
+					  final AppFilterIndex appFilterIndex,
+					  final Map<String, List<IconDrawable>> categories,
+					  final ResourceIdResolver resolver) throws IOException {
+		final File directory = file.getAbsoluteFile().getParentFile();
+		if (! directory.isDirectory() && ! directory.mkdirs()) {
+			throw new IOException("Unable to create " + directory);
+		}
+
+		// Unique per writer, so processes exporting at the same time never share a temporary file
+		final File temporaryFile = File.createTempFile(file.getName(), EXT_TMP, directory);
+
+		try {
+			writeTo(temporaryFile, key, appFilterIndex, categories, resolver);
+		} catch (final IOException | RuntimeException ex) {
+			temporaryFile.delete();
+
+			throw ex;
+		}
+
+		if (! temporaryFile.renameTo(file)) {
+			temporaryFile.delete();
+
+			throw new IOException("Unable to move " + temporaryFile + " to " + file);
+		}
+	}
+
+	private static void writeTo(final File file, final AppFilterIndex.Key key,
+								final AppFilterIndex appFilterIndex,
+								final Map<String, List<IconDrawable>> categories,
+								final ResourceIdResolver resolver) throws IOException {
+		final Map<String, String> components = appFilterIndex.components;
+		final StringPool strings = new StringPool();
+		final int entryCount = components.size();
+		final String[] keys = components.keySet().toArray(new String[entryCount]);
+
+		// component and package tables, holding entry indexes
+		final int[] componentTable = new int[tableSize(entryCount)];
+		final int[] packageTable = new int[tableSize(entryCount)];
+		Arrays.fill(componentTable, NONE);
+		Arrays.fill(packageTable, NONE);
+
+		final HashMap<String, Boolean> packages = new HashMap<>();
+		for (int i = 0; i < entryCount; i++) {
+			insert(componentTable, keys[i].hashCode(), i);
+
+			final int separator = keys[i].indexOf(COMPONENT_SEPARATOR);
+			final String packageName = separator < 0 ? keys[i] : keys[i].substring(0, separator);
+
+			if (packages.put(packageName, Boolean.TRUE) == null) {
+				insert(packageTable, packageName.hashCode(), i);
+			}
+		}
+
+		int itemCount = 0;
+		for (final List<IconDrawable> icons : categories.values()) {
+			itemCount += icons.size();
+		}
+
+		final int entriesOffset = HEADER_SIZE;
+		final int componentTableOffset = entriesOffset + entryCount * ENTRY_SIZE;
+		final int packageTableOffset = componentTableOffset + componentTable.length * 4;
+		final int maskingOffset = packageTableOffset + packageTable.length * 4;
+		final int categoriesOffset = maskingOffset + 20 + appFilterIndex.backImages.size() * 4;
+		final int itemsOffset = categoriesOffset + 4 + categories.size() * CATEGORY_SIZE;
+		strings.offset = itemsOffset + itemCount * ITEM_SIZE;
+
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file)));
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(key.versionCode);
+			out.writeLong(key.lastUpdateTime);
+			out.writeInt(strings.add(key.packageName));
+			out.writeInt(entryCount);
+			out.writeInt(entriesOffset);
+			out.writeInt(componentTable.length);
+			out.writeInt(componentTableOffset);
+			out.writeInt(packageTable.length);
+			out.writeInt(packageTableOffset);
+			out.writeInt(maskingOffset);
+			out.writeInt(categoriesOffset);
+
+			for (final String component : keys) {
+				final String drawableName = components.get(component);
+
+				out.writeInt(strings.add(component));
+				out.writeInt(strings.add(drawableName));
+				out.writeInt(resolver.getResourceId(drawableName));
+			}
+
+			for (final int index : componentTable) {
+				out.writeInt(index);
+			}
+
+			for (final int index : packageTable) {
+				out.writeInt(index);
+			}
+
+			out.writeInt(appFilterIndex.factor != null ? 1 : 0);
+			out.writeFloat(appFilterIndex.factor != null ? appFilterIndex.factor : IconMasking.DEFAULT_FACTOR);
+			out.writeInt(strings.add(appFilterIndex.maskImage));
+			out.writeInt(strings.add(appFilterIndex.frontImage));
+			out.writeInt(appFilterIndex.backImages.size());
+			for (final String backImage : appFilterIndex.backImages) {
+				out.writeInt(strings.add(backImage));
+			}
+
+			out.writeInt(categories.size());
+			int itemOffset = itemsOffset;
+			for (final Map.Entry<String, List<IconDrawable>> category : categories.entrySet()) {
+				out.writeInt(strings.add(category.getKey()));
+				out.writeInt(category.getValue().size());
+				out.writeInt(itemOffset);
+
+				itemOffset += category.getValue().size() * ITEM_SIZE;
+			}
+
+			for (final List<IconDrawable> icons : categories.values()) {
+				for (final IconDrawable icon : icons) {
+					out.writeInt(strings.add(icon.getDrawableName()));
+					out.writeInt(icon.getResId());
+				}
+			}
+
+			for (final byte[] string : strings.strings) {
+				out.writeInt(string.length);
+				out.write(string);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void insert(final int[] table, final int hash, final int index) {
+		final int mask = table.length - 1;
+		int slot = spread(hash) & mask;
+
+		while (table[slot] != NONE) {
+			slot = (slot + 1) & mask;
+		}
+
+		table[slot] = index;
+	}
+
+	private static class StringPool {
+		final List<byte[]> strings = new ArrayList<>();
+		final HashMap<String, Integer> offsets = new HashMap<>();
+		int offset;
+
+		/**
+		 * @return offset the string will be at, or -1 for null
+		 */
+		int add(final String string) {
+			if (string == null) {
+				return NONE;
+			}
+
+			final Integer existing = this.offsets.get(string);
+			if (existing != null) {
+				return existing;
+			}
+
+			final byte[] bytes = string.getBytes(UTF_8);
+			final int stringOffset = this.offset;
+
+			this.strings.add(bytes);
+			this.offsets.put(string, stringOffset);
+			this.offset += 4 + bytes.length;
+
+			return stringOffset;
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package be.robinj.iconpack;
+
+import android.content.res.Resources;
+
+import com.robinj.iconpack.R;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns drawable names into human readable titles ("icon_google_maps" becomes "App google maps").
+ * <p>
+ * The icon_name_replacer rules are compiled once into a trie over all search strings. A title
+ * is then built in a single pass over the name: at every position the longest matching rule is
+ * replaced, underscores and runs of white space collapse into single spaces, and the first
+ * character is capitalised. Each thread builds its titles in its own reused buffer.
+ */
+public class TitleGenerator {
+	private static final String RULE_SEPARATOR = ",";
+	private static final TitleGenerator WITHOUT_RULES = new TitleGenerator(new String[0]);
+
+	private static volatile TitleGenerator defaultGenerator;
+
+	private final Node root = new Node();
+	private final ThreadLocal<StringBuilder> buffer = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(64);
+		}
+	};
+
+	/**
+	 * @param rules - "search,replacement" pairs; a rule without replacement removes the search
+	 *              string. When rules overlap, the longest one wins, then the one listed first.
+	 */
+	public TitleGenerator(final String[] rules) {
+		for (final String rule : rules) {
+			final String[] strings = rule.split(RULE_SEPARATOR);
+
+			if (strings.length > 0 && strings[0].length() > 0) {
+				this.add(strings[0], strings.length > 1 ? strings[1] : "");
+			}
+		}
+	}
+
+	/**
+	 * @return generator for the icon_name_replacer rules, compiled the first time it's needed
+	 */
+	public static TitleGenerator getDefault(final Resources resources) {
+		TitleGenerator generator = defaultGenerator;
+
+		if (generator == null) {
+			generator = new TitleGenerator(resources.getStringArray(R.array.icon_name_replacer));
+			defaultGenerator = generator;
+		}
+
+		return generator;
+	}
+
+	/**
+	 * @return generator that only cleans up white space and capitalises
+	 */
+	public static TitleGenerator withoutRules() {
+		return WITHOUT_RULES;
+	}
+
+	private void add(final String search, final String replacement) {
+		Node node = this.root;
+
+		for (int i = 0; i < search.length(); i++) {
+			node = node.getOrAddChild(search.charAt(i));
+		}
+
+		// first rule wins
+		if (node.replacement == null) {
+			node.replacement = replacement;
+		}
+	}
+
+	public String generate(final String name) {
+		final StringBuilder title = this.buffer.get();
+		title.setLength(0);
+
+		boolean space = false;
+		int i = 0;
+
+		while (i < name.length()) {
+			// find the longest rule that matches at this position
+			Node node = this.root;
+			String replacement = null;
+			int matchEnd = i;
+
+			for (int j = i; j < name.length(); j++) {
+				node = node.getChild(name.charAt(j));
+
+				if (node == null) {
+					break;
+				} else if (node.replacement != null) {
+					replacement = node.replacement;
+					matchEnd = j + 1;
+				}
+			}
+
+			if (replacement != null) {
+				for (int k = 0; k < replacement.length(); k++) {
+					space = append(title, replacement.charAt(k), space);
+				}
+
+				i = matchEnd;
+			} else {
+				space = append(title, name.charAt(i), space);
+				i++;
+			}
+		}
+
+		if (title.length() > 0) {
+			title.setCharAt(0, Character.toUpperCase(title.charAt(0)));
+		}
+
+		return title.toString();
+	}
+
+	/**
+	 * Appends a character, turning underscores and white space into a single space. Leading
+	 * and trailing white space never makes it into the title.
+	 *
+	 * @return whether a space is pending
+	 */
+	private static boolean append(final StringBuilder title, final char c, final boolean space) {
+		if (c == '_' || Character.isWhitespace(c)) {
+			return title.length() > 0;
+		}
+
+		if (space) {
+			title.append(' ');
+		}
+
+		title.append(c);
+
+		return false;
+	}
+
+	private static class Node {
+		private char[] keys = new char[0];
+		private final List<Node> children = new ArrayList<>(0);
+		String replacement;
+
+		Node getChild(final char c) {
+			for (int i = 0; i < this.keys.length; i++) {
+				if (this.keys[i] == c) {
+					return this.children.get(i);
+				}
+			}
+
+			return null;
+		}
+
+		Node getOrAddChild(final char c) {
+			Node child = this.getChild(c);
+
+			if (child == null) {
+				child = new Node();
+
+				final char[] keys = new char[this.keys.length + 1];
+				System.arraycopy(this.keys, 0, keys, 0, this.keys.length);
+				keys[this.keys.length] = c;
+
+				this.keys = keys;
+				this.children.add(child);
+			}
+
+			return child;
+		}
+	}
+}
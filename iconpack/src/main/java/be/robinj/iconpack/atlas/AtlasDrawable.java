@@ -0,0 +1,74 @@
+package be.robinj.iconpack.atlas;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Draws one icon out of an {@link IconAtlas} sheet. All drawables of the same sheet share its
+ * bitmap, so the sheet only has to be uploaded to the GPU once.
+ */
+public class AtlasDrawable extends Drawable {
+	private final Bitmap sheet;
+	private final Rect region;
+	private final int size;
+	private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+	AtlasDrawable(final Bitmap sheet, final int left, final int top, final int size) {
+		this.sheet = sheet;
+		this.region = new Rect(left, top, left + size, top + size);
+		this.size = size;
+	}
+
+	@Override
+	public void draw(final Canvas canvas) {
+		canvas.drawBitmap(this.sheet, this.region, this.getBounds(), this.paint);
+	}
+
+	@Override
+	public void setAlpha(final int alpha) {
+		if (alpha != this.paint.getAlpha()) {
+			this.paint.setAlpha(alpha);
+			this.invalidateSelf();
+		}
+	}
+
+	@Override
+	public void setColorFilter(final ColorFilter colorFilter) {
+		this.paint.setColorFilter(colorFilter);
+		this.invalidateSelf();
+	}
+
+	@Override
+	public int getOpacity() {
+		return PixelFormat.TRANSLUCENT;
+	}
+
+	@Override
+	public int getIntrinsicWidth() {
+		return this.size;
+	}
+
+	@Override
+	public int getIntrinsicHeight() {
+		return this.size;
+	}
+
+	/**
+	 * @return the sheet this icon is drawn from
+	 */
+	public Bitmap getSheet() {
+		return this.sheet;
+	}
+
+	/**
+	 * @return where in the sheet the icon is
+	 */
+	public Rect getRegion() {
+		return new Rect(this.region);
+	}
+}
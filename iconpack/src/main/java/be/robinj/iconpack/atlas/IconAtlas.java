@@ -0,0 +1,221 @@
+package be.robinj.iconpack.atlas;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Icons for a set of components, all the same size, packed into one or a few sprite sheets.
+ * <p>
+ * Binding a grid of icons from an atlas means one bitmap (and one texture upload) per sheet
+ * instead of one per icon. Build one with {@link IconAtlasBuilder}, draw its icons through
+ * {@link AtlasDrawable}s, and {@link #write(File) persist} it so the next start doesn't have to
+ * resolve any icons at all.
+ */
+public class IconAtlas {
+	private static final int MAGIC = 0x49504154; // "IPAT"
+	private static final int FORMAT_VERSION = 2;
+	private static final String INDEX_FILE = "atlas.idx";
+	private static final String SHEET_PREFIX = "sheet_";
+	private static final String EXT_PNG = ".png";
+	private static final String EXT_TMP = ".tmp";
+
+	private final String stamp;
+	private final int iconSize;
+	private final Bitmap[] sheets;
+	private final Map<String, Region> regions;
+
+	IconAtlas(final String stamp, final int iconSize, final Bitmap[] sheets,
+			  final Map<String, Region> regions) {
+		this.stamp = stamp;
+		this.iconSize = iconSize;
+		this.sheets = sheets;
+		this.regions = regions;
+	}
+
+	/**
+	 * @param component - in the format of {@link android.content.ComponentName#flattenToString()}
+	 * @return drawable for the component's icon, or null if the atlas doesn't have it
+	 */
+	public AtlasDrawable getDrawable(final String component) {
+		final Region region = this.regions.get(component);
+
+		if (region == null) {
+			return null;
+		}
+
+		return new AtlasDrawable(this.sheets[region.sheet], region.left, region.top, this.iconSize);
+	}
+
+	public boolean contains(final String component) {
+		return this.regions.containsKey(component);
+	}
+
+	public Set<String> getComponents() {
+		return Collections.unmodifiableSet(this.regions.keySet());
+	}
+
+	/**
+	 * @return whatever identified the icon pack, icon size and set of apps this atlas was
+	 * built for, see {@link IconAtlasBuilder#IconAtlasBuilder(int, String)}
+	 */
+	public String getStamp() {
+		return this.stamp;
+	}
+
+	public int getIconSize() {
+		return this.iconSize;
+	}
+
+	public int getSheetCount() {
+		return this.sheets.length;
+	}
+
+	/**
+	 * Writes the sheets as PNG files and the component to region index into a directory of
+	 * their own. Every file is written to a temporary file first and then moved in place.
+	 */
+	public void write(final File directory) throws IOException {
+		if (! directory.isDirectory() && ! directory.mkdirs()) {
+			throw new IOException("Unable to create " + directory);
+		}
+
+		// Stale index first, so a reader never matches new sheets with an old index or the reverse
+		new File(directory, INDEX_FILE).delete();
+
+		for (int i = 0; i < this.sheets.length; i++) {
+			final File file = new File(directory, SHEET_PREFIX + i + EXT_PNG);
+			final File temporaryFile = new File(file.getPath() + EXT_TMP);
+			final OutputStream out = new BufferedOutputStream(new FileOutputStream(temporaryFile));
+
+			try {
+				this.sheets[i].compress(Bitmap.CompressFormat.PNG, 100, out);
+			} finally {
+				out.close();
+			}
+
+			moveInPlace(temporaryFile, file);
+		}
+
+		final File file = new File(directory, INDEX_FILE);
+		final File temporaryFile = new File(file.getPath() + EXT_TMP);
+		final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(this.stamp);
+			out.writeInt(this.iconSize);
+			out.writeInt(this.sheets.length);
+			out.writeInt(this.regions.size());
+
+			for (final Map.Entry<String, Region> entry : this.regions.entrySet()) {
+				out.writeUTF(entry.getKey());
+				out.writeInt(entry.getValue().sheet);
+				out.writeInt(entry.getValue().left);
+				out.writeInt(entry.getValue().top);
+			}
+		} finally {
+			out.close();
+		}
+
+		moveInPlace(temporaryFile, file);
+	}
+
+	/**
+	 * @param stamp - the stamp the atlas must have been built with
+	 * @return the atlas, or null if there is none or if it was built for something else
+	 */
+	public static IconAtlas read(final File directory, final String stamp) throws IOException {
+		final File file = new File(directory, INDEX_FILE);
+
+		if (! file.isFile()) {
+			return null;
+		}
+
+		final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION
+					|| ! stamp.equals(in.readUTF())) {
+				return null;
+			}
+
+			final int iconSize = in.readInt();
+			final int sheetCount = in.readInt();
+			final int regionCount = in.readInt();
+			final Map<String, Region> regions = new HashMap<>((int) (regionCount / 0.75f) + 1);
+
+			for (int i = 0; i < regionCount; i++) {
+				final String component = in.readUTF();
+
+				regions.put(component, new Region(in.readInt(), in.readInt(), in.readInt()));
+			}
+
+			final Bitmap[] sheets = new Bitmap[sheetCount];
+
+			for (int i = 0; i < sheetCount; i++) {
+				sheets[i] = BitmapFactory.decodeFile(
+						new File(directory, SHEET_PREFIX + i + EXT_PNG).getPath());
+
+				if (sheets[i] == null) {
+					throw new IOException("Missing or corrupt atlas sheet " + i + " in " + directory);
+				}
+			}
+
+			return new IconAtlas(stamp, iconSize, sheets, regions);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Removes a persisted atlas, e.g. because the icon pack it was built from is gone.
+	 */
+	public static void delete(final File directory) {
+		final File[] files = directory.listFiles();
+
+		if (files != null) {
+			for (final File file : files) {
+				file.delete();
+			}
+		}
+
+		directory.delete();
+	}
+
+	private static void moveInPlace(final File temporaryFile, final File file) throws IOException {
+		if (! temporaryFile.renameTo(file)) {
+			temporaryFile.delete();
+
+			throw new IOException("Unable to move " + temporaryFile + " to " + file);
+		}
+	}
+
+	static class Region {
+		final int sheet;
+		final int left;
+		final int top;
+
+		Region(final int sheet, final int left, final int top) {
+			this.sheet = sheet;
+			this.left = left;
+			this.top = top;
+		}
+	}
+}
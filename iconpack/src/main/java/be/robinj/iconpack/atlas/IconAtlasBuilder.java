@@ -0,0 +1,119 @@
+package be.robinj.iconpack.atlas;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Packs icons into {@link IconAtlas} sheets.
+ * <p>
+ * All icons in an atlas are the same size, so they're laid out in a grid. Sheets are kept
+ * about square and no bigger than the maximum sheet size (which should stay within the GPU's
+ * maximum texture size); icons that don't fit go on the next sheet. Every icon is surrounded by
+ * a transparent gutter, so filtering while an icon is drawn scaled never picks up pixels of its
+ * neighbours.
+ */
+public class IconAtlasBuilder {
+	public static final int DEFAULT_MAX_SHEET_SIZE = 2048;
+	// Transparent pixels on each side of an icon
+	static final int GUTTER = 1;
+
+	private final int iconSize;
+	private final String stamp;
+	private final Map<String, Drawable> icons = new LinkedHashMap<>();
+	private int maxSheetSize = DEFAULT_MAX_SHEET_SIZE;
+
+	/**
+	 * @param iconSize - size in pixels every icon is drawn at
+	 * @param stamp    - identifies what the atlas is built from (icon pack version, icon size,
+	 *                 installed apps, ...); a persisted atlas is only read back for the same stamp
+	 */
+	public IconAtlasBuilder(final int iconSize, final String stamp) {
+		if (iconSize <= 0) {
+			throw new IllegalArgumentException("Icon size must be positive: " + iconSize);
+		}
+
+		this.iconSize = iconSize;
+		this.stamp = stamp;
+	}
+
+	public IconAtlasBuilder setMaxSheetSize(final int maxSheetSize) {
+		this.maxSheetSize = Math.max(maxSheetSize, this.iconSize + 2 * GUTTER);
+
+		return this;
+	}
+
+	/**
+	 * @param component - in the format of {@link android.content.ComponentName#flattenToString()}
+	 * @param icon      - drawn at the atlas' icon size; ignored if null
+	 */
+	public IconAtlasBuilder add(final String component, final Drawable icon) {
+		if (icon != null) {
+			this.icons.put(component, icon);
+		}
+
+		return this;
+	}
+
+	public int size() {
+		return this.icons.size();
+	}
+
+	public IconAtlas build() {
+		final int cellSize = this.iconSize + 2 * GUTTER;
+		final int perRow = Math.max(1, this.maxSheetSize / cellSize);
+		final int perSheet = perRow * perRow;
+		final int count = this.icons.size();
+		final List<Bitmap> sheets = new ArrayList<>();
+		final Map<String, IconAtlas.Region> regions = new HashMap<>((int) (count / 0.75f) + 1);
+		final Canvas canvas = new Canvas();
+		final Rect bounds = new Rect();
+
+		int index = 0;
+		Bitmap sheet = null;
+		int columns = 0;
+
+		for (final Map.Entry<String, Drawable> entry : this.icons.entrySet()) {
+			final int position = index % perSheet;
+
+			if (position == 0) {
+				// Keep the last sheet about square instead of a full-width strip
+				final int remaining = Math.min(count - index, perSheet);
+				columns = Math.min(perRow, (int) Math.ceil(Math.sqrt(remaining)));
+				final int rows = (remaining + columns - 1) / columns;
+
+				sheet = Bitmap.createBitmap(columns * cellSize, rows * cellSize,
+						Bitmap.Config.ARGB_8888);
+				sheets.add(sheet);
+				canvas.setBitmap(sheet);
+			}
+
+			final int left = (position % columns) * cellSize + GUTTER;
+			final int top = (position / columns) * cellSize + GUTTER;
+			final Drawable icon = entry.getValue();
+
+			icon.copyBounds(bounds);
+			icon.setBounds(left, top, left + this.iconSize, top + this.iconSize);
+			icon.draw(canvas);
+			icon.setBounds(bounds);
+
+			regions.put(entry.getKey(), new IconAtlas.Region(sheets.size() - 1, left, top));
+			index++;
+		}
+
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+			canvas.setBitmap(null);
+		}
+
+		return new IconAtlas(this.stamp, this.iconSize, sheets.toArray(new Bitmap[sheets.size()]),
+				regions);
+	}
+}
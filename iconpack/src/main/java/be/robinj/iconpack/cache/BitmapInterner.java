@@ -0,0 +1,205 @@
+package be.robinj.iconpack.cache;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import be.robinj.iconpack.utils.BitmapHelper;
+
+/**
+ * Makes sure each icon pack drawable is held in memory only once per size while it's in use,
+ * however many activities map to it (big packs point all dialers, cameras or browsers at the
+ * same drawable).
+ * <p>
+ * Bitmaps are interned by icon pack (and its version, since resource IDs and artwork can
+ * change when it gets updated), resource ID, size and config and reference counted: every
+ * {@link SharedBitmapDrawable} handed out counts as one reference. Once the last one is
+ * released, the bitmap is forgotten, and if nothing else (like an in-memory icon cache) holds
+ * on to it, it goes to the {@link BitmapPool} so the next icon can be decoded into it.
+ * <p>
+ * Can be shared by several icon packs. All methods are thread-safe.
+ */
+public class BitmapInterner {
+	// Share of the heap the default pool may use
+	private static final int DEFAULT_POOL_DIVIDER = 64;
+
+	private final Map<Key, Entry> entries = new HashMap<>();
+	private final BitmapPool pool;
+	private long bytes; // guarded by this
+
+	public BitmapInterner() {
+		this(new BitmapPool(Runtime.getRuntime().maxMemory() / DEFAULT_POOL_DIVIDER));
+	}
+
+	/**
+	 * @param pool - receives bitmaps that were released by all their users; may be null
+	 */
+	public BitmapInterner(final BitmapPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * @param version - identifies the installed build of the icon pack, see
+	 *                {@link be.robinj.iconpack.IconPack#getVersion()}
+	 * @return a new reference to the bitmap interned under this key, or null if there is none
+	 */
+	public synchronized SharedBitmapDrawable acquire(final Resources resources,
+													 final String packageName, final String version,
+													 final int resId, final int size,
+													 final Bitmap.Config config) {
+		final Entry entry = this.entries.get(new Key(packageName, version, resId, size, config));
+
+		if (entry == null) {
+			return null;
+		}
+
+		entry.refCount++;
+
+		return new SharedBitmapDrawable(resources, entry.bitmap, entry);
+	}
+
+	/**
+	 * Interns a bitmap that was just decoded. If another thread interned one under the same key
+	 * in the meantime, that one is returned instead and the given bitmap goes to the pool (if
+	 * it's poolable).
+	 *
+	 * @param poolable - whether nothing but the interner holds on to the bitmap, so it may be
+	 *                 reused once it's released; false if it's also in a memory cache
+	 * @return the first reference to the bitmap
+	 */
+	public SharedBitmapDrawable intern(final Resources resources, final String packageName,
+									   final String version, final int resId, final int size,
+									   final Bitmap.Config config, final Bitmap bitmap,
+									   final boolean poolable) {
+		final Key key = new Key(packageName, version, resId, size, config);
+		final SharedBitmapDrawable drawable;
+		boolean duplicate = false;
+
+		synchronized (this) {
+			Entry entry = this.entries.get(key);
+
+			if (entry == null) {
+				entry = new Entry(key, bitmap, poolable);
+				this.entries.put(key, entry);
+				this.bytes += BitmapHelper.getByteCount(bitmap);
+			} else {
+				duplicate = entry.bitmap != bitmap;
+			}
+
+			entry.refCount++;
+			drawable = new SharedBitmapDrawable(resources, entry.bitmap, entry);
+		}
+
+		if (duplicate && poolable && this.pool != null) {
+			this.pool.put(bitmap);
+		}
+
+		return drawable;
+	}
+
+	/**
+	 * @return the pool released bitmaps go to; may be null
+	 */
+	public BitmapPool getPool() {
+		return this.pool;
+	}
+
+	/**
+	 * @return number of bitmaps that are in use
+	 */
+	public synchronized int getCount() {
+		return this.entries.size();
+	}
+
+	/**
+	 * @return memory held by bitmaps that are in use
+	 */
+	public synchronized long getBytes() {
+		return this.bytes;
+	}
+
+	private synchronized void acquire(final Entry entry) {
+		entry.refCount++;
+	}
+
+	private void release(final Entry entry) {
+		synchronized (this) {
+			if (--entry.refCount > 0) {
+				return;
+			}
+
+			this.entries.remove(entry.key);
+			this.bytes -= BitmapHelper.getByteCount(entry.bitmap);
+		}
+
+		if (entry.poolable && this.pool != null) {
+			this.pool.put(entry.bitmap);
+		}
+	}
+
+	private static class Key {
+		final String packageName;
+		final String version;
+		final int resId;
+		final int size;
+		final Bitmap.Config config;
+
+		Key(final String packageName, final String version, final int resId, final int size,
+			final Bitmap.Config config) {
+			this.packageName = packageName;
+			this.version = version;
+			this.resId = resId;
+			this.size = size;
+			this.config = config;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (! (o instanceof Key)) {
+				return false;
+			}
+
+			final Key other = (Key) o;
+
+			return this.resId == other.resId && this.size == other.size
+					&& this.config == other.config && this.packageName.equals(other.packageName)
+					&& this.version.equals(other.version);
+		}
+
+		@Override
+		public int hashCode() {
+			int hash = this.packageName.hashCode();
+			hash = 31 * hash + this.version.hashCode();
+			hash = 31 * hash + this.resId;
+			hash = 31 * hash + this.size;
+
+			return 31 * hash + (this.config != null ? this.config.hashCode() : 0);
+		}
+	}
+
+	/**
+	 * One interned bitmap and how many drawables share it.
+	 */
+	class Entry {
+		final Key key;
+		final Bitmap bitmap;
+		final boolean poolable;
+		int refCount; // guarded by the interner
+
+		Entry(final Key key, final Bitmap bitmap, final boolean poolable) {
+			this.key = key;
+			this.bitmap = bitmap;
+			this.poolable = poolable;
+		}
+
+		void acquire() {
+			BitmapInterner.this.acquire(this);
+		}
+
+		void release() {
+			BitmapInterner.this.release(this);
+		}
+	}
+}
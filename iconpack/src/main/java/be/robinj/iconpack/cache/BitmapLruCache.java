@@ -0,0 +1,162 @@
+package be.robinj.iconpack.cache;
+
+import android.graphics.Bitmap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.robinj.iconpack.utils.BitmapHelper;
+
+/**
+ * In-memory LRU cache of bitmaps, limited by the number of bytes their pixels take up rather
+ * than by the number of entries.
+ */
+public class BitmapLruCache implements IconCache {
+	private final LinkedHashMap<String, Bitmap> map = new LinkedHashMap<>(64, 0.75f, true);
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	private long maxBytes;
+	private long bytes;
+	private volatile EvictionListener evictionListener;
+
+	public BitmapLruCache(final long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	@Override
+	public Bitmap get(final String key) {
+		final Bitmap bitmap;
+
+		synchronized (this) {
+			bitmap = this.map.get(key);
+		}
+
+		(bitmap != null ? this.hitCount : this.missCount).incrementAndGet();
+
+		return bitmap;
+	}
+
+	@Override
+	public void put(final String key, final Bitmap bitmap) {
+		final long size = BitmapHelper.getByteCount(bitmap);
+
+		synchronized (this) {
+			if (size > this.maxBytes) {
+				// Would evict everything else and still not fit
+				this.removeLocked(key);
+
+				return;
+			}
+
+			final Bitmap previous = this.map.put(key, bitmap);
+			this.bytes += size;
+
+			if (previous != null) {
+				this.bytes -= BitmapHelper.getByteCount(previous);
+			}
+
+			this.trimLocked(this.maxBytes);
+		}
+	}
+
+	@Override
+	public synchronized void remove(final String key) {
+		this.removeLocked(key);
+	}
+
+	@Override
+	public synchronized void clear() {
+		this.map.clear();
+		this.bytes = 0;
+	}
+
+	/**
+	 * Evicts the least recently used bitmaps until at most maxBytes are held.
+	 */
+	public synchronized void trimToSize(final long maxBytes) {
+		this.trimLocked(maxBytes);
+	}
+
+	/**
+	 * Changes the budget, evicting bitmaps right away if the new budget is smaller.
+	 */
+	public synchronized void setMaxBytes(final long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.trimLocked(maxBytes);
+	}
+
+	public synchronized long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	/**
+	 * @return number of bytes currently held by the cached bitmaps
+	 */
+	public synchronized long getBytes() {
+		return this.bytes;
+	}
+
+	public synchronized int getCount() {
+		return this.map.size();
+	}
+
+	@Override
+	public long getHitCount() {
+		return this.hitCount.get();
+	}
+
+	@Override
+	public long getMissCount() {
+		return this.missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return this.evictionCount.get();
+	}
+
+	/**
+	 * @param evictionListener - told about bitmaps evicted to stay within budget; null for none
+	 */
+	public void setEvictionListener(final EvictionListener evictionListener) {
+		this.evictionListener = evictionListener;
+	}
+
+	private void removeLocked(final String key) {
+		final Bitmap previous = this.map.remove(key);
+
+		if (previous != null) {
+			this.bytes -= BitmapHelper.getByteCount(previous);
+		}
+	}
+
+	private void trimLocked(final long maxBytes) {
+		final Iterator<Map.Entry<String, Bitmap>> iterator = this.map.entrySet().iterator();
+		final EvictionListener evictionListener = this.evictionListener;
+
+		while (this.bytes > maxBytes && iterator.hasNext()) {
+			final Map.Entry<String, Bitmap> eldest = iterator.next();
+			final int size = BitmapHelper.getByteCount(eldest.getValue());
+			iterator.remove();
+
+			this.bytes -= size;
+			this.evictionCount.incrementAndGet();
+
+			if (evictionListener != null) {
+				evictionListener.onEvicted(eldest.getKey(), size);
+			}
+		}
+	}
+
+	public interface EvictionListener {
+		/**
+		 * Called while the cache is locked; don't call back into it.
+		 *
+		 * @param bytes - memory that was held by the evicted bitmap
+		 */
+		void onEvicted(String key, int bytes);
+	}
+}
@@ -0,0 +1,104 @@
+package be.robinj.iconpack.cache;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import be.robinj.iconpack.utils.BitmapDecoder;
+import be.robinj.iconpack.utils.BitmapHelper;
+
+/**
+ * Bitmaps nobody uses any more, kept so the next icon of the same size can be drawn into one of
+ * them instead of allocating a new one. Limited by the number of bytes the bitmaps take up; the
+ * oldest ones are let go first.
+ */
+public class BitmapPool {
+	private final ArrayDeque<Bitmap> bitmaps = new ArrayDeque<>();
+
+	private long maxBytes;
+	private long bytes;
+
+	public BitmapPool(final long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return a bitmap of exactly this size and config, with undefined contents, or null if
+	 * there is none
+	 */
+	public synchronized Bitmap get(final int width, final int height, final Bitmap.Config config) {
+		final Iterator<Bitmap> iterator = this.bitmaps.iterator();
+
+		while (iterator.hasNext()) {
+			final Bitmap bitmap = iterator.next();
+
+			if (bitmap.getWidth() == width && bitmap.getHeight() == height
+					&& bitmap.getConfig() == config) {
+				iterator.remove();
+				this.bytes -= BitmapHelper.getByteCount(bitmap);
+
+				return bitmap;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Hands a bitmap to the pool. Don't use it anymore after this. Bitmaps that can't be drawn
+	 * into are ignored.
+	 */
+	public void put(final Bitmap bitmap) {
+		if (bitmap.isRecycled() || ! bitmap.isMutable()
+				|| (BitmapDecoder.HARDWARE != null && bitmap.getConfig() == BitmapDecoder.HARDWARE)) {
+			return;
+		}
+
+		final long size = BitmapHelper.getByteCount(bitmap);
+
+		synchronized (this) {
+			if (size > this.maxBytes) {
+				return;
+			}
+
+			this.bitmaps.addLast(bitmap);
+			this.bytes += size;
+			this.trimLocked(this.maxBytes);
+		}
+	}
+
+	public synchronized void clear() {
+		this.bitmaps.clear();
+		this.bytes = 0;
+	}
+
+	/**
+	 * Changes the budget, letting go of bitmaps right away if the new budget is smaller.
+	 */
+	public synchronized void setMaxBytes(final long maxBytes) {
+		this.maxBytes = maxBytes;
+		this.trimLocked(maxBytes);
+	}
+
+	public synchronized long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	/**
+	 * @return number of bytes currently held by the pooled bitmaps
+	 */
+	public synchronized long getBytes() {
+		return this.bytes;
+	}
+
+	public synchronized int getCount() {
+		return this.bitmaps.size();
+	}
+
+	private void trimLocked(final long maxBytes) {
+		while (this.bytes > maxBytes && ! this.bitmaps.isEmpty()) {
+			this.bytes -= BitmapHelper.getByteCount(this.bitmaps.pollFirst());
+		}
+	}
+}
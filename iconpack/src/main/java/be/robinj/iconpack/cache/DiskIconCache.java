@@ -0,0 +1,355 @@
+package be.robinj.iconpack.cache;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores icons as PNG files in a directory.
+ * <p>
+ * The directory is stamped with the version of the icon pack the icons were made from. When an
+ * icon pack gets updated, the stamp no longer matches and all cached icons are thrown away.
+ * <p>
+ * The icons are kept within a budget of bytes on disk. Once it's exceeded, the icons that
+ * were used least recently (going by their last-modified time, which every hit updates) are
+ * deleted until they take up no more than three quarters of it, so the directory doesn't have
+ * to be listed again on the very next write.
+ * <p>
+ * Nothing touches the disk until the cache is first used, so it can be created on any thread.
+ */
+public class DiskIconCache implements IconCache {
+	public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+	private static final String VERSION_FILE = ".version";
+	private static final String EXT_PNG = ".png";
+	private static final String EXT_TMP = ".tmp";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	// Temporary files older than this were left behind by a write that failed
+	private static final long STALE_TEMPORARY_FILE_MS = 60 * 1000;
+
+	private final File directory;
+	private final String version;
+	private final long maxBytes;
+	private volatile boolean opened;
+	private long bytes; // guarded by this
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	/**
+	 * @param directory directory the icons will be stored in; only this cache should use it
+	 * @param version   identifies the version of the icon pack the cached icons are made from
+	 */
+	public DiskIconCache(final File directory, final String version) {
+		this(directory, version, DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param directory directory the icons will be stored in; only this cache should use it
+	 * @param version   identifies the version of the icon pack the cached icons are made from
+	 * @param maxBytes  number of bytes the icons may take up on disk
+	 */
+	public DiskIconCache(final File directory, final String version, final long maxBytes) {
+		this.directory = directory;
+		this.version = version;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Checks the stamp the first time the cache is used, throwing cached icons away if they
+	 * were made from another version, and brings the icons within budget.
+	 */
+	private void open() {
+		if (this.opened) {
+			return;
+		}
+
+		synchronized (this) {
+			if (! this.opened) {
+				if (! this.version.equals(this.readVersion())) {
+					this.deleteIcons();
+					this.writeVersion(this.version);
+				} else {
+					this.trimLocked();
+				}
+
+				this.opened = true;
+			}
+		}
+	}
+
+	/**
+	 * Throws the cached icons away and stamps the directory with a new version of the icon pack,
+	 * so icons made from that version are kept the next time the cache is opened.
+	 */
+	public synchronized void setVersion(final String version) {
+		this.open();
+		this.deleteIcons();
+		this.writeVersion(version);
+	}
+
+	@Override
+	public Bitmap get(final String key) {
+		this.open();
+
+		final File file = this.getFile(key);
+		final Bitmap bitmap = file.isFile() ? BitmapFactory.decodeFile(file.getPath()) : null;
+
+		if (bitmap != null) {
+			this.hitCount.incrementAndGet();
+
+			// Keeps it from being trimmed as if it were unused
+			file.setLastModified(System.currentTimeMillis());
+		} else {
+			this.missCount.incrementAndGet();
+		}
+
+		return bitmap;
+	}
+
+	@Override
+	public void put(final String key, final Bitmap bitmap) {
+		this.open();
+
+		final File file = this.getFile(key);
+		final File temporaryFile = new File(file.getPath() + EXT_TMP + Thread.currentThread().getId());
+
+		try {
+			final OutputStream out = new BufferedOutputStream(new FileOutputStream(temporaryFile));
+
+			try {
+				bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+			} finally {
+				out.close();
+			}
+
+			final long previousLength = file.length();
+
+			if (! temporaryFile.renameTo(file)) {
+				temporaryFile.delete();
+
+				return;
+			}
+
+			synchronized (this) {
+				this.bytes += file.length() - previousLength;
+
+				if (this.bytes > this.maxBytes) {
+					this.trimLocked();
+				}
+			}
+		} catch (final IOException ex) {
+			ex.printStackTrace();
+
+			temporaryFile.delete();
+		}
+	}
+
+	@Override
+	public void remove(final String key) {
+		this.open();
+
+		final File file = this.getFile(key);
+		final long length = file.length();
+
+		if (file.delete()) {
+			synchronized (this) {
+				this.bytes -= length;
+			}
+		}
+	}
+
+	@Override
+	public synchronized void clear() {
+		this.open();
+		this.deleteIcons();
+	}
+
+	private void deleteIcons() {
+		final File[] files = this.directory.listFiles();
+
+		if (files != null) {
+			for (final File file : files) {
+				if (! VERSION_FILE.equals(file.getName())) {
+					file.delete();
+				}
+			}
+		}
+
+		this.bytes = 0;
+	}
+
+	/**
+	 * Deletes the least recently used icons if they take up more than the budget, along with
+	 * temporary files that failed writes left behind. The size is counted again from the
+	 * directory, as other processes may have added icons too.
+	 */
+	private void trimLocked() {
+		final File[] files = this.directory.listFiles();
+		final long now = System.currentTimeMillis();
+		final List<CachedFile> icons = new ArrayList<>();
+		long bytes = 0;
+
+		if (files == null) {
+			this.bytes = 0;
+
+			return;
+		}
+
+		for (final File file : files) {
+			final String name = file.getName();
+
+			if (name.endsWith(EXT_PNG)) {
+				final CachedFile icon = new CachedFile(file);
+
+				icons.add(icon);
+				bytes += icon.length;
+			} else if (name.contains(EXT_TMP) && now - file.lastModified() > STALE_TEMPORARY_FILE_MS) {
+				file.delete();
+			}
+		}
+
+		if (bytes > this.maxBytes) {
+			final long targetBytes = this.maxBytes * 3 / 4;
+
+			Collections.sort(icons, CachedFile.LEAST_RECENTLY_USED_FIRST);
+
+			for (int i = 0; i < icons.size() && bytes > targetBytes; i++) {
+				if (icons.get(i).file.delete()) {
+					bytes -= icons.get(i).length;
+				}
+			}
+		}
+
+		this.bytes = bytes;
+	}
+
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	/**
+	 * @return number of bytes the cached icons take up on disk, as far as this process knows
+	 */
+	public synchronized long getBytes() {
+		return this.bytes;
+	}
+
+	@Override
+	public long getHitCount() {
+		return this.hitCount.get();
+	}
+
+	@Override
+	public long getMissCount() {
+		return this.missCount.get();
+	}
+
+	private File getFile(final String key) {
+		return new File(this.directory, escape(key) + EXT_PNG);
+	}
+
+	private static String escape(final String key) {
+		final StringBuilder name = new StringBuilder(key.length());
+
+		// Keep file names readable but safe; anything unusual gets escaped as _XXXX
+		for (int i = 0; i < key.length(); i++) {
+			final char c = key.charAt(i);
+
+			if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')
+					|| c == '.' || c == '-') {
+				name.append(c);
+			} else {
+				name.append('_')
+						.append(HEX_DIGITS[(c >> 12) & 0xf]).append(HEX_DIGITS[(c >> 8) & 0xf])
+						.append(HEX_DIGITS[(c >> 4) & 0xf]).append(HEX_DIGITS[c & 0xf]);
+			}
+		}
+
+		return name.toString();
+	}
+
+	private String readVersion() {
+		final File file = new File(this.directory, VERSION_FILE);
+
+		if (! file.isFile()) {
+			return null;
+		}
+
+		try {
+			final FileInputStream in = new FileInputStream(file);
+
+			try {
+				final byte[] bytes = new byte[(int) file.length()];
+				int read = 0;
+
+				while (read < bytes.length) {
+					final int count = in.read(bytes, read, bytes.length - read);
+
+					if (count < 0) {
+						break;
+					}
+
+					read += count;
+				}
+
+				return new String(bytes, 0, read, UTF_8);
+			} finally {
+				in.close();
+			}
+		} catch (final IOException ex) {
+			ex.printStackTrace();
+		}
+
+		return null;
+	}
+
+	private void writeVersion(final String version) {
+		if (! this.directory.isDirectory() && ! this.directory.mkdirs()) {
+			return;
+		}
+
+		try {
+			final FileOutputStream out = new FileOutputStream(new File(this.directory, VERSION_FILE));
+
+			try {
+				out.write(version.getBytes(UTF_8));
+			} finally {
+				out.close();
+			}
+		} catch (final IOException ex) {
+			ex.printStackTrace();
+		}
+	}
+
+	private static class CachedFile {
+		static final Comparator<CachedFile> LEAST_RECENTLY_USED_FIRST = new Comparator<CachedFile>() {
+			@Override
+			public int compare(final CachedFile a, final CachedFile b) {
+				return a.lastModified < b.lastModified ? -1 : (a.lastModified > b.lastModified ? 1 : 0);
+			}
+		};
+
+		final File file;
+		final long length;
+		final long lastModified;
+
+		CachedFile(final File file) {
+			this.file = file;
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package be.robinj.iconpack.cache;
+
+import android.graphics.Bitmap;
+
+/**
+ * Cache for icons that have already been decoded (and masked, if needed) by an
+ * {@link be.robinj.iconpack.IconPack}.
+ * <p>
+ * Implementations must be safe to use from multiple threads.
+ */
+public interface IconCache {
+	/**
+	 * @return the cached icon, or null if it isn't cached
+	 */
+	Bitmap get(String key);
+
+	void put(String key, Bitmap bitmap);
+
+	void remove(String key);
+
+	void clear();
+
+	/**
+	 * @return number of {@link #get(String)} calls that returned an icon
+	 */
+	long getHitCount();
+
+	/**
+	 * @return number of {@link #get(String)} calls that returned null
+	 */
+	long getMissCount();
+}
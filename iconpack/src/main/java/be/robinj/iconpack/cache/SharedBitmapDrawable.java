@@ -0,0 +1,56 @@
+package be.robinj.iconpack.cache;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link BitmapDrawable} whose bitmap is shared with every other drawable handed out by a
+ * {@link BitmapInterner} for the same resource and size.
+ * <p>
+ * Call {@link #release()} once the drawable isn't shown anymore. When the last drawable for a
+ * bitmap is released, the bitmap may be reused for another icon, so don't draw a released
+ * drawable.
+ */
+public class SharedBitmapDrawable extends BitmapDrawable {
+	private final Resources resources;
+	private final BitmapInterner.Entry entry;
+	private final AtomicBoolean released = new AtomicBoolean();
+
+	SharedBitmapDrawable(final Resources resources, final Bitmap bitmap,
+						 final BitmapInterner.Entry entry) {
+		super(resources, bitmap);
+
+		this.resources = resources;
+		this.entry = entry;
+	}
+
+	/**
+	 * @return another drawable for the same bitmap, counting as a reference of its own
+	 * @throws IllegalStateException if this drawable was released already
+	 */
+	public SharedBitmapDrawable newReference() {
+		if (this.released.get()) {
+			throw new IllegalStateException("Released drawables can't be shared anymore");
+		}
+
+		this.entry.acquire();
+
+		return new SharedBitmapDrawable(this.resources, this.getBitmap(), this.entry);
+	}
+
+	/**
+	 * Lets go of the bitmap. Releasing a drawable more than once does nothing.
+	 */
+	public void release() {
+		if (this.released.compareAndSet(false, true)) {
+			this.entry.release();
+		}
+	}
+
+	public boolean isReleased() {
+		return this.released.get();
+	}
+}
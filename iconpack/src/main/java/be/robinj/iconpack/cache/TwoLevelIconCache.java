@@ -0,0 +1,88 @@
+package be.robinj.iconpack.cache;
+
+import android.graphics.Bitmap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory cache in front of a disk cache. Icons found on disk are promoted to memory.
+ */
+public class TwoLevelIconCache implements IconCache {
+	private final BitmapLruCache memoryCache;
+	private final IconCache diskCache;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+
+	public TwoLevelIconCache(final BitmapLruCache memoryCache, final IconCache diskCache) {
+		this.memoryCache = memoryCache;
+		this.diskCache = diskCache;
+	}
+
+	@Override
+	public Bitmap get(final String key) {
+		Bitmap bitmap = this.memoryCache.get(key);
+
+		if (bitmap == null && this.diskCache != null) {
+			bitmap = this.diskCache.get(key);
+
+			if (bitmap != null) {
+				this.memoryCache.put(key, bitmap);
+			}
+		}
+
+		(bitmap != null ? this.hitCount : this.missCount).incrementAndGet();
+
+		return bitmap;
+	}
+
+	@Override
+	public void put(final String key, final Bitmap bitmap) {
+		this.memoryCache.put(key, bitmap);
+
+		if (this.diskCache != null) {
+			this.diskCache.put(key, bitmap);
+		}
+	}
+
+	@Override
+	public void remove(final String key) {
+		this.memoryCache.remove(key);
+
+		if (this.diskCache != null) {
+			this.diskCache.remove(key);
+		}
+	}
+
+	@Override
+	public void clear() {
+		this.memoryCache.clear();
+
+		if (this.diskCache != null) {
+			this.diskCache.clear();
+		}
+	}
+
+	/**
+	 * @return hits served from either tier
+	 */
+	@Override
+	public long getHitCount() {
+		return this.hitCount.get();
+	}
+
+	/**
+	 * @return lookups that neither tier could serve
+	 */
+	@Override
+	public long getMissCount() {
+		return this.missCount.get();
+	}
+
+	public BitmapLruCache getMemoryCache() {
+		return this.memoryCache;
+	}
+
+	public IconCache getDiskCache() {
+		return this.diskCache;
+	}
+}
@@ -0,0 +1,91 @@
+package be.robinj.iconpack.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values, with a bucket per power of two.
+ * Percentiles are accurate to within a factor of two, which is plenty to tell a 2ms parse
+ * from a 200ms one.
+ */
+public class Histogram {
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(final long value) {
+		final long clamped = Math.max(0, value);
+
+		this.buckets.incrementAndGet(getBucket(clamped));
+		this.count.incrementAndGet();
+		this.sum.addAndGet(clamped);
+
+		long current = this.max.get();
+		while (clamped > current && ! this.max.compareAndSet(current, clamped)) {
+			current = this.max.get();
+		}
+	}
+
+	/**
+	 * @return bucket i holds the values from 2^i up to 2^(i + 1) - 1; 0 goes in the first one
+	 */
+	private static int getBucket(final long value) {
+		return value > 0 ? BUCKETS - 1 - Long.numberOfLeadingZeros(value) : 0;
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	public long getSum() {
+		return this.sum.get();
+	}
+
+	public long getMax() {
+		return this.max.get();
+	}
+
+	public long getMean() {
+		final long count = this.count.get();
+
+		return count > 0 ? this.sum.get() / count : 0;
+	}
+
+	/**
+	 * @param percentile - between 0 and 100
+	 * @return upper bound of the bucket the percentile falls in
+	 */
+	public long getPercentile(final double percentile) {
+		final long count = this.count.get();
+
+		if (count == 0) {
+			return 0;
+		}
+
+		final long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+		long seen = 0;
+
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += this.buckets.get(i);
+
+			if (seen >= rank && seen > 0) {
+				return Math.min(i >= BUCKETS - 2 ? Long.MAX_VALUE : (2L << i) - 1, this.max.get());
+			}
+		}
+
+		return this.max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			this.buckets.set(i, 0);
+		}
+
+		this.count.set(0);
+		this.sum.set(0);
+		this.max.set(0);
+	}
+}
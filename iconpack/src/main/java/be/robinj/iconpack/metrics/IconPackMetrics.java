@@ -0,0 +1,61 @@
+package be.robinj.iconpack.metrics;
+
+/**
+ * Receives timings and counts from {@link be.robinj.iconpack.IconPack} and
+ * {@link be.robinj.iconpack.IconPackManager}, to find out where the time goes with a
+ * particular icon pack. Durations are in nanoseconds.
+ * <p>
+ * Methods are called on whatever thread did the work, often several at once, so
+ * implementations must be thread-safe and quick. {@link MetricsRecorder} keeps counters and
+ * histograms of everything. When no metrics are set, nothing is measured at all.
+ */
+public interface IconPackMetrics {
+	/**
+	 * @param fromAssets - whether the XML was opened from the assets folder instead of the
+	 *                   compiled resources
+	 */
+	void onXmlOpened(String packageName, String file, boolean fromAssets, long nanos);
+
+	/**
+	 * @param entries - number of components (appfilter) or drawables (drawable.xml) found
+	 */
+	void onXmlParsed(String packageName, String file, int entries, long nanos);
+
+	/**
+	 * The appfilter was read from the index written after an earlier parse.
+	 */
+	void onAppFilterIndexRead(String packageName, int entries, long nanos);
+
+	/**
+	 * @param fromTable - whether the name to ID table could be built; if not, every lookup goes
+	 *                  through Resources.getIdentifier
+	 */
+	void onResourceIdsResolved(String packageName, int resources, boolean fromTable, long nanos);
+
+	/**
+	 * @param bytes - memory held by the decoded bitmap
+	 */
+	void onDrawableDecoded(String packageName, String drawableName, int bytes, long nanos);
+
+	void onIconMasked(String packageName, long nanos);
+
+	void onCacheHit(String packageName, String key);
+
+	void onCacheMiss(String packageName, String key);
+
+	/**
+	 * @param bytes - memory that was held by the evicted bitmap
+	 */
+	void onCacheEviction(String packageName, String key, int bytes);
+
+	void onIconPacksDiscovered(int iconPacks, long nanos);
+
+	/**
+	 * An icon requested through {@link be.robinj.iconpack.IconLoadScheduler} reached its
+	 * callback.
+	 *
+	 * @param priority - lane the request was in when it was delivered
+	 * @param nanos    - from the request to the callback, waiting in the queue included
+	 */
+	void onIconDelivered(String packageName, int priority, long nanos);
+}
@@ -0,0 +1,243 @@
+package be.robinj.iconpack.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.robinj.iconpack.IconLoadScheduler;
+
+/**
+ * Default {@link IconPackMetrics}: keeps lock-free counters and histograms across all icon
+ * packs it's installed on. Recording never blocks and never allocates.
+ * <p>
+ * {@link #toString()} gives a summary that's small enough to attach to a bug report.
+ */
+public class MetricsRecorder implements IconPackMetrics {
+	private final Histogram xmlOpenResources = new Histogram();
+	private final Histogram xmlOpenAssets = new Histogram();
+	private final Histogram xmlParse = new Histogram();
+	private final Histogram appFilterIndexRead = new Histogram();
+	private final Histogram resourceIds = new Histogram();
+	private final Histogram decode = new Histogram();
+	private final Histogram decodeBytes = new Histogram();
+	private final Histogram masking = new Histogram();
+	private final Histogram discovery = new Histogram();
+	private final Histogram[] iconDelivery = {new Histogram(), new Histogram(), new Histogram()};
+
+	private final AtomicLong parsedEntries = new AtomicLong();
+	private final AtomicLong resourceIdTableMisses = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final AtomicLong cacheEvictions = new AtomicLong();
+	private final AtomicLong cacheEvictedBytes = new AtomicLong();
+
+	@Override
+	public void onXmlOpened(final String packageName, final String file, final boolean fromAssets,
+							final long nanos) {
+		(fromAssets ? this.xmlOpenAssets : this.xmlOpenResources).record(nanos);
+	}
+
+	@Override
+	public void onXmlParsed(final String packageName, final String file, final int entries,
+							final long nanos) {
+		this.xmlParse.record(nanos);
+		this.parsedEntries.addAndGet(entries);
+	}
+
+	@Override
+	public void onAppFilterIndexRead(final String packageName, final int entries, final long nanos) {
+		this.appFilterIndexRead.record(nanos);
+	}
+
+	@Override
+	public void onResourceIdsResolved(final String packageName, final int resources,
+									  final boolean fromTable, final long nanos) {
+		this.resourceIds.record(nanos);
+
+		if (! fromTable) {
+			this.resourceIdTableMisses.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void onDrawableDecoded(final String packageName, final String drawableName,
+								  final int bytes, final long nanos) {
+		this.decode.record(nanos);
+		this.decodeBytes.record(bytes);
+	}
+
+	@Override
+	public void onIconMasked(final String packageName, final long nanos) {
+		this.masking.record(nanos);
+	}
+
+	@Override
+	public void onCacheHit(final String packageName, final String key) {
+		this.cacheHits.incrementAndGet();
+	}
+
+	@Override
+	public void onCacheMiss(final String packageName, final String key) {
+		this.cacheMisses.incrementAndGet();
+	}
+
+	@Override
+	public void onCacheEviction(final String packageName, final String key, final int bytes) {
+		this.cacheEvictions.incrementAndGet();
+		this.cacheEvictedBytes.addAndGet(bytes);
+	}
+
+	@Override
+	public void onIconPacksDiscovered(final int iconPacks, final long nanos) {
+		this.discovery.record(nanos);
+	}
+
+	@Override
+	public void onIconDelivered(final String packageName, final int priority, final long nanos) {
+		this.iconDelivery[priority].record(nanos);
+	}
+
+	/**
+	 * @return time spent opening XML files from the icon packs' compiled resources
+	 */
+	public Histogram getXmlOpenResources() {
+		return this.xmlOpenResources;
+	}
+
+	/**
+	 * @return time spent opening XML files from the icon packs' assets
+	 */
+	public Histogram getXmlOpenAssets() {
+		return this.xmlOpenAssets;
+	}
+
+	public Histogram getXmlParse() {
+		return this.xmlParse;
+	}
+
+	public Histogram getAppFilterIndexRead() {
+		return this.appFilterIndexRead;
+	}
+
+	public Histogram getResourceIds() {
+		return this.resourceIds;
+	}
+
+	public Histogram getDecode() {
+		return this.decode;
+	}
+
+	/**
+	 * @return memory held by each decoded drawable
+	 */
+	public Histogram getDecodeBytes() {
+		return this.decodeBytes;
+	}
+
+	public Histogram getMasking() {
+		return this.masking;
+	}
+
+	public Histogram getDiscovery() {
+		return this.discovery;
+	}
+
+	/**
+	 * @param priority - one of the {@link be.robinj.iconpack.IconLoadScheduler} PRIORITY_ constants
+	 * @return time from requesting an icon to getting it, for requests in that lane
+	 */
+	public Histogram getIconDelivery(final int priority) {
+		return this.iconDelivery[priority];
+	}
+
+	public long getParsedEntries() {
+		return this.parsedEntries.get();
+	}
+
+	/**
+	 * @return number of times the resource ID table couldn't be built
+	 */
+	public long getResourceIdTableMisses() {
+		return this.resourceIdTableMisses.get();
+	}
+
+	public long getCacheHits() {
+		return this.cacheHits.get();
+	}
+
+	public long getCacheMisses() {
+		return this.cacheMisses.get();
+	}
+
+	public long getCacheEvictions() {
+		return this.cacheEvictions.get();
+	}
+
+	public long getCacheEvictedBytes() {
+		return this.cacheEvictedBytes.get();
+	}
+
+	public void reset() {
+		this.xmlOpenResources.reset();
+		this.xmlOpenAssets.reset();
+		this.xmlParse.reset();
+		this.appFilterIndexRead.reset();
+		this.resourceIds.reset();
+		this.decode.reset();
+		this.decodeBytes.reset();
+		this.masking.reset();
+		this.discovery.reset();
+		for (final Histogram histogram : this.iconDelivery) {
+			histogram.reset();
+		}
+
+		this.parsedEntries.set(0);
+		this.resourceIdTableMisses.set(0);
+		this.cacheHits.set(0);
+		this.cacheMisses.set(0);
+		this.cacheEvictions.set(0);
+		this.cacheEvictedBytes.set(0);
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder summary = new StringBuilder();
+
+		appendTimes(summary, "xml open (resources)", this.xmlOpenResources);
+		appendTimes(summary, "xml open (assets)", this.xmlOpenAssets);
+		appendTimes(summary, "xml parse", this.xmlParse);
+		appendTimes(summary, "appfilter index read", this.appFilterIndexRead);
+		appendTimes(summary, "resource ids", this.resourceIds);
+		appendTimes(summary, "decode", this.decode);
+		appendTimes(summary, "masking", this.masking);
+		appendTimes(summary, "discovery", this.discovery);
+		appendTimes(summary, "icon delivery (visible)",
+				this.iconDelivery[IconLoadScheduler.PRIORITY_VISIBLE]);
+		appendTimes(summary, "icon delivery (near visible)",
+				this.iconDelivery[IconLoadScheduler.PRIORITY_NEAR_VISIBLE]);
+		appendTimes(summary, "icon delivery (prefetch)",
+				this.iconDelivery[IconLoadScheduler.PRIORITY_PREFETCH]);
+
+		summary.append(String.format(Locale.ROOT,
+				"entries parsed: %d, resource id table misses: %d%n"
+						+ "decoded: %d bytes (mean %d, max %d)%n"
+						+ "cache: %d hits, %d misses, %d evictions (%d bytes)",
+				this.getParsedEntries(), this.getResourceIdTableMisses(),
+				this.decodeBytes.getSum(), this.decodeBytes.getMean(), this.decodeBytes.getMax(),
+				this.getCacheHits(), this.getCacheMisses(), this.getCacheEvictions(),
+				this.getCacheEvictedBytes()));
+
+		return summary.toString();
+	}
+
+	private static void appendTimes(final StringBuilder summary, final String name,
+									final Histogram histogram) {
+		if (histogram.getCount() == 0) {
+			return;
+		}
+
+		summary.append(String.format(Locale.ROOT,
+				"%s: %d times, mean %.2fms, p90 %.2fms, max %.2fms%n", name, histogram.getCount(),
+				histogram.getMean() / 1e6, histogram.getPercentile(90) / 1e6,
+				histogram.getMax() / 1e6));
+	}
+}
@@ -0,0 +1,180 @@
+package be.robinj.iconpack.utils;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import be.robinj.iconpack.cache.BitmapPool;
+
+/**
+ * Decodes bitmap resources straight to the size they're going to be shown at.
+ * <p>
+ * The resource's dimensions are read first, so the image can be subsampled while it's being
+ * decoded; a 512px icon that's shown at 96px never exists in memory at full size. The subsampled
+ * bitmap is then scaled to fit the target size exactly, keeping its aspect ratio. Each thread
+ * keeps the last intermediate bitmap it threw away and decodes the next image into it through
+ * {@link BitmapFactory.Options#inBitmap} when it is big enough. The result itself can be drawn
+ * into a bitmap from a {@link BitmapPool}.
+ */
+public class BitmapDecoder {
+	/**
+	 * {@link Bitmap.Config#HARDWARE}, or null on versions of Android that don't have it.
+	 */
+	public static final Bitmap.Config HARDWARE = getHardwareConfig();
+
+	private final ThreadLocal<Bitmap> scratch = new ThreadLocal<>();
+
+	private static Bitmap.Config getHardwareConfig() {
+		if (Build.VERSION.SDK_INT < 26) {
+			return null;
+		}
+
+		try {
+			return Bitmap.Config.valueOf("HARDWARE");
+		} catch (final IllegalArgumentException ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * @param targetSize - size of the square the result fits within; 0 to decode the resource the way
+	 *                   {@link Resources#getDrawable(int)} would
+	 * @param config     - preferred config of the result, e.g. {@link Bitmap.Config#RGB_565} for
+	 *                   icons without transparency or {@link #HARDWARE} for icons that are only
+	 *                   ever drawn to the screen
+	 * @return the decoded bitmap, or null if the resource isn't a bitmap (e.g. a vector or
+	 * another XML drawable)
+	 */
+	public Bitmap decodeResource(final Resources resources, final int id, final int targetSize,
+								 final Bitmap.Config config) {
+		return this.decodeResource(resources, id, targetSize, config, null);
+	}
+
+	/**
+	 * @param pool - scaled results are drawn into a bitmap from this pool if it has one of the
+	 *             size they're scaled to; may be null
+	 * @see #decodeResource(Resources, int, int, Bitmap.Config)
+	 */
+	public Bitmap decodeResource(final Resources resources, final int id, final int targetSize,
+								 final Bitmap.Config config, final BitmapPool pool) {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeResource(resources, id, options);
+
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			return null;
+		}
+
+		final boolean hardware = config != null && config == HARDWARE;
+		options.inJustDecodeBounds = false;
+		// Hardware bitmaps can't be scaled or reused, so decode in software and upload at the end
+		options.inPreferredConfig = hardware || config == null ? Bitmap.Config.ARGB_8888 : config;
+
+		if (targetSize > 0) {
+			// Density scaling would throw off the subsampling, the target size is final anyway
+			options.inScaled = false;
+			options.inSampleSize = getSampleSize(options.outWidth, options.outHeight, targetSize);
+		}
+
+		final Bitmap decoded = this.decode(resources, id, options);
+
+		if (decoded == null) {
+			return null;
+		}
+
+		Bitmap result = decoded;
+
+		final int width = BitmapHelper.fitWidth(decoded.getWidth(), decoded.getHeight(), targetSize);
+		final int height = BitmapHelper.fitWidth(decoded.getHeight(), decoded.getWidth(), targetSize);
+
+		if (targetSize > 0 && (decoded.getWidth() != width || decoded.getHeight() != height)) {
+			final Bitmap pooled = pool != null && ! hardware
+					? pool.get(width, height, options.inPreferredConfig) : null;
+
+			result = pooled != null ? BitmapHelper.scaleInto(decoded, pooled)
+					: BitmapHelper.scaleTo(decoded, targetSize);
+		}
+
+		if (hardware) {
+			final Bitmap software = result;
+			final Bitmap uploaded = software.copy(HARDWARE, false);
+
+			if (uploaded != null) {
+				result = uploaded;
+
+				// The decoded bitmap is kept for the next decode, a scaled copy of it isn't
+				if (software != decoded || ! decoded.isMutable()) {
+					software.recycle();
+				}
+			}
+		}
+
+		if (result != decoded && decoded.isMutable()) {
+			this.scratch.set(decoded);
+		}
+
+		return result;
+	}
+
+	private Bitmap decode(final Resources resources, final int id,
+						  final BitmapFactory.Options options) {
+		// Before KitKat the reused bitmap had to have exactly the same size
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			final Bitmap reusable = this.scratch.get();
+			this.scratch.set(null);
+
+			options.inMutable = true;
+
+			if (reusable != null && canReuse(reusable, options)) {
+				options.inBitmap = reusable;
+
+				try {
+					return BitmapFactory.decodeResource(resources, id, options);
+				} catch (final IllegalArgumentException ex) {
+					// Decoder didn't accept the bitmap after all
+					options.inBitmap = null;
+				}
+			}
+		}
+
+		return BitmapFactory.decodeResource(resources, id, options);
+	}
+
+	private static boolean canReuse(final Bitmap bitmap, final BitmapFactory.Options options) {
+		// With density scaling the decoded size isn't known up front
+		if (options.inScaled || bitmap.isRecycled() || ! bitmap.isMutable()
+				|| bitmap.getConfig() != options.inPreferredConfig) {
+			return false;
+		}
+
+		final int sampleSize = Math.max(1, options.inSampleSize);
+		final int width = (options.outWidth + sampleSize - 1) / sampleSize;
+		final int height = (options.outHeight + sampleSize - 1) / sampleSize;
+		final int bytesPerPixel;
+
+		if (options.inPreferredConfig == Bitmap.Config.ARGB_8888) {
+			bytesPerPixel = 4;
+		} else if (options.inPreferredConfig == Bitmap.Config.ALPHA_8) {
+			bytesPerPixel = 1;
+		} else {
+			bytesPerPixel = 2;
+		}
+
+		return (long) width * height * bytesPerPixel <= BitmapHelper.getByteCount(bitmap);
+	}
+
+	/**
+	 * @return largest power of two that keeps the longest side at least as big as the target size
+	 */
+	static int getSampleSize(final int width, final int height, final int targetSize) {
+		final int longest = Math.max(width, height);
+		int sampleSize = 1;
+
+		while (longest / (sampleSize * 2) >= targetSize) {
+			sampleSize *= 2;
+		}
+
+		return sampleSize;
+	}
+}
@@ -0,0 +1,146 @@
+package be.robinj.iconpack.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+
+public class BitmapHelper {
+	/**
+	 * @return number of bytes of memory held by the bitmap's pixels
+	 */
+	public static int getByteCount(final Bitmap bitmap) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			return bitmap.getAllocationByteCount();
+		} else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB_MR1) {
+			return bitmap.getByteCount();
+		}
+
+		return bitmap.getRowBytes() * bitmap.getHeight();
+	}
+
+	/**
+	 * Scales the bitmap so it fits within a square of the given size, keeping its aspect ratio;
+	 * its longest side ends up being the given size.
+	 *
+	 * @return the bitmap itself if it already has the requested size, otherwise a scaled copy
+	 */
+	public static Bitmap scaleTo(final Bitmap bitmap, final int size) {
+		if (size <= 0) {
+			return bitmap;
+		}
+
+		final int width = fitWidth(bitmap.getWidth(), bitmap.getHeight(), size);
+		final int height = fitWidth(bitmap.getHeight(), bitmap.getWidth(), size);
+
+		if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+			return bitmap;
+		}
+
+		return Bitmap.createScaledBitmap(bitmap, width, height, true);
+	}
+
+	/**
+	 * @return the width an image of the given dimensions gets when it's scaled to fit within a
+	 * square of the given size without changing its aspect ratio (pass the height first to get
+	 * the height)
+	 */
+	public static int fitWidth(final int width, final int height, final int size) {
+		if (width >= height) {
+			return size;
+		}
+
+		return Math.max(1, Math.round((float) width * size / height));
+	}
+
+	/**
+	 * @param config - null for {@link Bitmap.Config#ARGB_8888}
+	 * @return the bitmap itself if it already has the config, otherwise a copy that does (or
+	 * the bitmap itself if it can't be copied)
+	 */
+	public static Bitmap convert(final Bitmap bitmap, final Bitmap.Config config) {
+		final Bitmap.Config target = config != null ? config : Bitmap.Config.ARGB_8888;
+
+		if (bitmap.getConfig() == target) {
+			return bitmap;
+		}
+
+		final Bitmap converted = bitmap.copy(target, false);
+
+		return converted != null ? converted : bitmap;
+	}
+
+	/**
+	 * Draws the bitmap scaled to the size of the destination, replacing what was in it; filtered
+	 * like {@link #scaleTo(Bitmap, int)}. The destination should have the bitmap's aspect ratio.
+	 *
+	 * @param destination - mutable
+	 * @return the destination
+	 */
+	public static Bitmap scaleInto(final Bitmap bitmap, final Bitmap destination) {
+		final Canvas canvas = new Canvas(destination);
+
+		destination.eraseColor(0);
+		canvas.drawBitmap(bitmap, new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight()),
+				new Rect(0, 0, destination.getWidth(), destination.getHeight()),
+				new Paint(Paint.FILTER_BITMAP_FLAG));
+
+		return destination;
+	}
+
+	/**
+	 * Turns any drawable (vector, adaptive icon, layer list, ...) into a bitmap, so it can be
+	 * masked, cached and drawn like an icon that was a PNG to begin with. Bitmap drawables
+	 * aren't drawn again, their bitmap is just scaled if it needs to be. Drawables that have a
+	 * size of their own keep their aspect ratio.
+	 *
+	 * @param size   - size of the square the result fits within; 0 for the drawable's own size
+	 * @param config - config of the result; null for {@link Bitmap.Config#ARGB_8888}
+	 * @return the bitmap, or null if the drawable doesn't have a size of its own and none was
+	 * given
+	 */
+	public static Bitmap rasterize(final Drawable drawable, final int size, final Bitmap.Config config) {
+		if (drawable instanceof BitmapDrawable && ((BitmapDrawable) drawable).getBitmap() != null) {
+			return scaleTo(((BitmapDrawable) drawable).getBitmap(), size);
+		}
+
+		final int intrinsicWidth = drawable.getIntrinsicWidth();
+		final int intrinsicHeight = drawable.getIntrinsicHeight();
+		final boolean intrinsic = intrinsicWidth > 0 && intrinsicHeight > 0;
+		final int width = size <= 0 ? intrinsicWidth
+				: intrinsic ? fitWidth(intrinsicWidth, intrinsicHeight, size) : size;
+		final int height = size <= 0 ? intrinsicHeight
+				: intrinsic ? fitWidth(intrinsicHeight, intrinsicWidth, size) : size;
+
+		if (width <= 0 || height <= 0) {
+			return null;
+		}
+
+		// Hardware bitmaps can't be drawn into, so draw in software and upload at the end
+		final boolean hardware = config != null && config == BitmapDecoder.HARDWARE;
+		final Bitmap bitmap = Bitmap.createBitmap(width, height,
+				hardware || config == null ? Bitmap.Config.ARGB_8888 : config);
+		final Canvas canvas = new Canvas(bitmap);
+		final Rect bounds = new Rect();
+
+		drawable.copyBounds(bounds);
+		drawable.setBounds(0, 0, width, height);
+		drawable.draw(canvas);
+		drawable.setBounds(bounds);
+
+		if (hardware) {
+			final Bitmap uploaded = bitmap.copy(config, false);
+
+			if (uploaded != null) {
+				bitmap.recycle();
+
+				return uploaded;
+			}
+		}
+
+		return bitmap;
+	}
+}
@@ -0,0 +1,182 @@
+package be.robinj.iconpack.utils;
+
+import android.content.res.Resources;
+
+/**
+ * Resolves resource names of one type (e.g. "drawable") in an icon pack to resource IDs.
+ * <p>
+ * Instead of calling {@link Resources#getIdentifier(String, String, String)} for every name,
+ * the resolver walks the pack's resource table once, ID by ID, and keeps a name to ID table.
+ * Lookups after that are a single hash probe.
+ * <p>
+ * If the table can't be built (e.g. because the pack doesn't use the usual 0x7f package ID),
+ * the resolver falls back to {@link ResourceHelper#getDrawableResourceId}-style lookups. The
+ * walk stops at large gaps in the ID range, so names that aren't in the table are looked up
+ * the same way too, and the result is remembered, up to a limit.
+ */
+public class ResourceIdResolver {
+	private static final int APP_PACKAGE_ID = 0x7f;
+	private static final int MAX_TYPE_ID = 0xff;
+	private static final int MAX_ENTRY_ID = 0xffff;
+	// Resource tables can contain holes (e.g. stable IDs with aapt2); give up after this many
+	private static final int MAX_MISSING_TYPES = 4;
+	private static final int MAX_MISSING_ENTRIES = 256;
+	// Derived drawable names of unthemed apps all end up here, so don't keep them forever
+	private static final int MAX_TABLE_MISSES = 1024;
+
+	private final Resources resources;
+	private final String packageName;
+	private final String type;
+	private final StringIntMap table;
+	// names the table doesn't have, looked up one by one; -1 if there's no such resource
+	private final StringIntMap tableMisses = new StringIntMap(); // guarded by itself
+
+	private ResourceIdResolver(final Resources resources, final String packageName,
+							   final String type, final StringIntMap table) {
+		this.resources = resources;
+		this.packageName = packageName;
+		this.type = type;
+		this.table = table;
+	}
+
+	/**
+	 * Builds the name to ID table for all resources of the given type in one pass.
+	 *
+	 * @param resources   the icon pack's resources
+	 * @param packageName the icon pack's package name
+	 * @param type        resource type, e.g. "drawable"
+	 */
+	public static ResourceIdResolver build(final Resources resources, final String packageName,
+										   final String type) {
+		StringIntMap table = null;
+
+		try {
+			table = buildTable(resources, packageName, type);
+		} catch (final Exception ex) {
+			ex.printStackTrace();
+		}
+
+		return new ResourceIdResolver(resources, packageName, type, table);
+	}
+
+	/**
+	 * Wraps a name to ID table that's already been built, e.g. one kept from an earlier run.
+	 */
+	public static ResourceIdResolver fromTable(final StringIntMap table) {
+		return new ResourceIdResolver(null, null, null, table);
+	}
+
+	/**
+	 * @return resource ID for the given name, or -1 if there is no such resource
+	 */
+	public int getResourceId(final String name) {
+		if (name == null) {
+			return -1;
+		}
+
+		if (this.table == null) {
+			return this.getIdentifier(name);
+		}
+
+		final int id = this.table.get(name, -1);
+
+		if (id > 0 || this.resources == null) {
+			return id;
+		}
+
+		// The walk may have given up on a gap before reaching this one
+		synchronized (this.tableMisses) {
+			final int cached = this.tableMisses.get(name, 0);
+
+			if (cached != 0) {
+				return cached;
+			}
+		}
+
+		final int identifier = this.getIdentifier(name);
+
+		synchronized (this.tableMisses) {
+			if (this.tableMisses.size() < MAX_TABLE_MISSES) {
+				this.tableMisses.put(name, identifier);
+			}
+		}
+
+		return identifier;
+	}
+
+	private int getIdentifier(final String name) {
+		try {
+			final int id = this.resources.getIdentifier(name, this.type, this.packageName);
+
+			return id > 0 ? id : -1;
+		} catch (final Exception ex) {
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return whether lookups are served from the prebuilt table
+	 */
+	public boolean isTableBuilt() {
+		return this.table != null;
+	}
+
+	/**
+	 * @return number of resources in the table, or -1 if no table could be built
+	 */
+	public int size() {
+		return this.table != null ? this.table.size() : -1;
+	}
+
+	private static StringIntMap buildTable(final Resources resources, final String packageName,
+										   final String type) {
+		final int typeId = findTypeId(resources, packageName, type);
+
+		if (typeId < 0) {
+			return null;
+		}
+
+		final int base = (APP_PACKAGE_ID << 24) | (typeId << 16);
+		final StringIntMap table = new StringIntMap(1024);
+		int missing = 0;
+
+		for (int entry = 0; entry <= MAX_ENTRY_ID && missing < MAX_MISSING_ENTRIES; entry++) {
+			final int id = base | entry;
+
+			try {
+				table.put(resources.getResourceEntryName(id), id);
+				missing = 0;
+			} catch (final Resources.NotFoundException ex) {
+				missing++;
+			}
+		}
+
+		return table;
+	}
+
+	private static int findTypeId(final Resources resources, final String packageName,
+								  final String type) {
+		int missing = 0;
+
+		for (int typeId = 1; typeId <= MAX_TYPE_ID && missing < MAX_MISSING_TYPES; typeId++) {
+			final int id = (APP_PACKAGE_ID << 24) | (typeId << 16);
+
+			try {
+				if (! packageName.equals(resources.getResourcePackageName(id))) {
+					return -1;
+				}
+
+				if (type.equals(resources.getResourceTypeName(id))) {
+					return typeId;
+				}
+
+				missing = 0;
+			} catch (final Resources.NotFoundException ex) {
+				missing++;
+			}
+		}
+
+		return -1;
+	}
+}
@@ -0,0 +1,130 @@
+package be.robinj.iconpack.utils;
+
+/**
+ * Open-addressed hash map from {@link String} to primitive int.
+ * <p>
+ * Keys and values live in two parallel arrays, so there are no entry objects and no boxing.
+ * Not thread-safe while it is being filled; safe to read from any thread once it has been
+ * safely published.
+ */
+public class StringIntMap {
+	private static final float LOAD_FACTOR = 0.5f;
+
+	private String[] keys;
+	private int[] values;
+	private int size;
+	private int mask;
+
+	public StringIntMap() {
+		this(16);
+	}
+
+	public StringIntMap(final int expectedSize) {
+		this.allocate(capacityFor(expectedSize));
+	}
+
+	/**
+	 * @return the value mapped to the key, or defaultValue if there is none
+	 */
+	public int get(final String key, final int defaultValue) {
+		int slot = hash(key) & this.mask;
+
+		while (true) {
+			final String candidate = this.keys[slot];
+
+			if (candidate == null) {
+				return defaultValue;
+			} else if (candidate.equals(key)) {
+				return this.values[slot];
+			}
+
+			slot = (slot + 1) & this.mask;
+		}
+	}
+
+	public boolean containsKey(final String key) {
+		int slot = hash(key) & this.mask;
+
+		while (this.keys[slot] != null) {
+			if (this.keys[slot].equals(key)) {
+				return true;
+			}
+
+			slot = (slot + 1) & this.mask;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @param key must not be null
+	 */
+	public void put(final String key, final int value) {
+		if (this.size + 1 > this.keys.length * LOAD_FACTOR) {
+			this.resize(this.keys.length * 2);
+		}
+
+		int slot = hash(key) & this.mask;
+
+		while (this.keys[slot] != null) {
+			if (this.keys[slot].equals(key)) {
+				this.values[slot] = value;
+
+				return;
+			}
+
+			slot = (slot + 1) & this.mask;
+		}
+
+		this.keys[slot] = key;
+		this.values[slot] = value;
+		this.size++;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	private void resize(final int capacity) {
+		final String[] oldKeys = this.keys;
+		final int[] oldValues = this.values;
+
+		this.allocate(capacity);
+
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null) {
+				int slot = hash(oldKeys[i]) & this.mask;
+
+				while (this.keys[slot] != null) {
+					slot = (slot + 1) & this.mask;
+				}
+
+				this.keys[slot] = oldKeys[i];
+				this.values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(final int capacity) {
+		this.keys = new String[capacity];
+		this.values = new int[capacity];
+		this.mask = capacity - 1;
+	}
+
+	private static int capacityFor(final int expectedSize) {
+		int capacity = 16;
+
+		while (capacity * LOAD_FACTOR < expectedSize) {
+			capacity <<= 1;
+		}
+
+		return capacity;
+	}
+
+	private static int hash(final String key) {
+		// String.hashCode() is cached by the String itself; spread its bits since we mask them
+		final int h = key.hashCode() * 0x9E3779B9;
+
+		return h ^ (h >>> 16);
+	}
+}
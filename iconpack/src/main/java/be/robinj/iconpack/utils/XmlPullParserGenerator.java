@@ -3,11 +3,13 @@ package be.robinj.iconpack.utils;
 import android.content.res.Resources;
 
 import be.robinj.iconpack.exceptions.XMLNotFoundException;
+import be.robinj.iconpack.metrics.IconPackMetrics;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -16,31 +18,95 @@ public class XmlPullParserGenerator {
 	private static final String DEF_XML = "xml";
 	private static final String EXT_XML = "." + DEF_XML;
 	private static final String UTF_8 = "UTF-8";
+	private static final int BUFFER_SIZE = 64 * 1024;
 
 	public static XmlPullParser getXmlPullParser(final Resources resources,
 												 final String packageName, final String file)
 			throws XMLNotFoundException, XmlPullParserException {
-		XmlPullParser xpp = null;
+		return getXmlPullParser(resources, packageName, file, null);
+	}
 
-		final int xmlId = resources.getIdentifier(file, DEF_XML, packageName);
+	/**
+	 * @param metrics - told how long opening the file took and where it was found; may be null
+	 */
+	public static XmlPullParser getXmlPullParser(final Resources resources,
+												 final String packageName, final String file,
+												 final IconPackMetrics metrics)
+			throws XMLNotFoundException, XmlPullParserException {
+		final long start = metrics != null ? System.nanoTime() : 0;
+		final XmlPullParser xpp;
+
+		final int xmlId = getXmlResourceId(resources, packageName, file);
 
 		if (xmlId > 0) {
 			xpp = resources.getXml(xmlId);
 		} else {
 			// no resource found, try to open it from assets folder
+			xpp = newPullParser(readXmlAsset(resources, file));
+		}
+
+		if (metrics != null) {
+			metrics.onXmlOpened(packageName, file, xmlId <= 0, System.nanoTime() - start);
+		}
+
+		return xpp;
+	}
+
+	/**
+	 * @return ID of the file as a compiled XML resource, or 0 if the icon pack doesn't have it
+	 * under res/xml
+	 */
+	public static int getXmlResourceId(final Resources resources, final String packageName,
+									   final String file) {
+		return resources.getIdentifier(file, DEF_XML, packageName);
+	}
+
+	/**
+	 * Reads a plain text XML file from the icon pack's assets, e.g. for an {@link XmlScanner}.
+	 */
+	public static byte[] readXmlAsset(final Resources resources, final String file)
+			throws XMLNotFoundException {
+		try {
+			final InputStream in = resources.getAssets().open(file + EXT_XML);
+
 			try {
-				final InputStream appfilterstream = resources.getAssets()
-						.open(file + EXT_XML);
+				// Asset streams know how much is left
+				byte[] xml = new byte[Math.max(in.available(), BUFFER_SIZE)];
+				int length = 0;
+				int read;
+
+				while ((read = in.read(xml, length, xml.length - length)) != -1) {
+					length += read;
 
-				final XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-				factory.setNamespaceAware(true);
+					if (length == xml.length) {
+						final byte[] grown = new byte[xml.length * 2];
+						System.arraycopy(xml, 0, grown, 0, length);
+						xml = grown;
+					}
+				}
 
-				xpp = factory.newPullParser();
-				xpp.setInput(appfilterstream, UTF_8);
-			} catch (final IOException ex) {
-				throw new XMLNotFoundException(file + EXT_XML, ex);
+				if (length == xml.length) {
+					return xml;
+				}
+
+				final byte[] trimmed = new byte[length];
+				System.arraycopy(xml, 0, trimmed, 0, length);
+
+				return trimmed;
+			} finally {
+				in.close();
 			}
+		} catch (final IOException ex) {
+			throw new XMLNotFoundException(file + EXT_XML, ex);
 		}
+	}
+
+	public static XmlPullParser newPullParser(final byte[] xml) throws XmlPullParserException {
+		final XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+
+		final XmlPullParser xpp = factory.newPullParser();
+		xpp.setInput(new ByteArrayInputStream(xml), UTF_8);
 
 		return xpp;
 	}
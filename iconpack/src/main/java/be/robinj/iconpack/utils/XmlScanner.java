@@ -0,0 +1,424 @@
+package be.robinj.iconpack.utils;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.nio.charset.Charset;
+
+/**
+ * Streams the start tags out of a plain text appfilter.xml or drawable.xml.
+ * <p>
+ * Icon pack XML is flat and simple: all that matters are start tags and their attributes. The
+ * scanner walks the UTF-8 bytes once, compares element and attribute names byte by byte and
+ * only remembers where each attribute's value is, so only the values that are asked for ever
+ * become strings. Namespace prefixes are ignored, like a namespace aware parser's local names.
+ * <p>
+ * Anything it doesn't understand (a DOCTYPE, another encoding, an unknown entity, broken
+ * markup) throws an {@link XmlPullParserException}; parse the same bytes with
+ * {@link XmlPullParserGenerator#newPullParser(byte[])} then.
+ */
+public class XmlScanner {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final byte[] COMMENT = name("!--");
+	private static final byte[] COMMENT_END = name("-->");
+	private static final byte[] CDATA = name("![CDATA[");
+	private static final byte[] CDATA_END = name("]]>");
+	private static final byte[] DECLARATION_END = name("?>");
+	private static final byte[] ENCODING = name("encoding");
+
+	private final byte[] xml;
+	private final int end;
+	private int position;
+
+	// current element's local name
+	private int nameStart;
+	private int nameEnd;
+	// per attribute: local name start, name end, value start, value end
+	private int[] attributes = new int[4 * 4];
+	private int attributeCount;
+
+	public XmlScanner(final byte[] xml) {
+		this(xml, 0, xml.length);
+	}
+
+	public XmlScanner(final byte[] xml, final int offset, final int length) {
+		this.xml = xml;
+		this.position = offset;
+		this.end = offset + length;
+
+		// UTF-8 byte order mark
+		if (length >= 3 && (xml[offset] & 0xFF) == 0xEF && (xml[offset + 1] & 0xFF) == 0xBB
+				&& (xml[offset + 2] & 0xFF) == 0xBF) {
+			this.position += 3;
+		}
+	}
+
+	/**
+	 * @return the bytes to compare element and attribute names against
+	 */
+	public static byte[] name(final String name) {
+		return name.getBytes(UTF_8);
+	}
+
+	/**
+	 * Moves to the next start tag, skipping text, comments, end tags and the XML declaration.
+	 *
+	 * @return false once the end of the document is reached
+	 */
+	public boolean nextElement() throws XmlPullParserException {
+		final byte[] xml = this.xml;
+
+		while (true) {
+			int position = this.indexOf((byte) '<', this.position);
+
+			if (position < 0) {
+				this.position = this.end;
+				this.attributeCount = 0;
+
+				return false;
+			}
+
+			position++;
+
+			if (position >= this.end) {
+				throw this.error("Unexpected end of document", position);
+			}
+
+			final byte b = xml[position];
+
+			if (b == '?') {
+				this.position = this.skipDeclaration(position + 1);
+			} else if (b == '!') {
+				if (this.startsWith(position, COMMENT)) {
+					this.position = this.skipPast(position + COMMENT.length, COMMENT_END);
+				} else if (this.startsWith(position, CDATA)) {
+					this.position = this.skipPast(position + CDATA.length, CDATA_END);
+				} else {
+					// DOCTYPEs may declare entities, leave them to a real parser
+					throw this.error("Unsupported markup", position);
+				}
+			} else if (b == '/') {
+				final int close = this.indexOf((byte) '>', position);
+
+				if (close < 0) {
+					throw this.error("Unterminated end tag", position);
+				}
+
+				this.position = close + 1;
+			} else {
+				this.position = this.readStartTag(position);
+
+				return true;
+			}
+		}
+	}
+
+	public boolean isElement(final byte[] name) {
+		return this.equals(this.nameStart, this.nameEnd, name);
+	}
+
+	public int getAttributeCount() {
+		return this.attributeCount;
+	}
+
+	public boolean isAttribute(final int index, final byte[] name) {
+		return index < this.attributeCount
+				&& this.equals(this.attributes[index * 4], this.attributes[index * 4 + 1], name);
+	}
+
+	public boolean attributeStartsWith(final int index, final byte[] prefix) {
+		if (index >= this.attributeCount) {
+			return false;
+		}
+
+		final int start = this.attributes[index * 4];
+
+		return this.attributes[index * 4 + 1] - start >= prefix.length && this.startsWith(start, prefix);
+	}
+
+	public String getAttributeValue(final int index) throws XmlPullParserException {
+		return this.decode(this.attributes[index * 4 + 2], this.attributes[index * 4 + 3]);
+	}
+
+	/**
+	 * @return value of the current element's attribute, or null if it doesn't have it
+	 */
+	public String getAttributeValue(final byte[] name) throws XmlPullParserException {
+		for (int i = 0; i < this.attributeCount; i++) {
+			if (this.isAttribute(i, name)) {
+				return this.getAttributeValue(i);
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * @param position - right after the '<'
+	 * @return position right after the tag
+	 */
+	private int readStartTag(int position) throws XmlPullParserException {
+		final byte[] xml = this.xml;
+
+		this.attributeCount = 0;
+		this.nameStart = position;
+		position = this.skipName(position);
+		this.nameEnd = position;
+		this.nameStart = this.localName(this.nameStart, this.nameEnd);
+
+		if (this.nameStart == this.nameEnd) {
+			throw this.error("Missing element name", position);
+		}
+
+		while (true) {
+			position = this.skipWhitespace(position);
+
+			if (position >= this.end) {
+				throw this.error("Unterminated start tag", position);
+			}
+
+			if (xml[position] == '>') {
+				return position + 1;
+			} else if (xml[position] == '/') {
+				if (position + 1 >= this.end || xml[position + 1] != '>') {
+					throw this.error("Expected '>'", position);
+				}
+
+				return position + 2;
+			}
+
+			final int attributeStart = position;
+			position = this.skipName(position);
+			final int attributeEnd = position;
+
+			if (attributeStart == attributeEnd) {
+				throw this.error("Missing attribute name", position);
+			}
+
+			position = this.skipWhitespace(position);
+			if (position >= this.end || xml[position] != '=') {
+				throw this.error("Expected '='", position);
+			}
+
+			position = this.skipWhitespace(position + 1);
+			if (position >= this.end || (xml[position] != '"' && xml[position] != '\'')) {
+				throw this.error("Expected a quoted value", position);
+			}
+
+			final byte quote = xml[position];
+			final int valueStart = position + 1;
+			final int valueEnd = this.indexOf(quote, valueStart);
+
+			if (valueEnd < 0) {
+				throw this.error("Unterminated attribute value", valueStart);
+			}
+
+			this.addAttribute(this.localName(attributeStart, attributeEnd), attributeEnd,
+					valueStart, valueEnd);
+			position = valueEnd + 1;
+		}
+	}
+
+	private void addAttribute(final int nameStart, final int nameEnd, final int valueStart,
+							  final int valueEnd) throws XmlPullParserException {
+		for (int i = valueStart; i < valueEnd; i++) {
+			if (this.xml[i] == '<') {
+				throw this.error("'<' in attribute value", i);
+			}
+		}
+
+		if (this.attributeCount * 4 == this.attributes.length) {
+			final int[] attributes = new int[this.attributes.length * 2];
+			System.arraycopy(this.attributes, 0, attributes, 0, this.attributes.length);
+			this.attributes = attributes;
+		}
+
+		final int offset = this.attributeCount * 4;
+		this.attributes[offset] = nameStart;
+		this.attributes[offset + 1] = nameEnd;
+		this.attributes[offset + 2] = valueStart;
+		this.attributes[offset + 3] = valueEnd;
+		this.attributeCount++;
+	}
+
+	/**
+	 * Skips "<?xml ... ?>" and processing instructions, making sure the document is UTF-8.
+	 */
+	private int skipDeclaration(final int position) throws XmlPullParserException {
+		final int end = this.skipPast(position, DECLARATION_END);
+
+		for (int i = position; i < end - ENCODING.length; i++) {
+			if (this.startsWith(i, ENCODING)) {
+				final int equals = this.skipWhitespace(i + ENCODING.length);
+
+				if (equals < end && this.xml[equals] == '=') {
+					final int quote = this.skipWhitespace(equals + 1);
+					final int valueEnd = quote < end ? this.indexOf(this.xml[quote], quote + 1) : -1;
+
+					if (valueEnd < 0 || valueEnd >= end || ! "UTF-8".equalsIgnoreCase(
+							new String(this.xml, quote + 1, valueEnd - quote - 1, UTF_8))) {
+						throw this.error("Unsupported encoding", i);
+					}
+				}
+
+				break;
+			}
+		}
+
+		return end;
+	}
+
+	private String decode(final int start, final int end) throws XmlPullParserException {
+		for (int i = start; i < end; i++) {
+			final byte b = this.xml[i];
+
+			if (b == '&' || b == '\n' || b == '\r' || b == '\t') {
+				return this.decodeEscaped(start, end);
+			}
+		}
+
+		return new String(this.xml, start, end - start, UTF_8);
+	}
+
+	/**
+	 * Replaces character and the predefined entity references, and normalises whitespace like
+	 * an XML parser does for attribute values.
+	 */
+	private String decodeEscaped(final int start, final int end) throws XmlPullParserException {
+		final String raw = new String(this.xml, start, end - start, UTF_8);
+		final StringBuilder value = new StringBuilder(raw.length());
+
+		for (int i = 0; i < raw.length(); i++) {
+			final char c = raw.charAt(i);
+
+			if (c == '\n' || c == '\r' || c == '\t') {
+				// "\r\n" is a single line break
+				if (c != '\r' || i + 1 >= raw.length() || raw.charAt(i + 1) != '\n') {
+					value.append(' ');
+				}
+			} else if (c == '&') {
+				final int semicolon = raw.indexOf(';', i);
+
+				if (semicolon < 0) {
+					throw this.error("Unterminated entity", start);
+				}
+
+				final String entity = raw.substring(i + 1, semicolon);
+
+				if ("amp".equals(entity)) {
+					value.append('&');
+				} else if ("lt".equals(entity)) {
+					value.append('<');
+				} else if ("gt".equals(entity)) {
+					value.append('>');
+				} else if ("quot".equals(entity)) {
+					value.append('"');
+				} else if ("apos".equals(entity)) {
+					value.append('\'');
+				} else if (entity.startsWith("#")) {
+					try {
+						final int codePoint = entity.startsWith("#x")
+								? Integer.parseInt(entity.substring(2), 16)
+								: Integer.parseInt(entity.substring(1));
+
+						value.appendCodePoint(codePoint);
+					} catch (final IllegalArgumentException ex) {
+						throw this.error("Invalid character reference &" + entity + ";", start);
+					}
+				} else {
+					throw this.error("Unknown entity &" + entity + ";", start);
+				}
+
+				i = semicolon;
+			} else {
+				value.append(c);
+			}
+		}
+
+		return value.toString();
+	}
+
+	private int skipName(int position) {
+		while (position < this.end) {
+			final byte b = this.xml[position];
+
+			if (b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == '=' || b == '/' || b == '>') {
+				break;
+			}
+
+			position++;
+		}
+
+		return position;
+	}
+
+	/**
+	 * @return start of the name without its namespace prefix
+	 */
+	private int localName(final int start, final int end) {
+		for (int i = end - 1; i >= start; i--) {
+			if (this.xml[i] == ':') {
+				return i + 1;
+			}
+		}
+
+		return start;
+	}
+
+	private int skipWhitespace(int position) {
+		while (position < this.end) {
+			final byte b = this.xml[position];
+
+			if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+				break;
+			}
+
+			position++;
+		}
+
+		return position;
+	}
+
+	private int skipPast(final int position, final byte[] terminator) throws XmlPullParserException {
+		final int last = this.end - terminator.length;
+
+		for (int i = position; i <= last; i++) {
+			if (this.xml[i] == terminator[0] && this.startsWith(i, terminator)) {
+				return i + terminator.length;
+			}
+		}
+
+		throw this.error("Unterminated markup", position);
+	}
+
+	private int indexOf(final byte b, final int from) {
+		for (int i = from; i < this.end; i++) {
+			if (this.xml[i] == b) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	private boolean startsWith(final int position, final byte[] prefix) {
+		if (this.end - position < prefix.length) {
+			return false;
+		}
+
+		for (int i = 0; i < prefix.length; i++) {
+			if (this.xml[position + i] != prefix[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private boolean equals(final int start, final int end, final byte[] name) {
+		return end - start == name.length && this.startsWith(start, name);
+	}
+
+	private XmlPullParserException error(final String message, final int position) {
+		return new XmlPullParserException(message + " at byte " + position);
+	}
+}
@@ -0,0 +1,85 @@
+package be.robinj.iconpack;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Comparing two appfilters with {@link AppFilterDiff#compute(Map, Map, boolean)}.
+ */
+public class AppFilterDiffTest {
+	@Test
+	public void compute_sortsChangedComponents() {
+		final Map<String, String> previous = new LinkedHashMap<>();
+		previous.put("com.example.a/com.example.a.Main", "a");
+		previous.put("com.example.b/com.example.b.Main", "b");
+		previous.put("com.example.c/com.example.c.Main", "c");
+		previous.put("com.example.d", "d");
+
+		final Map<String, String> current = new LinkedHashMap<>();
+		current.put("com.example.a/com.example.a.Main", "a");
+		current.put("com.example.b/com.example.b.Main", "b_new");
+		current.put("com.example.e/com.example.e.Main", "e");
+		current.put("com.example.f", "f");
+
+		final AppFilterDiff diff = AppFilterDiff.compute(previous, current, false);
+
+		assertEquals(Arrays.asList("com.example.e/com.example.e.Main", "com.example.f"),
+				new ArrayList<>(diff.getAdded()));
+		assertEquals(Arrays.asList("com.example.c/com.example.c.Main", "com.example.d"),
+				new ArrayList<>(diff.getRemoved()));
+		assertEquals(Collections.singletonList("com.example.b/com.example.b.Main"),
+				new ArrayList<>(diff.getRemapped()));
+		assertFalse(diff.isMaskingChanged());
+		assertFalse(diff.isEmpty());
+		assertEquals("2 added, 2 removed, 1 remapped", diff.toString());
+	}
+
+	@Test
+	public void compute_isEmptyForSameAppFilter() {
+		final Map<String, String> previous = new LinkedHashMap<>();
+		previous.put("com.example.a/com.example.a.Main", "a");
+		previous.put("com.example.b", "b");
+
+		final AppFilterDiff diff = AppFilterDiff.compute(previous, new LinkedHashMap<>(previous), false);
+
+		assertTrue(diff.getAdded().isEmpty());
+		assertTrue(diff.getRemoved().isEmpty());
+		assertTrue(diff.getRemapped().isEmpty());
+		assertTrue(diff.isEmpty());
+	}
+
+	@Test
+	public void compute_isntEmptyWhenOnlyMaskingChanged() {
+		final Map<String, String> components = Collections.singletonMap("com.example.a", "a");
+
+		final AppFilterDiff diff = AppFilterDiff.compute(components, components, true);
+
+		assertTrue(diff.isMaskingChanged());
+		assertFalse(diff.isEmpty());
+		assertEquals("0 added, 0 removed, 0 remapped, masking changed", diff.toString());
+	}
+
+	@Test
+	public void empty_hasNoChanges() {
+		final AppFilterDiff diff = AppFilterDiff.empty();
+
+		assertTrue(diff.isEmpty());
+		assertFalse(diff.isMaskingChanged());
+		assertEquals("0 added, 0 removed, 0 remapped", diff.toString());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void getAdded_isReadOnly() {
+		AppFilterDiff.compute(Collections.<String, String>emptyMap(),
+				Collections.singletonMap("com.example.a", "a"), false).getAdded().clear();
+	}
+}
@@ -0,0 +1,165 @@
+package be.robinj.iconpack;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Writing an {@link AppFilterIndex} to its binary file and reading it back.
+ */
+public class AppFilterIndexTest {
+	private static final AppFilterIndex.Key KEY = new AppFilterIndex.Key("com.example.icons", 7, 1234L);
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void read_returnsWhatWasWritten() throws IOException {
+		final AppFilterIndex index = new AppFilterIndex();
+		index.addComponent("ComponentInfo{com.android.chrome/com.google.android.apps.chrome.Main}", "chrome");
+		index.addComponent("ComponentInfo{com.example.app/.MainActivity}", "example");
+		index.addComponent("com.example.whole", "whole");
+		index.addComponent("ComponentInfo{com.example.unicode/.Main}", "\u00fcn\u00efc\u00f6d\u00e9");
+		index.backImages.addAll(Arrays.asList("iconback1", "iconback2"));
+		index.maskImage = "iconmask";
+		index.frontImage = "iconupon";
+		index.factor = 0.75f;
+
+		final File file = new File(this.folder.getRoot(), "appfilter.idx");
+		index.write(file, KEY);
+
+		final AppFilterIndex read = AppFilterIndex.read(file, KEY);
+
+		assertNotNull(read);
+		assertEquals(new ArrayList<>(index.components.entrySet()),
+				new ArrayList<>(read.components.entrySet()));
+		assertEquals("com.example.app/com.example.app.MainActivity",
+				new ArrayList<>(read.components.keySet()).get(1));
+		assertEquals(index.backImages, read.backImages);
+		assertEquals("iconmask", read.maskImage);
+		assertEquals("iconupon", read.frontImage);
+		assertEquals(0.75f, read.factor, 0f);
+	}
+
+	@Test
+	public void read_keepsMissingMaskingMissing() throws IOException {
+		final AppFilterIndex index = new AppFilterIndex();
+		index.addComponent("ComponentInfo{com.example.app/com.example.app.Main}", "example");
+
+		final File file = new File(this.folder.getRoot(), "appfilter.idx");
+		index.write(file, KEY);
+
+		final AppFilterIndex read = AppFilterIndex.read(file, KEY);
+
+		assertNotNull(read);
+		assertFalse(read.hasMasking());
+		assertNull(read.maskImage);
+		assertNull(read.frontImage);
+		assertNull(read.factor);
+		assertEquals(1, read.components.size());
+	}
+
+	@Test
+	public void read_ignoresIndexOfAnotherBuild() throws IOException {
+		final File file = new File(this.folder.getRoot(), "appfilter.idx");
+		new AppFilterIndex().write(file, KEY);
+
+		assertNull(AppFilterIndex.read(file, new AppFilterIndex.Key("com.example.icons", 8, 1234L)));
+		assertNull(AppFilterIndex.read(file, new AppFilterIndex.Key("com.example.icons", 7, 5678L)));
+		assertNull(AppFilterIndex.read(file, new AppFilterIndex.Key("com.example.other", 7, 1234L)));
+		assertNotNull(AppFilterIndex.read(file, KEY));
+	}
+
+	@Test
+	public void read_returnsNullWithoutFile() throws IOException {
+		assertNull(AppFilterIndex.read(new File(this.folder.getRoot(), "missing.idx"), KEY));
+	}
+
+	@Test
+	public void write_leavesNoTemporaryFiles() throws IOException {
+		final File file = new File(this.folder.getRoot(), "appfilter.idx");
+		new AppFilterIndex().write(file, KEY);
+		new AppFilterIndex().write(file, KEY);
+
+		assertEquals(Collections.singletonList(file.getName()), Arrays.asList(this.folder.getRoot().list()));
+	}
+
+	@Test(expected = IOException.class)
+	public void read_rejectsTruncatedIndex() throws IOException {
+		final File file = this.writeIndex();
+
+		final RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.setLength(out.length() - 3);
+		} finally {
+			out.close();
+		}
+
+		AppFilterIndex.read(file, KEY);
+	}
+
+	@Test(expected = IOException.class)
+	public void read_rejectsStringLengthPastEndOfFile() throws IOException {
+		final File file = this.writeIndex();
+
+		// The length of the last string (the drawable name) claims far more bytes than there are
+		final RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.seek(out.length() - "example".length() - 4);
+			out.writeInt(Integer.MAX_VALUE - 8);
+		} finally {
+			out.close();
+		}
+
+		AppFilterIndex.read(file, KEY);
+	}
+
+	@Test(expected = IOException.class)
+	public void read_rejectsComponentCountPastEndOfFile() throws IOException {
+		final File file = new File(this.folder.getRoot(), "appfilter.idx");
+		new AppFilterIndex().write(file, KEY);
+
+		// An empty index ends with its component count
+		final RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.seek(out.length() - 4);
+			out.writeInt(Integer.MAX_VALUE);
+		} finally {
+			out.close();
+		}
+
+		AppFilterIndex.read(file, KEY);
+	}
+
+	@Test
+	public void normalizeComponent_skipsEntriesThatArentComponents() {
+		assertEquals("com.example/com.example.Main",
+				AppFilterIndex.normalizeComponent("ComponentInfo{com.example/.Main}"));
+		assertEquals("com.example", AppFilterIndex.normalizeComponent("ComponentInfo{com.example}"));
+		assertNull(AppFilterIndex.normalizeComponent(":BROWSER"));
+		assertNull(AppFilterIndex.normalizeComponent("ComponentInfo{com.example/}"));
+		assertNull(AppFilterIndex.normalizeComponent(null));
+	}
+
+	private File writeIndex() throws IOException {
+		final AppFilterIndex index = new AppFilterIndex();
+		index.addComponent("ComponentInfo{com.example.app/com.example.app.Main}", "example");
+
+		final File file = new File(this.folder.getRoot(), "appfilter.idx");
+		index.write(file, KEY);
+
+		return file;
+	}
+}
@@ -0,0 +1,123 @@
+package be.robinj.iconpack;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Matching and ranking of {@link DrawableSearchIndex}, in one go and while typing.
+ */
+public class DrawableSearchIndexTest {
+	private DrawableSearchIndex index;
+
+	@Before
+	public void setUp() {
+		final DrawableSearchIndex.Builder builder = new DrawableSearchIndex.Builder();
+
+		builder.add(icon("photocamera", "Photocamera"));
+		builder.add(icon("google_camera", "Google Camera"));
+		builder.add(icon("camera_pro", "Camera Pro"));
+		builder.add(icon("camera", "Camera"));
+		builder.add(icon("calculator", "Calculator"));
+		builder.add(icon("calendar", "Calendar"));
+		builder.add(icon("clock", "Clock"));
+		builder.add(icon("ic_a1", "Weather"));
+		// listed in another category as well
+		builder.add(icon("camera", "Camera"));
+
+		this.index = builder.build();
+	}
+
+	@Test
+	public void normalize_collapsesUnderscoresAndWhitespace() {
+		assertEquals("google camera", DrawableSearchIndex.normalize("Google_Camera"));
+		assertEquals("a b", DrawableSearchIndex.normalize("  a \t_ b  "));
+		assertEquals("trailing", DrawableSearchIndex.normalize("trailing_"));
+		assertEquals("", DrawableSearchIndex.normalize("___"));
+		assertEquals("", DrawableSearchIndex.normalize(null));
+	}
+
+	@Test
+	public void build_indexesDrawablesOnce() {
+		assertEquals(8, this.index.size());
+	}
+
+	@Test
+	public void search_ranksPrefixThenWordPrefixThenSubstring() {
+		// Ties go to the shorter name: "camera" before "camera_pro"
+		assertEquals(Arrays.asList("camera", "camera_pro", "google_camera", "photocamera"),
+				names(this.index.search("Camera", 10)));
+	}
+
+	@Test
+	public void search_matchesTitles() {
+		assertEquals(Collections.singletonList("ic_a1"), names(this.index.search("weath", 10)));
+	}
+
+	@Test
+	public void search_stopsAtLimit() {
+		assertEquals(Arrays.asList("camera", "camera_pro"), names(this.index.search("camera", 2)));
+	}
+
+	@Test
+	public void search_findsNothingForUnknownTrigram() {
+		assertTrue(this.index.search("camxra", 10).isEmpty());
+		assertTrue(this.index.search("", 10).isEmpty());
+	}
+
+	@Test
+	public void search_matchesShortQueriesWithoutTrigrams() {
+		assertEquals(Arrays.asList("camera", "calendar", "camera_pro", "calculator", "google_camera",
+				"photocamera"), names(this.index.search("ca", 10)));
+		assertEquals(Collections.singletonList("clock"), names(this.index.search("k", 10)));
+		assertEquals(Collections.singletonList("ic_a1"), names(this.index.search("a1", 10)));
+	}
+
+	@Test
+	public void update_narrowsWhileTyping() {
+		final DrawableSearchIndex.Search search = this.index.newSearch();
+
+		assertEquals(8, search.update("c", 10).size());
+		assertEquals(6, search.update("ca", 10).size());
+		assertEquals(Arrays.asList("camera", "camera_pro", "google_camera", "photocamera"),
+				names(search.update("cam", 10)));
+		assertEquals(Collections.singletonList("camera_pro"), names(search.update("Camera_P", 10)));
+	}
+
+	@Test
+	public void update_startsOverWhenQueryNoLongerContainsPreviousOne() {
+		final DrawableSearchIndex.Search search = this.index.newSearch();
+
+		search.update("cam", 10);
+
+		// "cal" doesn't contain "cam", so the calendar and calculator have to be found again
+		assertEquals(Arrays.asList("calendar", "calculator"), names(search.update("cal", 10)));
+		assertEquals(6, search.update("ca", 10).size());
+		assertTrue(search.update("", 10).isEmpty());
+		assertEquals(Collections.singletonList("clock"), names(search.update("clo", 10)));
+	}
+
+	private static IconDrawable icon(final String drawableName, final String title) {
+		final IconDrawable icon = new IconDrawable(drawableName, 0);
+		icon.setTitle(title);
+
+		return icon;
+	}
+
+	private static List<String> names(final List<IconDrawable> icons) {
+		final List<String> names = new ArrayList<>(icons.size());
+
+		for (final IconDrawable icon : icons) {
+			names.add(icon.getDrawableName());
+		}
+
+		return names;
+	}
+}
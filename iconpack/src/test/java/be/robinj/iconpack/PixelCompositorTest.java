@@ -0,0 +1,127 @@
+package be.robinj.iconpack;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Blending and premultiplication of {@link PixelCompositor} and {@link PixelBuffer}, checked
+ * against pixel values worked out by hand.
+ */
+public class PixelCompositorTest {
+	private static final int WHITE = 0xFFFFFFFF;
+	private static final int BLUE = 0xFF0000FF;
+	private static final int TRANSPARENT = 0x00000000;
+
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(final Runnable command) {
+			command.run();
+		}
+	};
+
+	@Test
+	public void scale_roundsLikeDividingBy255() {
+		assertEquals(0x80808080, PixelBuffer.scale(0xFFFFFFFF, 0x80));
+		assertEquals(0x12345678, PixelBuffer.scale(0x12345678, 0xFF));
+		assertEquals(0, PixelBuffer.scale(0x12345678, 0));
+	}
+
+	@Test
+	public void fromArgb_premultiplies() {
+		final PixelBuffer buffer = buffer(3, 1, 0x80FF0000, 0x00FFFFFF, 0xFF336699);
+
+		assertArrayEquals(new int[]{0x80800000, 0x00000000, 0xFF336699}, buffer.pixels);
+	}
+
+	@Test
+	public void toArgb_undoesPremultiplication() {
+		final PixelBuffer buffer = buffer(3, 1, 0x80FF0000, 0x00FFFFFF, 0xFF336699);
+
+		assertArrayEquals(new int[]{0x80FF0000, 0x00000000, 0xFF336699}, buffer.toArgb());
+	}
+
+	@Test
+	public void compose_blendsTranslucentIconOverBackground() {
+		final PixelCompositor compositor = compositor(buffer(1, 1, WHITE), null, null);
+
+		final PixelBuffer result = compositor.compose(buffer(1, 1, 0x80FF0000), 0);
+
+		// 50% red over white: red stays full, green and blue keep half of the white
+		assertArrayEquals(new int[]{0xFFFF7F7F}, result.toArgb());
+	}
+
+	@Test
+	public void compose_cutsOutMaskAndDrawsFrontOnTop() {
+		final PixelCompositor compositor = compositor(buffer(2, 1, WHITE, WHITE),
+				buffer(2, 1, 0xFF000000, TRANSPARENT), buffer(2, 1, 0x80000000, 0x80000000));
+
+		final PixelBuffer result = compositor.compose(buffer(2, 1, BLUE, BLUE), 0);
+
+		// Left pixel: cut out by the mask, then covered by the half transparent front.
+		// Right pixel: blue, darkened by the front.
+		assertArrayEquals(new int[]{0x80000000, 0xFF00007F}, result.pixels);
+	}
+
+	@Test
+	public void compose_withoutMask_clipsToBackground() {
+		final PixelCompositor compositor = compositor(buffer(2, 1, WHITE, TRANSPARENT), null, null);
+
+		final PixelBuffer result = compositor.compose(buffer(2, 1, BLUE, BLUE), 0);
+
+		assertArrayEquals(new int[]{BLUE, TRANSPARENT}, result.toArgb());
+	}
+
+	@Test
+	public void compose_scalesIconsThatDontFitToFactor() {
+		final int[] white = new int[4 * 4];
+		final int[] blue = new int[8 * 8];
+		Arrays.fill(white, WHITE);
+		Arrays.fill(blue, BLUE);
+
+		final PixelCompositor compositor = new PixelCompositor(
+				Collections.singletonList(PixelBuffer.fromArgb(4, 4, white)), null, null, 0.5f);
+
+		final int[] result = compositor.compose(PixelBuffer.fromArgb(8, 8, blue), 0).toArgb();
+
+		// 2x2 in the middle of the 4x4 background
+		for (int y = 0; y < 4; y++) {
+			for (int x = 0; x < 4; x++) {
+				final boolean inside = x >= 1 && x <= 2 && y >= 1 && y <= 2;
+
+				assertEquals("pixel " + x + "," + y, inside ? BLUE : WHITE, result[y * 4 + x]);
+			}
+		}
+	}
+
+	@Test
+	public void composeAll_keepsOrderAndSkipsMissingSources() throws InterruptedException {
+		final PixelCompositor compositor = compositor(buffer(1, 1, WHITE), null, null);
+		final PixelBuffer[] sources = {
+				buffer(1, 1, BLUE), null, buffer(1, 1, 0x80FF0000),
+		};
+
+		final PixelBuffer[] results = compositor.composeAll(sources, new int[3], DIRECT);
+
+		assertArrayEquals(new int[]{BLUE}, results[0].toArgb());
+		assertNull(results[1]);
+		assertArrayEquals(new int[]{0xFFFF7F7F}, results[2].toArgb());
+	}
+
+	private static PixelBuffer buffer(final int width, final int height, final int... argb) {
+		return PixelBuffer.fromArgb(width, height, argb.clone());
+	}
+
+	private static PixelCompositor compositor(final PixelBuffer backImage,
+											  final PixelBuffer maskImage,
+											  final PixelBuffer frontImage) {
+		return new PixelCompositor(Collections.singletonList(backImage), maskImage, frontImage,
+				IconMasking.DEFAULT_FACTOR);
+	}
+}
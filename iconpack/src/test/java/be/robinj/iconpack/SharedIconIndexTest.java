@@ -0,0 +1,154 @@
+package be.robinj.iconpack;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.robinj.iconpack.utils.ResourceIdResolver;
+import be.robinj.iconpack.utils.StringIntMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Exporting a {@link SharedIconIndex} and looking things up in the mapped file.
+ */
+public class SharedIconIndexTest {
+	private static final AppFilterIndex.Key KEY = new AppFilterIndex.Key("com.example.icons", 7, 1234L);
+	private static final String UNICODE = "com.example.\u00fcn\u00efc\u00f6d\u00e9";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+	private SharedIconIndex index;
+
+	@Before
+	public void setUp() throws IOException {
+		final AppFilterIndex appFilterIndex = new AppFilterIndex();
+		appFilterIndex.addComponent("ComponentInfo{com.example.app/com.example.app.Main}", "app_main");
+		appFilterIndex.addComponent("ComponentInfo{com.example.app/com.example.app.Settings}", "app_settings");
+		appFilterIndex.addComponent("com.example.whole", "whole");
+		appFilterIndex.addComponent("ComponentInfo{" + UNICODE + "/.Caf\u00e9}", "caf\u00e9");
+		appFilterIndex.backImages.addAll(Arrays.asList("iconback1", "iconback2"));
+		appFilterIndex.maskImage = "iconmask";
+		appFilterIndex.factor = 0.8f;
+
+		final Map<String, List<IconDrawable>> categories = new LinkedHashMap<>();
+		categories.put("Apps", Arrays.asList(new IconDrawable("app_main", 0x7f020001),
+				new IconDrawable("app_settings", 0x7f020002)));
+		categories.put("Other", Collections.singletonList(new IconDrawable("whole", 0x7f020003)));
+
+		final StringIntMap table = new StringIntMap();
+		table.put("app_main", 0x7f020001);
+		table.put("app_settings", 0x7f020002);
+		table.put("whole", 0x7f020003);
+		table.put("caf\u00e9", 0x7f020004);
+
+		this.file = new File(this.folder.getRoot(), "com.example.icons.idx");
+		SharedIconIndex.write(this.file, KEY, appFilterIndex, categories, ResourceIdResolver.fromTable(table));
+
+		this.index = SharedIconIndex.open(this.file);
+	}
+
+	@Test
+	public void open_readsHeader() {
+		assertEquals("com.example.icons", this.index.getPackageName());
+		assertEquals(7, this.index.getVersionCode());
+		assertEquals(1234L, this.index.getLastUpdateTime());
+		assertEquals(4, this.index.size());
+	}
+
+	@Test
+	public void getDrawableName_findsExactComponent() {
+		assertEquals("app_main", this.index.getDrawableName("com.example.app", "com.example.app.Main"));
+		assertEquals("app_settings", this.index.getDrawableName("com.example.app", "com.example.app.Settings"));
+		assertNull(this.index.getDrawableName("com.example.app", "com.example.app.Other"));
+		assertNull(this.index.getDrawableName("com.example.ap", "p.Main"));
+		assertNull(this.index.getDrawableName("com.example.missing", "com.example.missing.Main"));
+	}
+
+	@Test
+	public void getDrawableNameForActivity_fallsBackToPackage() {
+		assertEquals("app_settings",
+				this.index.getDrawableNameForActivity("com.example.app", "com.example.app.Settings"));
+		// first entry of the package
+		assertEquals("app_main", this.index.getDrawableNameForActivity("com.example.app", "com.example.app.Other"));
+		assertEquals("whole", this.index.getDrawableNameForActivity("com.example.whole", "com.example.whole.Main"));
+		assertNull(this.index.getDrawableNameForActivity("com.example", "com.example.Main"));
+		assertNull(this.index.getDrawableNameForPackage("com.example.missing"));
+	}
+
+	@Test
+	public void getDrawableResourceIdForActivity_returnsResolvedId() {
+		assertEquals(0x7f020002,
+				this.index.getDrawableResourceIdForActivity("com.example.app", "com.example.app.Settings"));
+		assertEquals(0x7f020003,
+				this.index.getDrawableResourceIdForActivity("com.example.whole", "com.example.whole.Main"));
+		assertEquals(-1, this.index.getDrawableResourceIdForActivity("com.example.missing", "Main"));
+	}
+
+	@Test
+	public void getDrawableName_findsNonAsciiNames() {
+		assertEquals("caf\u00e9", this.index.getDrawableName(UNICODE, UNICODE + ".Caf\u00e9"));
+		assertEquals("caf\u00e9", this.index.getDrawableNameForPackage(UNICODE));
+		assertEquals(0x7f020004, this.index.getDrawableResourceIdForActivity(UNICODE, UNICODE + ".Caf\u00e9"));
+		assertNull(this.index.getDrawableName(UNICODE, UNICODE + ".Cafe"));
+	}
+
+	@Test
+	public void getMasking_returnsDirectives() {
+		assertEquals(Arrays.asList("iconback1", "iconback2"), this.index.getBackImages());
+		assertEquals("iconmask", this.index.getMaskImage());
+		assertNull(this.index.getFrontImage());
+		assertEquals(0.8f, this.index.getFactor(), 0f);
+	}
+
+	@Test
+	public void getCategory_returnsItemsInOrder() {
+		assertEquals(2, this.index.getCategoryCount());
+		assertEquals("Apps", this.index.getCategoryTitle(0));
+		assertEquals(2, this.index.getCategorySize(0));
+		assertEquals("app_settings", this.index.getCategoryDrawableName(0, 1));
+		assertEquals(0x7f020002, this.index.getCategoryDrawableResourceId(0, 1));
+		assertEquals("Other", this.index.getCategoryTitle(1));
+		assertEquals("whole", this.index.getCategoryDrawableName(1, 0));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void getCategoryDrawableName_rejectsIndexPastEnd() {
+		this.index.getCategoryDrawableName(1, 1);
+	}
+
+	@Test
+	public void matches_rejectsIndexOfAnotherBuild() {
+		assertTrue(this.index.matches(KEY));
+		assertFalse(this.index.matches(new AppFilterIndex.Key("com.example.icons", 8, 1234L)));
+		assertFalse(this.index.matches(new AppFilterIndex.Key("com.example.icons", 7, 5678L)));
+		assertFalse(this.index.matches(new AppFilterIndex.Key("com.example.other", 7, 1234L)));
+	}
+
+	@Test
+	public void write_leavesNoTemporaryFiles() {
+		assertEquals(Collections.singletonList(this.file.getName()), Arrays.asList(this.folder.getRoot().list()));
+	}
+
+	@Test(expected = IOException.class)
+	public void open_rejectsOtherFiles() throws IOException {
+		final File other = new File(this.folder.getRoot(), "other.idx");
+		new AppFilterIndex().write(other, KEY);
+
+		SharedIconIndex.open(other);
+	}
+}
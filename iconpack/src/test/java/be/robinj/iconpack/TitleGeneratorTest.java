@@ -0,0 +1,58 @@
+package be.robinj.iconpack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Rule matching in {@link TitleGenerator}'s trie and the clean-up around it.
+ */
+public class TitleGeneratorTest {
+	@Test
+	public void generate_replacesLongestMatch() {
+		final TitleGenerator generator = new TitleGenerator(new String[]{
+				"goog,G", "google,Google Inc",
+		});
+
+		assertEquals("Google Inc maps", generator.generate("google_maps"));
+		assertEquals("G-le", generator.generate("goog-le"));
+	}
+
+	@Test
+	public void generate_fallsBackToShorterMatchWhenLongerOneBreaksOff() {
+		final TitleGenerator generator = new TitleGenerator(new String[]{"ab,X", "abcd,Y"});
+
+		assertEquals("Xcx", generator.generate("abcx"));
+		assertEquals("Y", generator.generate("abcd"));
+	}
+
+	@Test
+	public void generate_leavesPartialMatchesAlone() {
+		final TitleGenerator generator = new TitleGenerator(new String[]{"goog,G"});
+
+		assertEquals("Goo x", generator.generate("goo_x"));
+	}
+
+	@Test
+	public void generate_prefersFirstListedRuleForSameSearchString() {
+		final TitleGenerator generator = new TitleGenerator(new String[]{"maps,A", "maps,B"});
+
+		assertEquals("A", generator.generate("maps"));
+	}
+
+	@Test
+	public void generate_removesSearchStringOfRuleWithoutReplacement() {
+		final TitleGenerator generator = new TitleGenerator(new String[]{"icon_,"});
+
+		assertEquals("Google maps", generator.generate("icon_google_maps"));
+	}
+
+	@Test
+	public void generate_collapsesUnderscoresAndWhitespace() {
+		final TitleGenerator generator = TitleGenerator.withoutRules();
+
+		assertEquals("A b c", generator.generate("__a__b \t c_"));
+		assertEquals("", generator.generate("___"));
+		assertEquals("", generator.generate(""));
+	}
+}
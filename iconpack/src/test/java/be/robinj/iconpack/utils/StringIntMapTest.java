@@ -0,0 +1,81 @@
+package be.robinj.iconpack.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Probing and resizing of {@link StringIntMap}.
+ */
+public class StringIntMapTest {
+	// "Aa" and "BB" have the same hash code, so all of these collide
+	private static final String[] COLLIDING = {"AaAa", "AaBB", "BBAa", "BBBB"};
+
+	@Test
+	public void get_returnsDefaultForMissingKey() {
+		final StringIntMap map = new StringIntMap();
+
+		assertEquals(-1, map.get("missing", -1));
+		assertFalse(map.containsKey("missing"));
+	}
+
+	@Test
+	public void put_keepsCollidingKeysApart() {
+		final StringIntMap map = new StringIntMap();
+
+		for (int i = 0; i < COLLIDING.length; i++) {
+			assertEquals(COLLIDING[0].hashCode(), COLLIDING[i].hashCode());
+
+			map.put(COLLIDING[i], i);
+		}
+
+		assertEquals(COLLIDING.length, map.size());
+
+		for (int i = 0; i < COLLIDING.length; i++) {
+			assertEquals(i, map.get(COLLIDING[i], -1));
+			assertTrue(map.containsKey(COLLIDING[i]));
+		}
+
+		assertEquals(-1, map.get("AaAaAa", -1));
+	}
+
+	@Test
+	public void put_replacesValueOfExistingKey() {
+		final StringIntMap map = new StringIntMap();
+
+		map.put("BBAa", 1);
+		map.put("AaAa", 2);
+		map.put("BBAa", 3);
+
+		assertEquals(2, map.size());
+		assertEquals(3, map.get("BBAa", -1));
+		assertEquals(2, map.get("AaAa", -1));
+	}
+
+	@Test
+	public void put_resizesWithoutLosingEntries() {
+		final StringIntMap map = new StringIntMap(1);
+		final int count = 10000;
+
+		// Colliding keys have to find their place again after every resize
+		for (int i = 0; i < COLLIDING.length; i++) {
+			map.put(COLLIDING[i], -2 - i);
+		}
+
+		for (int i = 0; i < count; i++) {
+			map.put("drawable_" + i, i);
+		}
+
+		assertEquals(count + COLLIDING.length, map.size());
+
+		for (int i = 0; i < count; i++) {
+			assertEquals(i, map.get("drawable_" + i, -1));
+		}
+
+		for (int i = 0; i < COLLIDING.length; i++) {
+			assertEquals(-2 - i, map.get(COLLIDING[i], -1));
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package be.robinj.iconpack.utils;
+
+import org.junit.Test;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Start tags and attribute values as {@link XmlScanner} reads them out of appfilter-like XML.
+ */
+public class XmlScannerTest {
+	private static final byte[] ITEM = XmlScanner.name("item");
+	private static final byte[] COMPONENT = XmlScanner.name("component");
+	private static final byte[] DRAWABLE = XmlScanner.name("drawable");
+
+	@Test
+	public void nextElement_readsSelfClosingAndOpenTags() throws XmlPullParserException {
+		final XmlScanner scanner = scan("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+				+ "<resources>\n"
+				+ "  <item component=\"a\" drawable=\"one\"/>\n"
+				+ "  <item component='b' drawable='two'></item>\n"
+				+ "  <item component = \"c\" drawable = \"three\" />\n"
+				+ "</resources>");
+
+		assertTrue(scanner.nextElement());
+		assertTrue(scanner.isElement(XmlScanner.name("resources")));
+		assertEquals(0, scanner.getAttributeCount());
+
+		assertItem(scanner, "a", "one");
+		assertItem(scanner, "b", "two");
+		assertItem(scanner, "c", "three");
+		assertFalse(scanner.nextElement());
+	}
+
+	@Test
+	public void nextElement_skipsComments() throws XmlPullParserException {
+		final XmlScanner scanner = scan("<resources>"
+				+ "<!-- <item component=\"commented\" drawable=\"out\"/> -->"
+				+ "<item component=\"a\" drawable=\"one\"/>"
+				+ "<!---->"
+				+ "</resources>");
+
+		assertTrue(scanner.nextElement());
+		assertItem(scanner, "a", "one");
+		assertFalse(scanner.nextElement());
+	}
+
+	@Test
+	public void nextElement_skipsCdata() throws XmlPullParserException {
+		final XmlScanner scanner = scan("<resources>"
+				+ "<![CDATA[<item component=\"inside\" drawable=\"cdata\"/> ]] > ]]>"
+				+ "<item component=\"a\" drawable=\"one\"/>"
+				+ "</resources>");
+
+		assertTrue(scanner.nextElement());
+		assertItem(scanner, "a", "one");
+		assertFalse(scanner.nextElement());
+	}
+
+	@Test
+	public void getAttributeValue_decodesEntities() throws XmlPullParserException {
+		final XmlScanner scanner = scan("<item component=\"a&amp;b &lt;c&gt; &quot;d&quot; &apos;e&apos;\""
+				+ " drawable=\"&#65;&#x42;\"/>");
+
+		assertTrue(scanner.nextElement());
+		assertEquals("a&b <c> \"d\" 'e'", scanner.getAttributeValue(COMPONENT));
+		assertEquals("AB", scanner.getAttributeValue(DRAWABLE));
+	}
+
+	@Test
+	public void getAttributeValue_normalisesWhitespace() throws XmlPullParserException {
+		final XmlScanner scanner = scan("<item component=\"a\r\nb\tc\nd\"/>");
+
+		assertTrue(scanner.nextElement());
+		assertEquals("a b c d", scanner.getAttributeValue(COMPONENT));
+	}
+
+	@Test
+	public void names_ignoreNamespacePrefixes() throws XmlPullParserException {
+		final XmlScanner scanner = scan("<x:item android:component=\"a\" drawable=\"one\"/>");
+
+		assertItem(scanner, "a", "one");
+	}
+
+	@Test
+	public void getAttributeValue_returnsNullForMissingAttribute() throws XmlPullParserException {
+		final XmlScanner scanner = scan("<item component=\"a\"/>");
+
+		assertTrue(scanner.nextElement());
+		assertNull(scanner.getAttributeValue(DRAWABLE));
+	}
+
+	@Test
+	public void constructor_skipsByteOrderMark() throws XmlPullParserException {
+		final byte[] xml = bytes("\uFEFF<item component=\"a\" drawable=\"one\"/>");
+
+		assertEquals(0xEF, xml[0] & 0xFF);
+		assertItem(new XmlScanner(xml), "a", "one");
+	}
+
+	@Test
+	public void nextElement_readsManyAttributes() throws XmlPullParserException {
+		final StringBuilder xml = new StringBuilder("<iconback");
+
+		for (int i = 1; i <= 10; i++) {
+			xml.append(" img").append(i).append("=\"back").append(i).append('"');
+		}
+
+		final XmlScanner scanner = scan(xml.append("/>").toString());
+
+		assertTrue(scanner.nextElement());
+		assertEquals(10, scanner.getAttributeCount());
+
+		for (int i = 0; i < 10; i++) {
+			assertTrue(scanner.attributeStartsWith(i, XmlScanner.name("img")));
+			assertEquals("back" + (i + 1), scanner.getAttributeValue(i));
+		}
+	}
+
+	private static void assertItem(final XmlScanner scanner, final String component,
+								   final String drawable) throws XmlPullParserException {
+		assertTrue(scanner.nextElement());
+		assertTrue(scanner.isElement(ITEM));
+		assertEquals(component, scanner.getAttributeValue(COMPONENT));
+		assertEquals(drawable, scanner.getAttributeValue(DRAWABLE));
+	}
+
+	private static XmlScanner scan(final String xml) {
+		return new XmlScanner(bytes(xml));
+	}
+
+	private static byte[] bytes(final String xml) {
+		return xml.getBytes(Charset.forName("UTF-8"));
+	}
+}